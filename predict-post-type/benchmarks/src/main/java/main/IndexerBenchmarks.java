@@ -0,0 +1,104 @@
+package main;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import util.HashMapIndexer;
+import util.Indexer;
+import util.IntCounter;
+
+/**
+ * HashMapIndexer.getIndex and IntCounter increment and iteration on
+ * synthetic data with a fixed seed, the same data as PostTypeBenchmark
+ * uses. getIndex and incrementCount are one op per call; the iteration
+ * benchmarks are one op per pass over a 1000-increment counter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexerBenchmarks {
+
+	private String[] features;
+	private Indexer<String> indexer;
+	private int[] lookups;
+	private int[] keys;
+	private IntCounter incremented;
+	private IntCounter iterated;
+	private int next;
+
+	@Setup
+	public void setup() {
+		int numFeatures = 200000;
+		features = new String[numFeatures];
+		for (int i=0; i<numFeatures; ++i) {
+			features[i] = "INIT_CHARNGRAM_N5_"+Integer.toString(i * 31 + 7, 36);
+		}
+		indexer = new HashMapIndexer<String>();
+		indexer.index(features);
+		indexer.lock();
+		// skewed towards a small set of frequent features, as in IndexerBenchmark
+		lookups = new int[1 << 20];
+		Random rand = new Random(0);
+		for (int i=0; i<lookups.length; ++i) {
+			lookups[i] = rand.nextInt(8) == 0 ? rand.nextInt(numFeatures) : rand.nextInt(numFeatures / 64);
+		}
+
+		keys = new int[1 << 20];
+		rand = new Random(0);
+		for (int i=0; i<keys.length; ++i) {
+			keys[i] = rand.nextInt(4096);
+		}
+		incremented = new IntCounter();
+		iterated = new IntCounter();
+		for (int i=0; i<1000; ++i) {
+			iterated.incrementCount(keys[i], 1.0);
+		}
+	}
+
+	@Benchmark
+	public int hashMapIndexerGetIndex() {
+		next = (next + 1) & (lookups.length - 1);
+		return indexer.getIndex(features[lookups[next]]);
+	}
+
+	@Benchmark
+	public double intCounterIncrementCount() {
+		next = (next + 1) & (keys.length - 1);
+		incremented.incrementCount(keys[next], 1.0);
+		return incremented.getCount(keys[next]);
+	}
+
+	@Benchmark
+	public double intCounterEntries() {
+		double sum = 0.0;
+		for (Map.Entry<Integer, Double> entry : iterated.entries()) {
+			sum += entry.getKey() * entry.getValue();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public double intCounterCursor() {
+		double sum = 0.0;
+		for (IntCounter.Cursor cursor = iterated.cursor(); cursor.next(); ) {
+			sum += cursor.key() * cursor.value();
+		}
+		return sum;
+	}
+
+}
@@ -0,0 +1,60 @@
+package main;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.bwaldvogel.liblinear.Linear;
+
+import util.LibLinearWrapper;
+import util.SparseDataset;
+
+/**
+ * LibLinearWrapper.train and predict on 2000 synthetic sparse rows of 40
+ * out of 20000 features and 4 labels, from PostTypeBenchmark.syntheticData.
+ * train is one op per training on all rows, predict one op per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LibLinearBenchmarks {
+
+	private SparseDataset data;
+	private LibLinearWrapper trained;
+	private int next;
+
+	@Setup
+	public void setup() {
+		Linear.disableDebugOutput();
+		data = PostTypeBenchmark.syntheticData(2000, 20000, 40, 4, new Random(0));
+		trained = new LibLinearWrapper(MainLibLinear.solverType, MainLibLinear.C, MainLibLinear.eps);
+		trained.train(data);
+	}
+
+	@Benchmark
+	public LibLinearWrapper train() {
+		LibLinearWrapper classifier = new LibLinearWrapper(MainLibLinear.solverType, MainLibLinear.C, MainLibLinear.eps);
+		classifier.train(data);
+		return classifier;
+	}
+
+	@Benchmark
+	public int predict() {
+		if (next == data.size()) next = 0;
+		return trained.predict(data, next++);
+	}
+
+}
@@ -0,0 +1,114 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import main.MainLibLinear.InputDatum;
+import main.MainLibLinear.SimpleFeatureExtractor;
+import util.FeatureSink;
+import util.HashingIndexer;
+
+/**
+ * cleanLine and n-gram extraction on the initiator text of the threads in
+ * threadsPath (e.g. the sample data), which has to be given with
+ * -p threadsPath=<path>. cleanLine is one op per line; the n-gram benchmarks
+ * are one op per forum thread, with the INIT and plain prefixes as
+ * extractFeatures adds them. State is per benchmark thread, so -t scales.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextBenchmarks {
+
+	@Param({""})
+	public String threadsPath;
+
+	private List<String> rawLines;
+	// cleaned lines of each thread, as the n-gram extractors get them
+	private List<List<String>> cleanedThreads;
+	private FeatureSink sink;
+	private HashingIndexer hasher;
+	private int nextLine;
+	private int nextThread;
+
+	@Setup
+	public void setup() {
+		if (threadsPath.equals("")) {
+			throw new RuntimeException("Give the threads directory with -p threadsPath=<path>");
+		}
+		MainLibLinear.german = "false";
+		rawLines = new ArrayList<String>();
+		cleanedThreads = new ArrayList<List<String>>();
+		for (String threadId : MainLibLinear.listThreadIds(threadsPath)) {
+			InputDatum thread = new InputDatum(threadsPath, threadId, null);
+			List<String> cleaned = new ArrayList<String>();
+			for (String line : thread.initiatorText) {
+				if (line.trim().equals("")) continue;
+				rawLines.add(line);
+				cleaned.add(SimpleFeatureExtractor.cleanLine(line, false));
+			}
+			cleanedThreads.add(cleaned);
+		}
+		if (cleanedThreads.isEmpty()) {
+			throw new RuntimeException(String.format("No threads in %s", threadsPath));
+		}
+		sink = new FeatureSink();
+		hasher = new HashingIndexer(20, true, false);
+	}
+
+	@Benchmark
+	public String cleanLine() {
+		if (nextLine == rawLines.size()) nextLine = 0;
+		return SimpleFeatureExtractor.cleanLine(rawLines.get(nextLine++), false);
+	}
+
+	@Benchmark
+	public int wordNGramsPerThread() {
+		if (nextThread == cleanedThreads.size()) nextThread = 0;
+		sink.clear();
+		for (String line : cleanedThreads.get(nextThread++)) {
+			SimpleFeatureExtractor.addWordNGramFeatures(sink, null, "INIT", line, false);
+			SimpleFeatureExtractor.addWordNGramFeatures(sink, null, "", line, false);
+		}
+		return sink.size();
+	}
+
+	@Benchmark
+	public int charNGramsPerThread() {
+		if (nextThread == cleanedThreads.size()) nextThread = 0;
+		sink.clear();
+		for (String line : cleanedThreads.get(nextThread++)) {
+			SimpleFeatureExtractor.addCharNGramFeatures(sink, null, "INIT", line, false);
+			SimpleFeatureExtractor.addCharNGramFeatures(sink, null, "", line, false);
+		}
+		return sink.size();
+	}
+
+	@Benchmark
+	public int hashedCharNGramsPerThread() {
+		if (nextThread == cleanedThreads.size()) nextThread = 0;
+		sink.clear();
+		for (String line : cleanedThreads.get(nextThread++)) {
+			SimpleFeatureExtractor.addCharNGramFeatures(sink, hasher, "INIT", line, false);
+			SimpleFeatureExtractor.addCharNGramFeatures(sink, hasher, "", line, false);
+		}
+		return sink.size();
+	}
+
+}
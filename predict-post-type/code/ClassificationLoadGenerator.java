@@ -0,0 +1,132 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import main.MainLibLinear.InputDatum;
+import util.LatencyHistogram;
+
+/**
+ * Replays the threads of a directory, e.g. the sample data, against a
+ * ClassificationServer listening on a local port. Each connection sends one
+ * request at a time and waits for its response, cycling through the threads,
+ * so the offered load is set by the number of connections. Reports client
+ * side throughput and latency percentiles, then the server's own STATS.
+ *
+ * Arguments: <threadsPath> [-port <port>] [-connections <n>] [-requests <total>] [-warmup <requests>]
+ */
+public class ClassificationLoadGenerator {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Arguments are: <threadsPath> [-port <port>] [-connections <n>] [-requests <total>] [-warmup <requests>]");
+			return;
+		}
+		String threadsPath = args[0];
+		int port = 7777;
+		int connections = 4;
+		int totalRequests = 10000;
+		int warmup = 1000;
+		for (int i=1; i+1<args.length; i+=2) {
+			if (args[i].equals("-port")) port = Integer.parseInt(args[i+1]);
+			else if (args[i].equals("-connections")) connections = Integer.parseInt(args[i+1]);
+			else if (args[i].equals("-requests")) totalRequests = Integer.parseInt(args[i+1]);
+			else if (args[i].equals("-warmup")) warmup = Integer.parseInt(args[i+1]);
+			else throw new RuntimeException(String.format("Unknown argument: %s", args[i]));
+		}
+
+		final List<String> requests = new ArrayList<String>();
+		for (String threadId : MainLibLinear.listThreadIds(threadsPath)) {
+			InputDatum thread = new InputDatum(threadsPath, threadId, null);
+			requests.add(threadId+"\t"+ClassificationServer.escape(thread.initiatorText)+"\t"+ClassificationServer.escape(thread.initiatorOthersText)+"\t"+ClassificationServer.escape(thread.respondersText));
+		}
+		if (requests.isEmpty()) {
+			throw new RuntimeException(String.format("No threads in %s", threadsPath));
+		}
+		System.out.println(requests.size()+" threads to replay");
+
+		run(requests, port, connections, warmup, new LatencyHistogram());
+		LatencyHistogram latency = new LatencyHistogram();
+		long start = System.nanoTime();
+		long errors = run(requests, port, connections, totalRequests, latency);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%d requests on %d connections in %.2f s: %.1f requests/s, %d errors", latency.getCount(), connections, seconds, latency.getCount() / seconds, errors));
+		System.out.println("client latency: "+latency.summary());
+
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			out.write(ClassificationServer.STATS+"\n");
+			out.flush();
+			System.out.println("server: "+in.readLine());
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Sends numRequests requests, spread over the connections, and returns
+	 * the number of error responses.
+	 */
+	private static long run(final List<String> requests, final int port, int connections, int numRequests, final LatencyHistogram latency) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(connections);
+		try {
+			List<Future<Long>> futures = new ArrayList<Future<Long>>();
+			for (int c=0; c<connections; ++c) {
+				final int from = (int) ((long) numRequests * c / connections);
+				final int to = (int) ((long) numRequests * (c + 1) / connections);
+				futures.add(pool.submit(new Callable<Long>() {
+					public Long call() throws IOException {
+						long errors = 0;
+						Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+						try {
+							socket.setTcpNoDelay(true);
+							Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+							BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+							for (int r=from; r<to; ++r) {
+								long start = System.nanoTime();
+								out.write(requests.get(r % requests.size()));
+								out.write('\n');
+								out.flush();
+								String response = in.readLine();
+								latency.record(System.nanoTime() - start);
+								if (response == null) throw new IOException("Server closed the connection");
+								if (response.contains("\tERROR\t")) errors++;
+							}
+						} finally {
+							socket.close();
+						}
+						return errors;
+					}
+				}));
+			}
+			long errors = 0;
+			for (Future<Long> future : futures) {
+				try {
+					errors += future.get();
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+			}
+			return errors;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,262 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.MainLibLinear.FeatureExtractor;
+import main.MainLibLinear.InputDatum;
+import util.LatencyHistogram;
+import util.PostTypeModel;
+import util.SparseDataset;
+
+/**
+ * Long-running classifier: loads a model saved by a training run (see
+ * MainLibLinear.modelPath) once, then labels threads sent as request lines
+ * on stdin or on a local socket. Requests are featurized and scored on a
+ * worker pool and answered as they complete, tagged with the request id, so
+ * clients may pipeline requests.
+ *
+ *   request:  id TAB initiatorText [TAB initiatorOthersText [TAB respondersText]]
+ *   response: id TAB label, or id TAB ERROR TAB message
+ *
+ * Each text is the thread's lines joined by escape(). The line STATS is
+ * answered with the request count, throughput and latency percentiles, with
+ * latency measured from reading a request to writing its response.
+ *
+ * Arguments: <modelPath> [-port <port>] [-threads <numThreads>] [-statsEvery <seconds>]
+ */
+public class ClassificationServer {
+
+	public static final String STATS = "STATS";
+	// requests in flight per connection before reading more of it
+	private static final int MAX_IN_FLIGHT_PER_THREAD = 16;
+
+	private final PostTypeModel model;
+	private final List<FeatureExtractor> featureExtractors;
+	private final ExecutorService pool;
+	private final int maxInFlight;
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicLong errors = new AtomicLong();
+	private final long startNanos = System.nanoTime();
+
+	public ClassificationServer(PostTypeModel model, List<FeatureExtractor> featureExtractors, int numThreads) {
+		this.model = model;
+		this.featureExtractors = featureExtractors;
+		this.pool = Executors.newFixedThreadPool(numThreads);
+		this.maxInFlight = numThreads * MAX_IN_FLIGHT_PER_THREAD;
+	}
+
+	/**
+	 * The response line for one request line.
+	 */
+	public String classify(String request) {
+		String[] fields = request.split("\t", -1);
+		try {
+			if (fields.length < 2) {
+				throw new RuntimeException("Expected id and initiator text");
+			}
+			InputDatum thread = new InputDatum(unescape(fields[1]), fields.length > 2 ? unescape(fields[2]) : new ArrayList<String>(), fields.length > 3 ? unescape(fields[3]) : new ArrayList<String>(), null);
+			SparseDataset row = MainLibLinear.featurize(thread, featureExtractors, model.featureIndexer);
+			return fields[0]+"\t"+model.labelIndexer.getObject(model.classifier.predict(row, 0));
+		} catch (RuntimeException e) {
+			errors.incrementAndGet();
+			return fields[0]+"\tERROR\t"+String.valueOf(e.getMessage()).replace('\t', ' ').replace('\n', ' ');
+		}
+	}
+
+	/**
+	 * Serves one stream of requests until it ends, then waits for its
+	 * responses. Reading stops while too many of its requests are in flight.
+	 */
+	public void serve(BufferedReader in, final Writer out) throws IOException {
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		String line;
+		while ((line = in.readLine()) != null) {
+			final long start = System.nanoTime();
+			if (line.isEmpty()) continue;
+			if (line.equals(STATS)) {
+				write(out, stats());
+				continue;
+			}
+			final String request = line;
+			inFlight.acquireUninterruptibly();
+			pool.execute(new Runnable() {
+				public void run() {
+					try {
+						write(out, classify(request));
+						latency.record(System.nanoTime() - start);
+					} catch (IOException e) {
+						errors.incrementAndGet();
+					} finally {
+						inFlight.release();
+					}
+				}
+			});
+		}
+		inFlight.acquireUninterruptibly(maxInFlight);
+	}
+
+	/**
+	 * Accepts connections on the loopback interface, each served on its own
+	 * thread, until the process is stopped.
+	 */
+	public void serve(int port) throws IOException {
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		System.err.println("listening on "+server.getLocalSocketAddress());
+		while (true) {
+			final Socket socket = server.accept();
+			socket.setTcpNoDelay(true);
+			Thread connection = new Thread(new Runnable() {
+				public void run() {
+					try {
+						serve(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)),
+							new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+					} catch (IOException e) {
+						System.err.println("connection failed: "+e.getMessage());
+					} finally {
+						try {
+							socket.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			});
+			connection.setDaemon(true);
+			connection.start();
+		}
+	}
+
+	public String stats() {
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		return String.format("%s\terrors=%d\tthroughput_per_s=%.1f\t%s", STATS, errors.get(), latency.getCount() / seconds, latency.summary());
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private static void write(Writer out, String line) throws IOException {
+		synchronized (out) {
+			out.write(line);
+			out.write('\n');
+			out.flush();
+		}
+	}
+
+	/**
+	 * Lines joined into one tab- and newline-free field: backslash, tab,
+	 * newline and carriage return are written as \\, \t, \n and \r, and lines
+	 * are separated by \n.
+	 */
+	public static String escape(List<String> lines) {
+		StringBuilder result = new StringBuilder();
+		for (int i=0; i<lines.size(); ++i) {
+			if (i > 0) result.append("\\n");
+			String line = lines.get(i);
+			for (int c=0; c<line.length(); ++c) {
+				char ch = line.charAt(c);
+				switch (ch) {
+				case '\\': result.append("\\\\"); break;
+				case '\t': result.append("\\t"); break;
+				case '\n': result.append("\\n"); break;
+				case '\r': result.append("\\r"); break;
+				default: result.append(ch);
+				}
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Inverse of escape(), except that a newline inside a line comes back as
+	 * a line break. An empty field is no lines.
+	 */
+	public static List<String> unescape(String field) {
+		List<String> lines = new ArrayList<String>();
+		if (field.isEmpty()) return lines;
+		StringBuilder line = new StringBuilder();
+		for (int c=0; c<field.length(); ++c) {
+			char ch = field.charAt(c);
+			if (ch != '\\' || c + 1 == field.length()) {
+				line.append(ch);
+				continue;
+			}
+			char next = field.charAt(++c);
+			switch (next) {
+			case 'n':
+				lines.add(line.toString());
+				line.setLength(0);
+				break;
+			case 't': line.append('\t'); break;
+			case 'r': line.append('\r'); break;
+			default: line.append(next);
+			}
+		}
+		lines.add(line.toString());
+		return lines;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Arguments are: <modelPath> [-port <port>] [-threads <numThreads>] [-statsEvery <seconds>]");
+			return;
+		}
+		int port = -1;
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		int statsEvery = 0;
+		for (int i=1; i+1<args.length; i+=2) {
+			if (args[i].equals("-port")) port = Integer.parseInt(args[i+1]);
+			else if (args[i].equals("-threads")) numThreads = Integer.parseInt(args[i+1]);
+			else if (args[i].equals("-statsEvery")) statsEvery = Integer.parseInt(args[i+1]);
+			else throw new RuntimeException(String.format("Unknown argument: %s", args[i]));
+		}
+
+		long start = System.nanoTime();
+		PostTypeModel model = PostTypeModel.load(new File(args[0]));
+		List<FeatureExtractor> featureExtractors = MainLibLinear.modelExtractors(model, args[0]);
+		System.err.println(String.format("loaded model from %s in %d ms", args[0], (System.nanoTime() - start) / 1000000));
+		final ClassificationServer server = new ClassificationServer(model, featureExtractors, numThreads);
+
+		if (statsEvery > 0) {
+			final long period = statsEvery * 1000L;
+			Thread reporter = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (true) {
+							Thread.sleep(period);
+							System.err.println(server.stats());
+						}
+					} catch (InterruptedException e) {
+					}
+				}
+			});
+			reporter.setDaemon(true);
+			reporter.start();
+		}
+
+		if (port >= 0) {
+			server.serve(port);
+		} else {
+			server.serve(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+				new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+			System.err.println(server.stats());
+			server.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+package main;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import main.MainLibLinear.SimpleFeatureExtractor;
+import util.TextNormalizer;
+import util.f;
+
+/**
+ * Differential check of TextNormalizer against the regex cleanLine, in
+ * English and German mode and with the MONEY rules on and off. Checks every
+ * line of the files (or of the files in the directories) given as arguments,
+ * then a batch of random lines built from the tricky pieces of the rules.
+ * Exits non-zero on the first mismatch.
+ *
+ * Arguments: [fileOrDir ...] [-random <numLines>]
+ */
+public class CleanLineCheck {
+
+	private static final String[] PIECES = new String[] {
+		"[url", "[URL=http://a.b]", "[/url]", "[", "]", "url", "x.com", ".org", ".net", "www.foo.com/bar", ".co",
+		"$", "$5", "12$", "$1.50", "$1234", "1$2$3", ".", "..", "!", "?", ";", ":", "+", "(", ")", "\"",
+		"#", "0", "42", ",", " ", "  ", "\t", "a", "Z", "word", "Suche", "\u00fc", "\u00c4", "\u0130", "\u03a3",
+		"\uD83D\uDE00", "\u2028", "\u0085", "\r", "\n", "_"
+	};
+
+	public static void main(String[] args) {
+		List<String> lines = new ArrayList<String>();
+		int numRandom = 200000;
+		for (int i=0; i<args.length; ++i) {
+			if (args[i].equals("-random")) {
+				numRandom = Integer.parseInt(args[++i]);
+			} else {
+				addLines(new File(args[i]), lines);
+			}
+		}
+		int fromFiles = lines.size();
+		Random rand = new Random(0);
+		for (int i=0; i<numRandom; ++i) {
+			StringBuilder line = new StringBuilder();
+			int numPieces = rand.nextInt(12);
+			for (int p=0; p<numPieces; ++p) {
+				line.append(PIECES[rand.nextInt(PIECES.length)]);
+			}
+			lines.add(line.toString());
+		}
+
+		for (boolean money : new boolean[] {false, true}) {
+			TextNormalizer normalizer = new TextNormalizer(money);
+			for (boolean isGerm : new boolean[] {false, true}) {
+				for (String line : lines) {
+					String expected = SimpleFeatureExtractor.cleanLineRegex(line, isGerm, money);
+					String actual = normalizer.normalize(line);
+					if (!expected.equals(actual)) {
+						System.out.printf("MISMATCH (money=%b, german=%b)\n", money, isGerm);
+						System.out.println("line     : ["+escape(line)+"]");
+						System.out.println("regex    : ["+escape(expected)+"]");
+						System.out.println("compiled : ["+escape(actual)+"]");
+						System.exit(1);
+					}
+				}
+			}
+		}
+		System.out.printf("%d lines from files and %d random lines identical (english, german, money on and off)\n", fromFiles, numRandom);
+	}
+
+	private static void addLines(File file, List<String> lines) {
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children == null) return;
+			for (File child : children) {
+				addLines(child, lines);
+			}
+		} else {
+			lines.addAll(f.readLinesHard(file.getPath()));
+		}
+	}
+
+	private static String escape(String s) {
+		StringBuilder result = new StringBuilder();
+		for (int i=0; i<s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c < 0x20 || c > 0x7e) result.append(String.format("\\u%04x", (int) c));
+			else result.append(c);
+		}
+		return result.toString();
+	}
+
+}
@@ -1,6 +1,9 @@
 package main;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -8,30 +11,98 @@ import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 
 import de.bwaldvogel.liblinear.SolverType;
 import util.Classifier;
+import util.CompactCounter;
 import util.Counter;
 import util.CounterInterface;
+import util.CharNGramHasher;
 import util.CounterMap;
+import util.CountMinSketch;
 import util.EnglishStemmer;
 import util.EnglishStopWords;
+import util.FeatureCache;
+import util.FeatureKey;
+import util.FeatureKeyIndexer;
+import util.FeatureSink;
 import util.GermanStemmer;
 import util.GermanStopWords;
 import util.HashMapIndexer;
+import util.HashingIndexer;
+import util.HyperparameterSweep;
 import util.Indexer;
 import util.IntCounter;
 import util.LibLinearWrapper;
+import util.NearDuplicates;
+import util.OnlineLinearClassifier;
 import util.Pair;
+import util.PipelineMetrics;
+import util.PostTypeModel;
+import util.SparseDataset;
 import util.PriorityQueue;
+import util.TextNormalizer;
+import util.TopK;
 import util.f;
 
 public class MainLibLinear {
 	public static String german;
 	public static double bias_featID;
+	public static int numExtractionThreads = Runtime.getRuntime().availableProcessors();
+	public static int numPredictionThreads = Runtime.getRuntime().availableProcessors();
+	public static int numTrainingThreads = Runtime.getRuntime().availableProcessors();
+	//public static SolverType solverType = SolverType.MCSVM_CS;
+	public static SolverType solverType = SolverType.L2R_L2LOSS_SVC;
+	public static double C = 0.0002;
+	public static double eps = 1e-7;
+	// grid tried by sweep when none is given
+	public static final String DEFAULT_SWEEP_SOLVERS = "L2R_L2LOSS_SVC:L2R_LR:MCSVM_CS";
+	public static final String DEFAULT_SWEEP_CS = "0.00005:0.0002:0.001:0.01:0.1:1";
+	// OnlineLinearClassifier settings for a new online model; a resumed one keeps its own
+	public static double onlineLearningRate = 0.5;
+	public static double onlineL2 = 1e-6;
+	public static int onlineEpochs = 1;
+	public static final int EXTRACTION_QUEUE_PER_THREAD = 16;
+	// > 0 hashes features into 2^featureHashBits ids instead of keeping a string dictionary
+	public static int featureHashBits = Integer.parseInt(System.getProperty("featureHashBits", "0"));
+	public static boolean signedFeatureHashing = Boolean.parseBoolean(System.getProperty("signedFeatureHashing", "true"));
+	public static boolean keepHashedFeatureNames = Boolean.parseBoolean(System.getProperty("keepHashedFeatureNames", "true"));
+	// directory for featurized data cached by readDataCached, null to always featurize
+	public static String featureCacheDir = System.getProperty("featureCacheDir");
+	// file to save the trained model to (see classify), null to not save it
+	public static String modelPath = System.getProperty("modelPath");
+	// > 1 drops features seen in fewer threads (estimated by a first pass, see readDataCached)
+	public static int minFeatureCount = Integer.parseInt(System.getProperty("minFeatureCount", "1"));
+	// count-min sketch for that first pass: depth rows of 2^bits counters
+	public static int featureSketchBits = 20;
+	public static int featureSketchDepth = 4;
+	// > 0 treats threads whose initiator texts are at least this similar (MinHash
+	// estimate of the Jaccard similarity of char shingles) as one, see nearDuplicateRepresentatives
+	public static double dedupThreshold = Double.parseDouble(System.getProperty("dedupThreshold", "0"));
+	public static int dedupBands = 16;
+	public static int dedupRows = 4;
+	// file to write per-stage timings to as JSON (see PipelineMetrics), null to not record them
+	public static String metricsPath = System.getProperty("metricsPath");
+	static final PipelineMetrics.Stage DEDUP_STAGE = PipelineMetrics.stage("dedup");
+	static final PipelineMetrics.Stage READ_STAGE = PipelineMetrics.stage("read");
+	static final PipelineMetrics.Stage CLEAN_STAGE = PipelineMetrics.stage("cleanLine");
+	static final PipelineMetrics.Stage WORD_NGRAM_STAGE = PipelineMetrics.stage("wordNGrams");
+	static final PipelineMetrics.Stage CHAR_NGRAM_STAGE = PipelineMetrics.stage("charNGrams");
+	static final PipelineMetrics.Stage INDEX_STAGE = PipelineMetrics.stage("index");
+	static final PipelineMetrics.Stage TRAIN_STAGE = PipelineMetrics.stage("train");
+	static final PipelineMetrics.Stage PREDICT_STAGE = PipelineMetrics.stage("predict");
+	static final PipelineMetrics.Stage WEIGHTS_STAGE = PipelineMetrics.stage("weights");
+	// bump when a change to feature extraction should invalidate cached features
+	public static final int FEATURE_CACHE_VERSION = 2;
 
 	public static class InputDatum {
 		public List<String> initiatorText;
@@ -82,13 +153,37 @@ public class MainLibLinear {
 			}
            
 		}
+		
+		/**
+		 * A thread given as text rather than read from threadsPath, e.g. by
+		 * ClassificationServer. It has no part of speech tags.
+		 */
+		public InputDatum(List<String> initiatorText, List<String> initiatorOthersText, List<String> respondersText, String userID) {
+			this.initiatorText = initiatorText;
+			this.initiatorOthersText = initiatorOthersText;
+			this.respondersText = respondersText;
+			this.initiatorPOSText = new ArrayList<String>();
+			this.initiatorOthersPOSText = new ArrayList<String>();
+			this.respondersPOSText = new ArrayList<String>();
+			this.user = userID;
+		}
 	}
 	
 	public static interface FeatureExtractor {
 		public CounterInterface<String> extractFeatures(InputDatum thread, int label);
 	}
 	
-	public static class SimpleFeatureExtractor implements FeatureExtractor {
+	/**
+	 * Extractor that writes packed feature keys (see FeatureKey) and values
+	 * straight into a reusable sink instead of returning a counter of names.
+	 * Writes follow Counter.setCount semantics. Given a hasher, it may write
+	 * FeatureKey.hashed ids (already signed) for features it hashes itself.
+	 */
+	public static interface SinkFeatureExtractor extends FeatureExtractor {
+		public void extractFeatures(InputDatum thread, int label, HashingIndexer hasher, FeatureSink features);
+	}
+	
+	public static class SimpleFeatureExtractor implements SinkFeatureExtractor {
 
 		public static final boolean USE_WORD_NGRAM_FEATURES = true;
 		public static final boolean USE_CHAR_NGRAM_FEATURES = true;
@@ -108,7 +203,36 @@ public class MainLibLinear {
 		public static final boolean MONEY = false;
 		public static final boolean ISNUMFEAT = false;
 		
+		/**
+		 * The settings above, as part of the feature cache key.
+		 */
+		public static String describeConfig() {
+			return "word="+USE_WORD_NGRAM_FEATURES+" char="+USE_CHAR_NGRAM_FEATURES+" pos="+USE_POS_FEATURES
+				+" binsWord="+USE_BINS_WORDGRAM+" binsChar="+USE_BINS_CHARGRAM+" lineType="+USE_LINE_TYPE_FEATURES
+				+" charLength="+USE_CHAR_LENGTH_FEATURES+" tokenLength="+USE_TOKEN_LENGTH_FEATURES+" sentLength="+USE_SENT_LENGTH_FEATURES
+				+" rank="+USE_RANK_FEATURES+" totalPosts="+USE_TOTALPOSTS_FEATURES+" reputation="+USE_REPUTATION_FEATURES
+				+" charN="+MIN_CHAR_N+"-"+MAX_CHAR_N+" stopWords="+REMOVE_STOP_WORDS+" money="+MONEY+" isNum="+ISNUMFEAT;
+		}
+		
+		private static final ThreadLocal<TextNormalizer> normalizer = new ThreadLocal<TextNormalizer>() {
+			protected TextNormalizer initialValue() {
+				return new TextNormalizer(MONEY);
+			}
+		};
+		
 		public static String cleanLine(String line, boolean isGerm) {
+			return normalizer.get().normalize(line);
+		}
+		
+		/**
+		 * The original regex implementation of cleanLine, kept as the reference
+		 * that TextNormalizer is checked against (see CleanLineCheck).
+		 */
+		public static String cleanLineRegex(String line, boolean isGerm) {
+			return cleanLineRegex(line, isGerm, MONEY);
+		}
+		
+		static String cleanLineRegex(String line, boolean isGerm, boolean money) {
 			line = line.toLowerCase().trim();
 
 			line = line.replaceAll(",", "");
@@ -119,7 +243,7 @@ public class MainLibLinear {
 			line = line.replaceAll("[^ ]*[.]((com)|(org)|(net))[^ ]*", "URL URL_$1");
 
 			// Money
-			if (MONEY) {
+			if (money) {
 				line = line.replaceAll("([0-9]*)[$]([0-9]*)([.][0-9]*)?", "MONEY$1$2");
 				line = line.replaceAll("MONEY[0-9][0-9][0-9][0-9]+", "MONEY_four_plus");
 				line = line.replaceAll("MONEY[0-9][0-9][0-9]", "MONEY_three");
@@ -138,6 +262,70 @@ public class MainLibLinear {
 			return line;
 		}
 		
+		/**
+		 * Writes the key, unless it is FeatureKey.NONE: a feature that the
+		 * locked dictionaries of a loaded model do not know.
+		 */
+		private static void setKey(FeatureSink features, long key, double value) {
+			if (key != FeatureKey.NONE) features.setCount(key, value);
+		}
+		
+		/**
+		 * Writes the NAMED feature, or with a hasher its hashed id (see
+		 * setHashed), which interns nothing.
+		 */
+		static void setNamed(FeatureSink features, HashingIndexer hasher, String name, double value) {
+			if (hasher == null) {
+				setKey(features, FeatureKey.named(name), value);
+			} else {
+				setHashed(features, hasher, FeatureKey.Template.NAMED, "", 0, name, null, value);
+			}
+		}
+		
+		/**
+		 * Writes the word unigram, or with nextWord the bigram, under the prefix
+		 * name, whose id in FeatureKey.prefixes is prefix. With a hasher the
+		 * feature is hashed from its characters instead, so neither the words
+		 * nor the prefix need be interned.
+		 */
+		private static void setWordNGram(FeatureSink features, HashingIndexer hasher, String name, int prefix, String word, String nextWord, boolean stem, double value) {
+			if (hasher == null) {
+				setKey(features, nextWord == null ? FeatureKey.wordUnigram(prefix, word, stem) : FeatureKey.wordBigram(prefix, word, nextWord, stem), value);
+			} else {
+				setHashed(features, hasher, stem ? FeatureKey.Template.WORD_NGRAM_STEM : FeatureKey.Template.WORD_NGRAM, name, nextWord == null ? 1 : 2, word, nextWord, value);
+			}
+		}
+		
+		private static void setUser(FeatureSink features, HashingIndexer hasher, FeatureKey.Template template, String name, int prefix, String user, double value) {
+			if (hasher == null) {
+				setKey(features, FeatureKey.user(template, prefix, user), value);
+			} else {
+				setHashed(features, hasher, template, name, 0, user, null, value);
+			}
+		}
+		
+		/**
+		 * Writes the signed hashed id of the feature that FeatureKey.hash
+		 * describes, recording its name if the hasher wants one. The name is
+		 * only rendered then.
+		 */
+		private static void setCharNGram(FeatureSink features, HashingIndexer hasher, String name, int prefix, char[] chars, int start, int n, double value) {
+			if (hasher == null) {
+				setKey(features, FeatureKey.charNGram(prefix, chars, start, n), value);
+			} else {
+				setHashed(features, hasher, FeatureKey.Template.CHAR_NGRAM, name, n, new String(chars, start, n), null, value);
+			}
+		}
+		
+		private static void setHashed(FeatureSink features, HashingIndexer hasher, FeatureKey.Template template, String name, int n, String payload, String payload2, double value) {
+			long hash = FeatureKey.hash(template, name, n, payload, payload2);
+			int featId = hasher.getIndex(hash);
+			if (hasher.wantsName(featId, hash)) {
+				hasher.setName(featId, hash, FeatureKey.name(template, name, n, payload2 == null ? payload : payload+"_"+payload2));
+			}
+			features.setCount(FeatureKey.hashed(featId), value * hasher.getSign(hash));
+		}
+		
 		public static String[] removeStopWords(String[] words, boolean isGerm) {
 			
 			if (isGerm) {
@@ -162,7 +350,25 @@ public class MainLibLinear {
 	
 		}
 
+		/**
+		 * The sink features, with their names rendered.
+		 */
 		public CounterInterface<String> extractFeatures(InputDatum thread, int label) {
+			FeatureSink sink = new FeatureSink();
+			extractFeatures(thread, label, null, sink);
+			CounterInterface<String> features = new CompactCounter<String>(sink.size());
+			for (int i=0; i<sink.size(); ++i) {
+				features.setCount(FeatureKey.name(sink.getKey(i)), sink.getValue(i));
+			}
+			return features;
+		}
+
+		/**
+		 * With a hasher, every feature but the bias is written as a hashed id,
+		 * hashed from the characters of its name (see setHashed and
+		 * addHashedCharNGramFeatures), and nothing is interned.
+		 */
+		public void extractFeatures(InputDatum thread, int label, HashingIndexer hasher, FeatureSink features) {
 			
 			boolean isGerm = false;
 			if (MainLibLinear.german.equals("true")) {
@@ -176,8 +382,7 @@ public class MainLibLinear {
             /*String[] textTypes = new String[] {"INIT", "INIT_POS", "INITOTHERS_POS", "INITOTHERS", "RESPONDERS", "RESPONDERS_POS"};
            	List<String>[] texts = new List[] {thread.initiatorText, thread.initiatorPOSText, thread.initiatorOthersPOSText, thread.initiatorOthersText, thread.respondersText, thread.respondersPOSText};*/
 			
-			CounterInterface<String> features = new Counter<String>();
-			features.setCount("BIAS", 1.0);
+			features.setCount(FeatureKey.bias(), 1.0);
 			
 			for (int t=0; t<textTypes.length; ++t) {
 				String textType = textTypes[t];
@@ -187,8 +392,8 @@ public class MainLibLinear {
                     
                     if (USE_CHAR_LENGTH_FEATURES) {
                         
-                        addCharLengthFeatures(features, textType, thread.label, text);
-                        addCharLengthFeatures(features, "", thread.label, text);
+                        addCharLengthFeatures(features, hasher, textType, thread.label, text);
+                        addCharLengthFeatures(features, hasher, "", thread.label, text);
                         
                         
                     }
@@ -212,7 +417,7 @@ public class MainLibLinear {
                         if (USE_POS_FEATURES) {
                             for (List<String> list : thread2) {
                                 for (String line: list) {
-                                    addPOSFeatures(features, textType, line, list, isGerm);
+                                    addPOSFeatures(features, hasher, textType, line, list, isGerm);
                                 }
                                 
                             }
@@ -224,35 +429,41 @@ public class MainLibLinear {
 					else {
 						
 						if (USE_BINS_WORDGRAM) {
-							addWordNGramBinFeatures(features, textType, text, isGerm);
-	                        addWordNGramBinFeatures(features, "", text, isGerm);
+							addWordNGramBinFeatures(features, hasher, textType, text, isGerm);
+	                        addWordNGramBinFeatures(features, hasher, "", text, isGerm);
 						}
 						if (USE_BINS_CHARGRAM) {
-							addCharNGramBinFeatures(features, textType, text, isGerm);
-	                        addCharNGramBinFeatures(features, "", text, isGerm);
+							addCharNGramBinFeatures(features, hasher, textType, text, isGerm);
+	                        addCharNGramBinFeatures(features, hasher, "", text, isGerm);
 						}
 							for (int l=0; l<text.size(); ++l) {
 								String line = text.get(l);
 								if (line.trim().equals("")) continue;
+								CLEAN_STAGE.begin();
 								line = cleanLine(line, isGerm);
+								CLEAN_STAGE.end(1);
 								String lineType = (textType.equals("INIT") && l == 0 ? "TITLE" : "BODY");
 						
 								if (USE_WORD_NGRAM_FEATURES) {
+									WORD_NGRAM_STAGE.begin();
 									if (USE_LINE_TYPE_FEATURES) {
-										addWordNGramFeatures(features, lineType+"_"+textType, line, isGerm);
-										addWordNGramFeatures(features, lineType, line, isGerm);
+										addWordNGramFeatures(features, hasher, lineType+"_"+textType, line, isGerm);
+										addWordNGramFeatures(features, hasher, lineType, line, isGerm);
 									}
-									addWordNGramFeatures(features, textType, line, isGerm);
-									addWordNGramFeatures(features, "", line, isGerm);
+									addWordNGramFeatures(features, hasher, textType, line, isGerm);
+									addWordNGramFeatures(features, hasher, "", line, isGerm);
+									WORD_NGRAM_STAGE.end(1);
 								}
 						
 								if (USE_CHAR_NGRAM_FEATURES) {
+									CHAR_NGRAM_STAGE.begin();
 									if (USE_LINE_TYPE_FEATURES) {
-										addCharNGramFeatures(features, lineType+"_"+textType, line, isGerm);
-										addCharNGramFeatures(features, lineType, line, isGerm);
+										addCharNGramFeatures(features, hasher, lineType+"_"+textType, line, isGerm);
+										addCharNGramFeatures(features, hasher, lineType, line, isGerm);
 									}
-									addCharNGramFeatures(features, textType, line, isGerm);
-									addCharNGramFeatures(features, "", line, isGerm);
+									addCharNGramFeatures(features, hasher, textType, line, isGerm);
+									addCharNGramFeatures(features, hasher, "", line, isGerm);
+									CHAR_NGRAM_STAGE.end(1);
 								}
                             
 							}
@@ -260,11 +471,9 @@ public class MainLibLinear {
                     }
                 }
             }
-			
-			return features;
 		}
 		
-		private static void addWordNGramBinFeatures(CounterInterface<String> features, String name, List<String> text, Boolean isGerm) {
+		private static void addWordNGramBinFeatures(FeatureSink features, HashingIndexer hasher, String name, List<String> text, Boolean isGerm) {
 			//get the total counts, to be put into bins and feature indexer
 			HashMap<String, Double> counts = new HashMap<String, Double>();
 			
@@ -362,10 +571,10 @@ public class MainLibLinear {
 					//Binning
 					double th1 = 4.0;
 					if (count < th1) {
-	            		features.setCount(feat+"_BIN0", 1.0);
+	            		setNamed(features, hasher, feat+"_BIN0", 1.0);
 	            	}
 					else {
-	                	features.setCount(feat+"_BIN10", 1.0);
+	                	setNamed(features, hasher, feat+"_BIN10", 1.0);
 	            	}
 				}
 			}
@@ -377,19 +586,20 @@ public class MainLibLinear {
 					//Binning
 					double th1 = 1.0;
 					if (count <= th1) {
-	            		features.setCount(feat+"_BIN0", 1.0);
+	            		setNamed(features, hasher, feat+"_BIN0", 1.0);
 	            	}
 					else {
-	                	features.setCount(feat+"_BIN1", 1.0);
+	                	setNamed(features, hasher, feat+"_BIN1", 1.0);
 	            	}
 				}
 			}
 		}
 		
-		private static void addWordNGramFeatures(CounterInterface<String> features, 
+		static void addWordNGramFeatures(FeatureSink features, HashingIndexer hasher, 
 			String name, String line, Boolean isGerm) {
 			
 			String[] words = line.trim().split("\\s+");
+			int prefix = hasher == null ? FeatureKey.prefixId(name) : -1;
 			
 			if (REMOVE_STOP_WORDS) {
 				words = removeStopWords(words, isGerm);
@@ -408,8 +618,8 @@ public class MainLibLinear {
 								found = true;
 								String num = words[j].replaceAll("[^#]", "");
 								
-								features.setCount(name+"_WORDNGRAM_N2_"+word+"_"+num, 1.0);
-								features.setCount(name+"_WORDNGRAM_N2_"+GermanStemmer.stem(word)+"_"+num, 1.0);
+								setWordNGram(features, hasher, name, prefix, word, num, false, 1.0);
+								setWordNGram(features, hasher, name, prefix, GermanStemmer.stem(word), num, false, 1.0);
 								
 								break mainloop;
 							}	
@@ -425,18 +635,18 @@ public class MainLibLinear {
 				
 				if (word.length() == 0) continue;
 				
-				features.setCount(name+"_WORDNGRAM_N1_"+word, 1.0);
-				if (isGerm) features.setCount(name+"_WORDNGRAM_N1_STEM_"+GermanStemmer.stem(word), 1.0);
-				else features.setCount(name+"_WORDNGRAM_N1_STEM_"+EnglishStemmer.stem(word), 1.0);
+				setWordNGram(features, hasher, name, prefix, word, null, false, 1.0);
+				if (isGerm) setWordNGram(features, hasher, name, prefix, GermanStemmer.stem(word), null, true, 1.0);
+				else setWordNGram(features, hasher, name, prefix, EnglishStemmer.stem(word), null, true, 1.0);
 			}
 
 			for (int i=0; i<words.length-1; ++i) {
 				String word = words[i];				
 				String nextWord = words[i+1];
 			
-				features.setCount(name+"_WORDNGRAM_N2_"+word+"_"+nextWord, 1.0);
-				if (isGerm) features.setCount(name+"_WORDNGRAM_N2_STEM_"+GermanStemmer.stem(word)+"_"+GermanStemmer.stem(nextWord), 1.0);
-				else features.setCount(name+"_WORDNGRAM_N2_STEM_"+EnglishStemmer.stem(word)+"_"+EnglishStemmer.stem(nextWord), 1.0);
+				setWordNGram(features, hasher, name, prefix, word, nextWord, false, 1.0);
+				if (isGerm) setWordNGram(features, hasher, name, prefix, GermanStemmer.stem(word), GermanStemmer.stem(nextWord), true, 1.0);
+				else setWordNGram(features, hasher, name, prefix, EnglishStemmer.stem(word), EnglishStemmer.stem(nextWord), true, 1.0);
 			}
 			
 			//uncomment to include trigrams
@@ -444,13 +654,13 @@ public class MainLibLinear {
 				String word = words[i];
 				String nextWord = words[i+1];
 				String nextnextWord = words[i+2];
-				features.setCount(name+"_WORDNGRAM_N3_"+word+"_"+nextWord+"_"+nextnextWord, 1.0);
-				if (isGerm) features.setCount(name+"_WORDNGRAM_N3_STEM_"+GermanStemmer.stem(word)+"_"+GermanStemmer.stem(nextWord)+"_"+GermanStemmer.stem(nextnextWord), 1.0);
-				else features.setCount(name+"_WORDNGRAM_N3_STEM_"+EnglishStemmer.stem(word)+"_"+EnglishStemmer.stem(nextWord)+"_"+EnglishStemmer.stem(nextnextWord), 1.0);
+				setNamed(features, hasher, name+"_WORDNGRAM_N3_"+word+"_"+nextWord+"_"+nextnextWord, 1.0);
+				if (isGerm) setNamed(features, hasher, name+"_WORDNGRAM_N3_STEM_"+GermanStemmer.stem(word)+"_"+GermanStemmer.stem(nextWord)+"_"+GermanStemmer.stem(nextnextWord), 1.0);
+				else setNamed(features, hasher, name+"_WORDNGRAM_N3_STEM_"+EnglishStemmer.stem(word)+"_"+EnglishStemmer.stem(nextWord)+"_"+EnglishStemmer.stem(nextnextWord), 1.0);
 			}*/
 		}
 			
-		private static void addCharNGramBinFeatures(CounterInterface<String> features, String name, 
+		private static void addCharNGramBinFeatures(FeatureSink features, HashingIndexer hasher, String name, 
 				List<String> text, Boolean isGerm) {
 			boolean found = false;
 			
@@ -481,33 +691,102 @@ public class MainLibLinear {
 					double th2 = 50.0;
 					double th3 = 100.0;
 					if (count < th1) {
-		           		features.setCount(feat+"_BIN0", 1.0);
-		               	features.setCount(feat+"_BIN1", 0.0);
-		               	features.setCount(feat+"_BIN2", 0.0);
-		               	features.setCount(feat+"_BIN3", 0.0);
+		           		setNamed(features, hasher, feat+"_BIN0", 1.0);
+		               	setNamed(features, hasher, feat+"_BIN1", 0.0);
+		               	setNamed(features, hasher, feat+"_BIN2", 0.0);
+		               	setNamed(features, hasher, feat+"_BIN3", 0.0);
 		           	}
 					else if ((count >= th1) && (count < th2)) {
-	            		features.setCount(feat+"_BIN0", 0.0);
-		               	features.setCount(feat+"_BIN1", 1.0);
-	                	features.setCount(feat+"_BIN2", 0.0);
-	                	features.setCount(feat+"_BIN3", 0.0);
+	            		setNamed(features, hasher, feat+"_BIN0", 0.0);
+		               	setNamed(features, hasher, feat+"_BIN1", 1.0);
+	                	setNamed(features, hasher, feat+"_BIN2", 0.0);
+	                	setNamed(features, hasher, feat+"_BIN3", 0.0);
 	                }
 					else if ((count >= th2) && (count < th3)) {
-	            		features.setCount(feat+"_BIN0", 0.0);
-		               	features.setCount(feat+"_BIN1", 0.0);
-	                	features.setCount(feat+"_BIN2", 1.0);
-	                	features.setCount(feat+"_BIN3", 0.0);
+	            		setNamed(features, hasher, feat+"_BIN0", 0.0);
+		               	setNamed(features, hasher, feat+"_BIN1", 0.0);
+	                	setNamed(features, hasher, feat+"_BIN2", 1.0);
+	                	setNamed(features, hasher, feat+"_BIN3", 0.0);
 	                }
 					else {
-		           		features.setCount(feat+"_BIN0", 0.0);
-		               	features.setCount(feat+"_BIN1", 0.0);
-		              	features.setCount(feat+"_BIN2", 0.0);
-		              	features.setCount(feat+"_BIN3", 1.0);
+		           		setNamed(features, hasher, feat+"_BIN0", 0.0);
+		               	setNamed(features, hasher, feat+"_BIN1", 0.0);
+		              	setNamed(features, hasher, feat+"_BIN2", 0.0);
+		              	setNamed(features, hasher, feat+"_BIN3", 1.0);
 		           	}
 				}
 		}
 		
-		private static void addCharNGramFeatures(CounterInterface<String> features, String name, 
+		static void addCharNGramFeatures(FeatureSink features, HashingIndexer hasher, 
+				String name, String line, Boolean isGerm) {
+			// the german "suche" special case needs the strings
+			if (hasher != null && !(isGerm && ISNUMFEAT)) {
+				addHashedCharNGramFeatures(features, hasher, name, line);
+			} else {
+				addCharNGramStringFeatures(features, hasher, name, line, isGerm);
+			}
+		}
+		
+		private static final ThreadLocal<HashedCharNGramVisitor> hashedCharNGrams = new ThreadLocal<HashedCharNGramVisitor>() {
+			protected HashedCharNGramVisitor initialValue() {
+				return new HashedCharNGramVisitor();
+			}
+		};
+		
+		/**
+		 * Same features as addCharNGramFeatures, hashed straight from the chars of
+		 * the line with CharNGramHasher. Unlike the string version this also covers
+		 * the n-grams in the last MAX_CHAR_N chars, so short lines get n-grams too.
+		 * Distinct n-grams of one thread that land on the same id are merged, not
+		 * summed.
+		 */
+		private static void addHashedCharNGramFeatures(FeatureSink features, HashingIndexer hasher, String name, String line) {
+			HashedCharNGramVisitor visitor = hashedCharNGrams.get();
+			visitor.reset(features, hasher, name, line);
+			CharNGramHasher.hashNGrams(visitor.chars, 0, line.length(), MIN_CHAR_N, MAX_CHAR_N, FeatureKey.charNGramSeed(name), visitor);
+			visitor.reset(null, null, null, "");
+		}
+		
+		private static class HashedCharNGramVisitor implements CharNGramHasher.NGramVisitor {
+			char[] chars = new char[256];
+			FeatureSink features;
+			HashingIndexer hasher;
+			String name;
+			
+			void reset(FeatureSink features, HashingIndexer hasher, String name, String line) {
+				this.features = features;
+				this.hasher = hasher;
+				this.name = name;
+				if (chars.length < line.length()) chars = new char[2 * line.length()];
+				line.getChars(0, line.length(), chars, 0);
+			}
+			
+			public void visit(int n, int start, long hash) {
+				int featId = hasher.getIndex(hash);
+				if (hasher.wantsName(featId, hash)) {
+					hasher.setName(featId, hash, FeatureKey.name(FeatureKey.Template.CHAR_NGRAM, name, n, new String(chars, start, n)));
+				}
+				features.setCount(FeatureKey.hashed(featId), hasher.getSign(hash));
+			}
+		}
+		
+		private static final ThreadLocal<char[][]> lineChars = new ThreadLocal<char[][]>() {
+			protected char[][] initialValue() {
+				return new char[][] {new char[256]};
+			}
+		};
+		
+		/**
+		 * The chars of line, in a per-thread buffer that is reused.
+		 */
+		private static char[] getChars(String line) {
+			char[][] buffer = lineChars.get();
+			if (buffer[0].length < line.length()) buffer[0] = new char[2 * line.length()];
+			line.getChars(0, line.length(), buffer[0], 0);
+			return buffer[0];
+		}
+		
+		private static void addCharNGramStringFeatures(FeatureSink features, HashingIndexer hasher, String name, 
 				String line, Boolean isGerm) {
 			boolean found = false;
 			
@@ -515,6 +794,8 @@ public class MainLibLinear {
 			HashMap<String, Double> counts = new HashMap<String, Double>();
 			
 			int suche_pos = line.indexOf("suche");
+			int prefix = hasher == null ? FeatureKey.prefixId(name) : -1;
+			char[] chars = getChars(line);
 			
 			if (isGerm && ISNUMFEAT) {
 				String[] words = line.trim().split("\\s+");
@@ -536,6 +817,9 @@ public class MainLibLinear {
 				}
 			}
 			
+			// this bound skips the n-grams in the last MAX_CHAR_N chars, so lines
+			// that short get none; kept so that dictionary models and their
+			// results stay as they were (addHashedCharNGramFeatures covers them)
 			for (int n=MIN_CHAR_N; n<=MAX_CHAR_N; ++n) {
 				for (int i=0; i<line.length()-MAX_CHAR_N; ++i) {
 					
@@ -546,30 +830,25 @@ public class MainLibLinear {
 								String ngram = line.substring(i,i+n);
 								if (ngram.equals(" ")) continue;
 								
-								features.setCount(name+"_CHARNGRAM_N"+n+"_"+ngram, 1.0);
+								setCharNGram(features, hasher, name, prefix, chars, i, n, 1.0);
 							
 							}
 						}
 						
 						else {
-							String ngram = line.substring(i,i+n);
-							
-							features.setCount(name+"_CHARNGRAM_N"+n+"_"+ngram, 1.0);
+							setCharNGram(features, hasher, name, prefix, chars, i, n, 1.0);
 						}
 						
 					}
 					
 					else {
-						String ngram = line.substring(i,i+n);
-						
-						features.setCount(name+"_CHARNGRAM_N"+n+"_"+ngram, 1.0);
-						
+						setCharNGram(features, hasher, name, prefix, chars, i, n, 1.0);
 					}	
 				}
 			}
 		}
         
-        private static void addPOSFeatures(CounterInterface<String> features, String name, 
+        private static void addPOSFeatures(FeatureSink features, HashingIndexer hasher, String name, 
         		String line, List<String> list, boolean isGerm) {
         	
         	//get the total counts, to be put into bins and feature indexer
@@ -588,7 +867,7 @@ public class MainLibLinear {
         			String[] newLineSplit = newline.split("\\s+");
         			word = lineSplit[1] + " " + lineSplit[7] + " " + newLineSplit[1];
         		}
-        		features.setCount(name+"_"+word, 1.0);
+        		setNamed(features, hasher, name+"_"+word, 1.0);
         	}
             
         	else {
@@ -605,44 +884,47 @@ public class MainLibLinear {
         			word = lineSplit[1] + " " + lineSplit[2] + " " + newLineSplit[1];
         		}
         		
-        		features.setCount(name+"_"+word, 1.0);
+        		setNamed(features, hasher, name+"_"+word, 1.0);
         	}
 		}
         
-        private static void addRankFeatures(CounterInterface<String> features, String name, String threadId, String userID, HashMap<String,String> allRankThreadPairs) {
+        private static void addRankFeatures(FeatureSink features, HashingIndexer hasher, String name, String threadId, String userID, HashMap<String,String> allRankThreadPairs) {
             
+            int prefix = hasher == null ? FeatureKey.prefixId(name) : -1;
             for (String key: allRankThreadPairs.keySet()) {
-                if (key.equals(threadId)) features.setCount(name+"_RANK"+userID, 1.0);
+                if (key.equals(threadId)) setUser(features, hasher, FeatureKey.Template.RANK, name, prefix, userID, 1.0);
                 else {
                     String user = allRankThreadPairs.get(key);
-                    features.setCount(name+"_RANK"+user, 0.0);
+                    setUser(features, hasher, FeatureKey.Template.RANK, name, prefix, user, 0.0);
                 }
             }            
         }
         
-        private static void addTotalPostsFeatures(CounterInterface<String> features, String name, String threadId, String userID, HashMap<String,String> allTotalPostsThreadPairs) {
+        private static void addTotalPostsFeatures(FeatureSink features, HashingIndexer hasher, String name, String threadId, String userID, HashMap<String,String> allTotalPostsThreadPairs) {
             
+            int prefix = hasher == null ? FeatureKey.prefixId(name) : -1;
             for (String key: allTotalPostsThreadPairs.keySet()) {
-                if (key.equals(threadId)) features.setCount(name+"_TOTALPOSTS"+userID, 1.0);
+                if (key.equals(threadId)) setUser(features, hasher, FeatureKey.Template.TOTAL_POSTS, name, prefix, userID, 1.0);
                 else {
                     String user = allTotalPostsThreadPairs.get(key);
-                    features.setCount(name+"_TOTALPOSTS"+user, 0.0);
+                    setUser(features, hasher, FeatureKey.Template.TOTAL_POSTS, name, prefix, user, 0.0);
                 }
             }            
         }
         
-        private static void addReputationFeatures(CounterInterface<String> features, String name, String threadId, String userID, HashMap<String,String> allReputationThreadPairs) {
+        private static void addReputationFeatures(FeatureSink features, HashingIndexer hasher, String name, String threadId, String userID, HashMap<String,String> allReputationThreadPairs) {
             
+            int prefix = hasher == null ? FeatureKey.prefixId(name) : -1;
             for (String key: allReputationThreadPairs.keySet()) {
-                if (key.equals(threadId)) features.setCount(name+"_REPUTATION"+userID, 1.0);
+                if (key.equals(threadId)) setUser(features, hasher, FeatureKey.Template.REPUTATION, name, prefix, userID, 1.0);
                 else {
                     String user = allReputationThreadPairs.get(key);
-                    features.setCount(name+"_REPUTATION"+user, 0.0);
+                    setUser(features, hasher, FeatureKey.Template.REPUTATION, name, prefix, user, 0.0);
                 }
             }   
         }
         
-        private static void addCharLengthFeatures(CounterInterface<String> features, String name, 
+        private static void addCharLengthFeatures(FeatureSink features, HashingIndexer hasher, String name, 
         		String threadId, List<String> text) {
             
             int num_chars = 0;
@@ -656,20 +938,20 @@ public class MainLibLinear {
             
             if (num_chars < bin1) {
                 
-                features.setCount(name+"_LENGTH_CHAR_BIN0", 1.0);
-                features.setCount(name+"_LENGTH_CHAR_BIN1", 0.0);
+                setNamed(features, hasher, name+"_LENGTH_CHAR_BIN0", 1.0);
+                setNamed(features, hasher, name+"_LENGTH_CHAR_BIN1", 0.0);
 
             }
             
             else {
-                features.setCount(name+"_LENGTH_CHAR_BIN0", 0.0);
-                features.setCount(name+"_LENGTH_CHAR_BIN1", 1.0);
+                setNamed(features, hasher, name+"_LENGTH_CHAR_BIN0", 0.0);
+                setNamed(features, hasher, name+"_LENGTH_CHAR_BIN1", 1.0);
 
             }
                
         }
     
-        private static void addTokenLengthFeatures(CounterInterface<String> features, String name, String threadId, List<String> text) {
+        private static void addTokenLengthFeatures(FeatureSink features, HashingIndexer hasher, String name, String threadId, List<String> text) {
         
         int num_token = 0;
         for (String line : text) {
@@ -681,28 +963,28 @@ public class MainLibLinear {
         long rounded = Math.round(Math.log(num_token));
 
         if (num_token >= 200) {
-            features.setCount(name+"_LENGTH_TOKEN_BIN0", 1.0);
+            setNamed(features, hasher, name+"_LENGTH_TOKEN_BIN0", 1.0);
         }
-        else features.setCount(name+"_LENGTH_TOKEN_BIN0", 0.0);
+        else setNamed(features, hasher, name+"_LENGTH_TOKEN_BIN0", 0.0);
         
         if (num_token >= 500) {
-         features.setCount(name+"_LENGTH_TOKEN_BIN1", 1.0);
+         setNamed(features, hasher, name+"_LENGTH_TOKEN_BIN1", 1.0);
          }
-         else features.setCount(name+"_LENGTH_TOKEN_BIN1", 0.0);
+         else setNamed(features, hasher, name+"_LENGTH_TOKEN_BIN1", 0.0);
          
          if (num_token >= 100) {
-         features.setCount(name+"_LENGTH_TOKEN_BIN2", 1.0);
+         setNamed(features, hasher, name+"_LENGTH_TOKEN_BIN2", 1.0);
          }
-         else features.setCount(name+"_LENGTH_TOKEN_BIN2", 0.0);
+         else setNamed(features, hasher, name+"_LENGTH_TOKEN_BIN2", 0.0);
          
          if (num_token >= 750) {
-         features.setCount(name+"_LENGTH_TOKEN_BIN3", 1.0);
+         setNamed(features, hasher, name+"_LENGTH_TOKEN_BIN3", 1.0);
          }
-         else features.setCount(name+"_LENGTH_TOKEN_BIN3", 0.0);
+         else setNamed(features, hasher, name+"_LENGTH_TOKEN_BIN3", 0.0);
         
     }
         
-        private static void addSentLengthFeatures(CounterInterface<String> features, String name, String threadId, List<String> text) {
+        private static void addSentLengthFeatures(FeatureSink features, HashingIndexer hasher, String name, String threadId, List<String> text) {
             
             int num_sent = 0;
             for (String line : text) {
@@ -714,32 +996,64 @@ public class MainLibLinear {
             }
             
             if (num_sent >= 1) {
-                features.setCount(name+"_LENGTH_SENT_BIN0", 1.0);
+                setNamed(features, hasher, name+"_LENGTH_SENT_BIN0", 1.0);
             }
-            else features.setCount(name+"_LENGTH_SENT_BIN0", 0.0);
+            else setNamed(features, hasher, name+"_LENGTH_SENT_BIN0", 0.0);
             
             if (num_sent >= 2) {
-             features.setCount(name+"_LENGTH_SENT_BIN1", 1.0);
+             setNamed(features, hasher, name+"_LENGTH_SENT_BIN1", 1.0);
              }
-             else features.setCount(name+"_LENGTH_SENT_BIN1", 0.0);
+             else setNamed(features, hasher, name+"_LENGTH_SENT_BIN1", 0.0);
             
              if (num_sent >= 5) {
-             features.setCount(name+"_LENGTH_SENT_BIN2", 1.0);
+             setNamed(features, hasher, name+"_LENGTH_SENT_BIN2", 1.0);
              }
-             else features.setCount(name+"_LENGTH_SENT_BIN2", 0.0);
+             else setNamed(features, hasher, name+"_LENGTH_SENT_BIN2", 0.0);
             
             if (num_sent >= 10) {
-                features.setCount(name+"_LENGTH_SENT_BIN3", 1.0);
+                setNamed(features, hasher, name+"_LENGTH_SENT_BIN3", 1.0);
             }
-            else features.setCount(name+"_LENGTH_SENT_BIN3", 0.0);
+            else setNamed(features, hasher, name+"_LENGTH_SENT_BIN3", 0.0);
             
         }
     
 	}
 	
-    public static Pair<List<Pair<CounterInterface<Integer>,Integer>>, ArrayList<String>> readData(String labelsPath, 
-    	String threadsPath, List<FeatureExtractor> featureExtractors, Indexer<String> featureIndexer, Indexer<String> labelIndexer) {
-		List<String> labelsRaw = f.readLinesHard(labelsPath);
+    public static Pair<SparseDataset, ArrayList<String>> readData(String labelsPath, 
+    	String threadsPath, List<FeatureExtractor> featureExtractors, Indexer<FeatureKey> featureIndexer, Indexer<String> labelIndexer) {
+		return readData(labelsPath, threadsPath, featureExtractors, featureIndexer, labelIndexer, numExtractionThreads);
+	}
+
+    public static Pair<SparseDataset, ArrayList<String>> readData(String labelsPath, 
+    	String threadsPath, List<FeatureExtractor> featureExtractors, Indexer<FeatureKey> featureIndexer, Indexer<String> labelIndexer, int numThreads) {
+		return readData(labelsPath, threadsPath, null, featureExtractors, featureIndexer, labelIndexer, numThreads, null, null, 0);
+	}
+
+	/**
+	 * First pass of frequency pruning: adds each feature of every thread once
+	 * to documentFrequencies. Nothing is indexed.
+	 */
+	public static void countFeatures(String labelsPath, String threadsPath, List<FeatureExtractor> featureExtractors, Indexer<String> labelIndexer, CountMinSketch documentFrequencies) {
+		readData(labelsPath, threadsPath, null, featureExtractors, null, labelIndexer, numExtractionThreads, documentFrequencies, null, 0);
+	}
+
+	/**
+	 * Reads the labelled threads and featurizes them. With numThreads > 1 the
+	 * threads are read, cleaned and featurized on a bounded worker pool, but the
+	 * extracted features are indexed here, in dataOrder, so feature ids are the
+	 * same as for a serial run. With labelsPath null the threads in
+	 * unlabelledThreadIds, or if that is null every thread in threadsPath, are
+	 * read in that order and with label -1. Otherwise, with dedupThreshold > 0,
+	 * only the first of each group of near-duplicate labelled threads is kept,
+	 * so copies of a thread cannot end up on both sides of a train/test split.
+	 * Features that a locked feature indexer does not know are dropped, as are
+	 * features that pruneBy counts fewer than minCount times. With countInto
+	 * set, features are only counted there and the dataset is empty.
+	 */
+    public static Pair<SparseDataset, ArrayList<String>> readData(String labelsPath, 
+    	String threadsPath, List<String> unlabelledThreadIds, List<FeatureExtractor> featureExtractors, Indexer<FeatureKey> featureIndexer, Indexer<String> labelIndexer, int numThreads,
+    	CountMinSketch countInto, CountMinSketch pruneBy, int minCount) {
+		List<String> labelsRaw = labelsPath == null ? new ArrayList<String>() : f.readLinesHard(labelsPath);
 		// Read annotations (in Vern's canonicalised format)
 		CounterMap<String,Integer> threadIdToLabelCounter = new CounterMap<String,Integer>();
         
@@ -759,39 +1073,68 @@ public class MainLibLinear {
         }
 		
 		// Read threads and generate feature vectors
-		List<Pair<CounterInterface<Integer>,Integer>> data = new ArrayList<Pair<CounterInterface<Integer>,Integer>>();
-		List<String> threadIds = new ArrayList<String>(threadIdToLabelCounter.keySet());
-		Collections.shuffle(threadIds, new Random(0));
+		SparseDataset.Builder data = new SparseDataset.Builder();
+		List<String> threadIds;
+		if (labelsPath == null) {
+			threadIds = unlabelledThreadIds == null ? listThreadIds(threadsPath) : unlabelledThreadIds;
+		} else {
+			threadIds = new ArrayList<String>(threadIdToLabelCounter.keySet());
+			Collections.shuffle(threadIds, new Random(0));
+			if (dedupThreshold > 0) {
+				int[] representatives = nearDuplicateRepresentatives(threadsPath, threadIds);
+				List<String> kept = new ArrayList<String>();
+				for (int i=0; i<threadIds.size(); ++i) {
+					if (representatives[i] == i) kept.add(threadIds.get(i));
+				}
+				threadIds = kept;
+			}
+		}
         ArrayList<String> dataOrder = new ArrayList<String>();
                     
 		System.out.println(threadIds.size() + " instances");
+		HashingIndexer hasher = (featureIndexer instanceof HashingIndexer) ? (HashingIndexer) featureIndexer : null;
+		FeatureKeyIndexer keyIndexer = (featureIndexer instanceof FeatureKeyIndexer) ? (FeatureKeyIndexer) featureIndexer : null;
+		ExecutorService pool = null;
+		ArrayDeque<Future<ExtractedThread>> pending = new ArrayDeque<Future<ExtractedThread>>();
+		int submitted = 0;
+		if (numThreads > 1) {
+			pool = Executors.newFixedThreadPool(numThreads);
+		}
 		int line = 0;
-        CounterInterface<Integer> features;
+		try {
 		for (String threadId : threadIds) {
 			line++;
 			if (MainLibLinear.german.equals("true")) {
 				if (line%100 == 0) System.out.println("line : " + line);
 			}
 			else if (line%1000 == 0) System.out.println("line : " + line);
-            String userID = threadIdToUserID.get(threadId);
-            InputDatum thread = new InputDatum(threadsPath, threadId, userID);
-			int label = threadIdToLabelCounter.getCounter(threadId).argMax();
 
-			//ORIGINAL
-			features = new IntCounter();
-			for (FeatureExtractor featExtractor : featureExtractors) {
-                //pass the training label value
-				CounterInterface<String> feats = featExtractor.extractFeatures(thread, label);
-				for (String featName : feats.keySet()) {
-					double featValue = feats.getCount(featName);
-					int featId = featureIndexer.getIndex(featName);
-					features.incrementCount(featId, featValue);
+			ExtractedThread extracted;
+			if (pool == null) {
+				extracted = new ExtractionTask(threadsPath, threadId, threadIdToUserID.get(threadId), labelsPath == null ? null : threadIdToLabelCounter.getCounter(threadId), featureExtractors, hasher).call();
+			} else {
+				// keep a bounded window of threads in flight, consumed in submission order
+				while (submitted < threadIds.size() && pending.size() < numThreads * EXTRACTION_QUEUE_PER_THREAD) {
+					String nextId = threadIds.get(submitted++);
+					pending.add(pool.submit(new ExtractionTask(threadsPath, nextId, threadIdToUserID.get(nextId), labelsPath == null ? null : threadIdToLabelCounter.getCounter(nextId), featureExtractors, hasher)));
 				}
+				extracted = getExtracted(pending.poll());
+			}
+			int label = extracted.label;
+			if (countInto != null) {
+				// extracted keys are distinct, so this counts threads per feature
+				countInto.addAll(extracted.keys);
+				continue;
 			}
+
+			//ORIGINAL
+			INDEX_STAGE.begin();
+			addFeatures(data, extracted, featureIndexer, hasher, keyIndexer, pruneBy, minCount);
+			INDEX_STAGE.end(extracted.keys.length);
         
 			boolean user = false;
         if (user == true) {
-        	CounterInterface<String> features_temp = new Counter<String>();
+        	CounterInterface<String> features_temp = new CompactCounter<String>();
         for (String uID : userIDS) {
             String trueUID = threadIdToUserID.get(threadId);
                     
@@ -806,31 +1149,527 @@ public class MainLibLinear {
             
             for (String featName : features_temp.keySet()) {
                 double featValue = features_temp.getCount(featName);
-                int featId = featureIndexer.getIndex(featName);
+                int featId = featureIndexer.getIndex(new FeatureKey(FeatureKey.named(featName)));
                 
-                features.incrementCount(featId, featValue);
+                data.add(featId, featValue);
             }}
 
-			data.add(Pair.makePair(features,label));
+			data.endRow(label);
       dataOrder.add(threadId);
         }
+		} finally {
+			if (pool != null) pool.shutdownNow();
+		}
 		
-		return Pair.makePair(data,dataOrder);
+		return Pair.makePair(data.build(),dataOrder);
+	}
+
+	/**
+	 * Adds the extracted features to the current row under their ids. Features
+	 * that a locked feature indexer does not know are dropped, and a locked
+	 * indexer is only read, so several threads may share one. With pruneBy
+	 * set, features it counts fewer than minCount times are dropped too.
+	 */
+	private static void addFeatures(SparseDataset.Builder data, ExtractedThread extracted, Indexer<FeatureKey> featureIndexer, HashingIndexer hasher, FeatureKeyIndexer keyIndexer, CountMinSketch pruneBy, int minCount) {
+		for (int i=0; i<extracted.keys.length; ++i) {
+			long featKey = extracted.keys[i];
+			if (pruneBy != null && pruneBy.estimate(featKey) < minCount) continue;
+			double featValue = extracted.values[i];
+			int featId;
+			if (hasher != null) {
+				if (FeatureKey.getTemplate(featKey) == FeatureKey.Template.HASHED) {
+					featId = (int) FeatureKey.getData(featKey);
+				} else {
+					// only the bias gets here: the extractors hash everything else
+					long hash = FeatureKey.hash(featKey);
+					featId = hasher.getIndex(hash);
+					if (hasher.wantsName(featId, hash)) hasher.setName(featId, hash, FeatureKey.name(featKey));
+					featValue *= hasher.getSign(hash);
+				}
+			} else if (keyIndexer != null) {
+				if (keyIndexer.locked() && !keyIndexer.contains(featKey)) continue;
+				featId = keyIndexer.getIndex(featKey);
+			} else {
+				FeatureKey key = new FeatureKey(featKey);
+				if (featureIndexer.locked() && !featureIndexer.contains(key)) continue;
+				featId = featureIndexer.getIndex(key);
+			}
+			data.add(featId, featValue);
+		}
+	}
+
+	/**
+	 * Featurizes one thread as a single row with label -1, using a locked
+	 * feature indexer. Safe to call from several threads at once.
+	 */
+	public static SparseDataset featurize(InputDatum thread, List<FeatureExtractor> featureExtractors, Indexer<FeatureKey> featureIndexer) {
+		if (!featureIndexer.locked()) {
+			throw new RuntimeException("Feature indexer must be locked to featurize single threads");
+		}
+		HashingIndexer hasher = (featureIndexer instanceof HashingIndexer) ? (HashingIndexer) featureIndexer : null;
+		FeatureKeyIndexer keyIndexer = (featureIndexer instanceof FeatureKeyIndexer) ? (FeatureKeyIndexer) featureIndexer : null;
+		ExtractedThread extracted = extract(thread, -1, featureExtractors, hasher);
+		SparseDataset.Builder data = new SparseDataset.Builder(extracted.keys.length);
+		addFeatures(data, extracted, featureIndexer, hasher, keyIndexer, null, 0);
+		data.endRow(-1);
+		return data.build();
+	}
+
+	private static ExtractedThread getExtracted(Future<ExtractedThread> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static class ExtractedThread {
+		int label;
+		// feature keys and values from all extractors, in first-written order
+		long[] keys;
+		double[] values;
+	}
+
+	// per worker: one sink for the whole thread, one for each extractor after the first
+	private static final ThreadLocal<FeatureSink[]> extractionSinks = new ThreadLocal<FeatureSink[]>() {
+		protected FeatureSink[] initialValue() {
+			return new FeatureSink[] {new FeatureSink(), new FeatureSink()};
+		}
+	};
+
+	/**
+	 * Reads one thread from disk and runs every extractor over it. Touches no
+	 * shared mutable state, so it can run on any worker.
+	 */
+	private static class ExtractionTask implements Callable<ExtractedThread> {
+		private final String threadsPath;
+		private final String threadId;
+		private final String userID;
+		private final Counter<Integer> labelCounter;
+		private final List<FeatureExtractor> featureExtractors;
+		private final HashingIndexer hasher;
+
+		public ExtractionTask(String threadsPath, String threadId, String userID, Counter<Integer> labelCounter, List<FeatureExtractor> featureExtractors, HashingIndexer hasher) {
+			this.threadsPath = threadsPath;
+			this.threadId = threadId;
+			this.userID = userID;
+			this.labelCounter = labelCounter;
+			this.featureExtractors = featureExtractors;
+			this.hasher = hasher;
+		}
+
+		public ExtractedThread call() {
+			READ_STAGE.begin();
+            InputDatum thread = new InputDatum(threadsPath, threadId, userID);
+			READ_STAGE.end(1);
+			return extract(thread, labelCounter == null ? -1 : labelCounter.argMax(), featureExtractors, hasher);
+		}
+	}
+
+	/**
+	 * Runs every extractor over one thread. Touches no shared mutable state
+	 * beyond the FeatureKey dictionaries, so it can run on any worker.
+	 */
+	private static ExtractedThread extract(InputDatum thread, int label, List<FeatureExtractor> featureExtractors, HashingIndexer hasher) {
+		ExtractedThread result = new ExtractedThread();
+		result.label = label;
+		FeatureSink[] sinks = extractionSinks.get();
+		FeatureSink features = sinks[0];
+		features.clear();
+		for (int e=0; e<featureExtractors.size(); ++e) {
+			// setCount within an extractor, summed across extractors
+			FeatureSink sink = features;
+			if (e > 0) {
+				sink = sinks[1];
+				sink.clear();
+			}
+            //pass the training label value
+			extractFeatures(featureExtractors.get(e), thread, result.label, hasher, sink);
+			if (sink != features) features.incrementAll(sink);
+		}
+		result.keys = features.copyKeys();
+		result.values = features.copyValues();
+		return result;
+	}
+
+	/**
+	 * Runs readData on each (labelsPaths[i], threadsPaths[i]) with one new
+	 * feature indexer shared by all of them. If featureCacheDir is set, the
+	 * result is saved there and later runs with the same inputs and settings
+	 * load it instead of featurizing again.
+	 *
+	 * With minFeatureCount > 1 and a dictionary indexer, a first pass counts
+	 * in how many threads (of all inputs) each feature occurs, in a
+	 * count-min sketch of fixed size, and the second pass only indexes
+	 * features counted at least minFeatureCount times. Most char n-grams
+	 * occur in a single thread, so this shrinks the dictionary, the data and
+	 * the model. The sketch can only overcount, so a pruned feature is truly
+	 * rarer than minFeatureCount. Hashed ids are not pruned: the id space is
+	 * fixed anyway, and classification could not tell which features to drop.
+	 */
+	public static FeatureCache readDataCached(String[] labelsPaths, String[] threadsPaths, List<FeatureExtractor> featureExtractors, Indexer<String> labelIndexer) {
+		File cacheFile = null;
+		long key = 0L;
+		if (featureCacheDir != null) {
+			key = featureCacheKey(labelsPaths, threadsPaths, featureExtractors, labelIndexer);
+			cacheFile = new File(featureCacheDir, String.format("features-%016x.bin", key));
+			long start = System.nanoTime();
+			FeatureCache cached = FeatureCache.load(cacheFile, key);
+			if (cached != null) {
+				System.out.println(String.format("loaded cached features from %s in %d ms", cacheFile.getPath(), (System.nanoTime() - start) / 1000000));
+				return cached;
+			}
+		}
+		Indexer<FeatureKey> featureIndexer = newFeatureIndexer();
+		CountMinSketch documentFrequencies = null;
+		if (minFeatureCount > 1 && !(featureIndexer instanceof HashingIndexer)) {
+			long start = System.nanoTime();
+			documentFrequencies = new CountMinSketch(featureSketchBits, featureSketchDepth);
+			for (int i=0; i<labelsPaths.length; ++i) {
+				countFeatures(labelsPaths[i], threadsPaths[i], featureExtractors, labelIndexer, documentFrequencies);
+			}
+			System.out.println(String.format("counted features in %d ms (%d MB sketch)", (System.nanoTime() - start) / 1000000, documentFrequencies.getMemoryBytes() >> 20));
+		}
+		List<SparseDataset> datasets = new ArrayList<SparseDataset>();
+		List<List<String>> threadIds = new ArrayList<List<String>>();
+		for (int i=0; i<labelsPaths.length; ++i) {
+			Pair<SparseDataset, ArrayList<String>> data = readData(labelsPaths[i], threadsPaths[i], null, featureExtractors, featureIndexer, labelIndexer, numExtractionThreads, null, documentFrequencies, minFeatureCount);
+			datasets.add(data.getFirst());
+			threadIds.add(data.getSecond());
+		}
+		if (documentFrequencies != null) {
+			System.out.println(String.format("kept %d features seen in at least %d threads", featureIndexer.size(), minFeatureCount));
+		}
+		FeatureCache result = new FeatureCache(featureIndexer, datasets, threadIds);
+		if (cacheFile != null) {
+			cacheFile.getParentFile().mkdirs();
+			result.save(cacheFile, key);
+		}
+		return result;
+	}
+
+	/**
+	 * Hash of everything the featurized data depends on: the labels files,
+	 * the listing of each threads directory (names, sizes and modification
+	 * times, not contents), labels, language and extractor settings.
+	 */
+	public static long featureCacheKey(String[] labelsPaths, String[] threadsPaths, List<FeatureExtractor> featureExtractors, Indexer<String> labelIndexer) {
+		StringBuilder desc = new StringBuilder();
+		desc.append("version ").append(FEATURE_CACHE_VERSION).append('\n');
+		desc.append("german ").append(german).append('\n');
+		for (int l=0; l<labelIndexer.size(); ++l) {
+			desc.append("label ").append(labelIndexer.getObject(l)).append('\n');
+		}
+		desc.append(describeExtractors(featureExtractors));
+		desc.append("hashing ").append(featureHashBits).append(' ').append(signedFeatureHashing).append(' ').append(keepHashedFeatureNames).append('\n');
+		desc.append("dedup ").append(dedupThreshold).append(' ').append(dedupBands).append(' ').append(dedupRows).append('\n');
+		desc.append("pruning ").append(minFeatureCount).append(' ').append(featureSketchBits).append(' ').append(featureSketchDepth).append('\n');
+		for (int i=0; i<labelsPaths.length; ++i) {
+			desc.append("labels ").append(new File(labelsPaths[i]).getAbsolutePath()).append('\n');
+			for (String line : f.readLinesHard(labelsPaths[i])) {
+				desc.append(line).append('\n');
+			}
+			File threadsDir = new File(threadsPaths[i]);
+			desc.append("threads ").append(threadsDir.getAbsolutePath()).append('\n');
+			File[] files = threadsDir.listFiles();
+			if (files == null) {
+				throw new RuntimeException(String.format("Not a directory: %s", threadsPaths[i]));
+			}
+			Arrays.sort(files);
+			for (File file : files) {
+				desc.append(file.getName()).append(' ').append(file.length()).append(' ').append(file.lastModified()).append('\n');
+			}
+		}
+		return HashingIndexer.hash(desc.toString());
+	}
+
+	/**
+	 * The extractors and their settings, one line each.
+	 */
+	public static String describeExtractors(List<FeatureExtractor> featureExtractors) {
+		StringBuilder desc = new StringBuilder();
+		for (FeatureExtractor featExtractor : featureExtractors) {
+			desc.append("extractor ").append(featExtractor.getClass().getName()).append('\n');
+			if (featExtractor instanceof SimpleFeatureExtractor) {
+				desc.append(SimpleFeatureExtractor.describeConfig()).append('\n');
+			}
+		}
+		return desc.toString();
+	}
+
+	/**
+	 * Ids of the threads in a directory, from their "0-initiator<id>.txt"
+	 * files, in name order.
+	 */
+	public static List<String> listThreadIds(String threadsPath) {
+		String[] names = new File(threadsPath).list();
+		if (names == null) {
+			throw new RuntimeException(String.format("Not a directory: %s", threadsPath));
+		}
+		Arrays.sort(names);
+		List<String> threadIds = new ArrayList<String>();
+		for (String name : names) {
+			if (name.startsWith("0-initiator") && name.endsWith(".txt")) {
+				threadIds.add(name.substring("0-initiator".length(), name.length() - ".txt".length()));
+			}
+		}
+		return threadIds;
+	}
+
+	/**
+	 * Settings saved with a model, checked by classify().
+	 */
+	public static Map<String,String> modelSettings(List<FeatureExtractor> featureExtractors) {
+		Map<String,String> settings = new LinkedHashMap<String,String>();
+		settings.put("german", german);
+		settings.put("extractors", describeExtractors(featureExtractors));
+		return settings;
+	}
+
+	/**
+	 * The extractors to featurize threads for a loaded model. Sets the
+	 * language the model was trained for, and fails if the model was trained
+	 * with other extractor settings than these.
+	 */
+	public static List<FeatureExtractor> modelExtractors(PostTypeModel model, String modelFile) {
+		MainLibLinear.german = model.settings.get("german");
+		List<FeatureExtractor> featureExtractors = new ArrayList<FeatureExtractor>();
+		featureExtractors.add(new SimpleFeatureExtractor());
+		if (!describeExtractors(featureExtractors).equals(model.settings.get("extractors"))) {
+			throw new RuntimeException(String.format("Model %s was trained with other feature settings:\n%s", modelFile, model.settings.get("extractors")));
+		}
+		return featureExtractors;
+	}
+
+	/**
+	 * Labels every thread in threadsPath with a model saved by a training run
+	 * (see modelPath), without retraining, and writes one "threadId label"
+	 * line per thread.
+	 */
+	public static void classify(String modelFile, String threadsPath, PrintStream out) {
+		long start = System.nanoTime();
+		PostTypeModel model = PostTypeModel.load(new File(modelFile));
+		System.out.println(String.format("loaded model from %s in %d ms", modelFile, (System.nanoTime() - start) / 1000000));
+		List<FeatureExtractor> featureExtractors = modelExtractors(model, modelFile);
+		List<String> threadIds = listThreadIds(threadsPath);
+		int[] representatives = null;
+		List<String> scoredIds = threadIds;
+		if (dedupThreshold > 0) {
+			representatives = nearDuplicateRepresentatives(threadsPath, threadIds);
+			scoredIds = new ArrayList<String>();
+			for (int i=0; i<threadIds.size(); ++i) {
+				if (representatives[i] == i) scoredIds.add(threadIds.get(i));
+			}
+			System.out.println(String.format("scoring %d of %d threads, the rest are near-duplicates", scoredIds.size(), threadIds.size()));
+		}
+		Pair<SparseDataset, ArrayList<String>> data = readData(null, threadsPath, scoredIds, featureExtractors, model.featureIndexer, model.labelIndexer, numExtractionThreads, null, null, 0);
+		PREDICT_STAGE.begin();
+		int[] predictions = model.classifier.predictBatch(data.getFirst(), numPredictionThreads);
+		PREDICT_STAGE.end(predictions.length);
+		Map<String,String> labels = new HashMap<String,String>();
+		for (int i=0; i<predictions.length; ++i) {
+			labels.put(data.getSecond().get(i), model.labelIndexer.getObject(predictions[i]));
+		}
+		// a near-duplicate gets its representative's label
+		for (int i=0; i<threadIds.size(); ++i) {
+			String scoredId = threadIds.get(representatives == null ? i : representatives[i]);
+			out.println(threadIds.get(i)+"\t"+labels.get(scoredId));
+		}
+		out.flush();
+	}
+
+	/**
+	 * For each thread, the index of the first thread in threadIds whose
+	 * cleaned initiator text is a near-duplicate of it (see NearDuplicates),
+	 * or its own index if there is none. Only the initiator text is read.
+	 */
+	public static int[] nearDuplicateRepresentatives(String threadsPath, List<String> threadIds) {
+		DEDUP_STAGE.begin();
+		boolean isGerm = german.equals("true");
+		NearDuplicates nearDuplicates = new NearDuplicates(dedupBands, dedupRows, dedupThreshold);
+		List<long[]> signatures = new ArrayList<long[]>(threadIds.size());
+		StringBuilder text = new StringBuilder();
+		for (String threadId : threadIds) {
+			text.setLength(0);
+			for (String line : f.readLinesHard(threadsPath+"/0-initiator"+threadId+".txt")) {
+				if (line.trim().equals("")) continue;
+				text.append(SimpleFeatureExtractor.cleanLine(line, isGerm)).append('\n');
+			}
+			signatures.add(nearDuplicates.signature(text.toString()));
+		}
+		int[] representatives = nearDuplicates.cluster(signatures);
+		DEDUP_STAGE.end(threadIds.size());
+		int duplicates = 0;
+		for (int i=0; i<representatives.length; ++i) {
+			if (representatives[i] != i) duplicates++;
+		}
+		System.out.println(String.format("%d of %d threads are near-duplicates of an earlier one (threshold %.2f)", duplicates, threadIds.size(), dedupThreshold));
+		return representatives;
+	}
+
+	/**
+	 * Runs any extractor into a sink. Extractors that only return names are
+	 * adapted by writing their names as NAMED keys, or with a hasher as
+	 * hashed ids.
+	 */
+	public static void extractFeatures(FeatureExtractor featExtractor, InputDatum thread, int label, HashingIndexer hasher, FeatureSink sink) {
+		if (featExtractor instanceof SinkFeatureExtractor) {
+			((SinkFeatureExtractor) featExtractor).extractFeatures(thread, label, hasher, sink);
+		} else {
+			CounterInterface<String> features = featExtractor.extractFeatures(thread, label);
+			for (String featName : features.keySet()) {
+				SimpleFeatureExtractor.setNamed(sink, hasher, featName, features.getCount(featName));
+			}
+		}
 	}
     	    
+	/**
+	 * Featurizes the labelled threads once (through the feature cache, if
+	 * set) and prints the numFolds-fold cross-validated accuracy of every
+	 * (solver, C) in the grid, trained numTrainingThreads at a time.
+	 */
+	public static void sweep(String threadsPath, String labelsPath, String[] labels, String german, int numFolds, String solvers, String Cs) {
+		MainLibLinear.german = german;
+		Indexer<String> labelIndexer = new HashMapIndexer<String>();
+		for (String label : labels) {
+			labelIndexer.getIndex(label);
+		}
+		labelIndexer.lock();
+		List<FeatureExtractor> featureExtractors = new ArrayList<FeatureExtractor>();
+		featureExtractors.add(new SimpleFeatureExtractor());
+
+		SparseDataset data = readDataCached(new String[] {labelsPath}, new String[] {threadsPath}, featureExtractors, labelIndexer).datasets.get(0);
+		List<SolverType> solverTypes = new ArrayList<SolverType>();
+		for (String solver : solvers.split(":")) {
+			solverTypes.add(SolverType.valueOf(solver));
+		}
+		String[] CStrings = Cs.split(":");
+		double[] CValues = new double[CStrings.length];
+		for (int i=0; i<CStrings.length; ++i) {
+			CValues[i] = Double.parseDouble(CStrings[i]);
+		}
+		System.out.println(String.format("%d threads, %d features, %d folds, %d settings on %d threads", data.size(), data.getNumFeatures(), numFolds, solverTypes.size() * CValues.length, numTrainingThreads));
+		long start = System.nanoTime();
+		List<HyperparameterSweep.Cell> cells = HyperparameterSweep.run(data, labelIndexer.size(), numFolds, solverTypes, CValues, eps, numTrainingThreads);
+		HyperparameterSweep.printTable(cells, labelIndexer, System.out);
+		System.out.println(String.format("sweep took %d ms", (System.nanoTime() - start) / 1000000));
+	}
+
+	/**
+	 * Updates the online model in checkpointPath with the labelled threads in
+	 * threadsPath, or starts one if there is no such file, and saves it back
+	 * there. Features the model has not seen are added to it. Prints the
+	 * accuracy on the new threads before the update, which for threads the
+	 * model has never seen is an estimate of its test accuracy. The
+	 * checkpoint is a model file, so classify can use it.
+	 */
+	public static void online(String checkpointPath, String threadsPath, String labelsPath, String[] labels, String german) {
+		long start = System.nanoTime();
+		File checkpoint = new File(checkpointPath);
+		Indexer<String> labelIndexer;
+		Indexer<FeatureKey> featureIndexer;
+		List<FeatureExtractor> featureExtractors;
+		OnlineLinearClassifier classifier;
+		if (checkpoint.exists()) {
+			PostTypeModel model = PostTypeModel.load(checkpoint, false);
+			if (!(model.classifier instanceof OnlineLinearClassifier)) {
+				throw new RuntimeException(String.format("Model %s was not trained online", checkpointPath));
+			}
+			featureExtractors = modelExtractors(model, checkpointPath);
+			if (!MainLibLinear.german.equals(german)) {
+				throw new RuntimeException(String.format("Model %s was trained with german=%s", checkpointPath, MainLibLinear.german));
+			}
+			labelIndexer = model.labelIndexer;
+			List<String> modelLabels = new ArrayList<String>();
+			for (int l=0; l<labelIndexer.size(); ++l) {
+				modelLabels.add(labelIndexer.getObject(l));
+			}
+			if (!Arrays.asList(labels).equals(modelLabels)) {
+				throw new RuntimeException(String.format("Model %s was trained with labels %s", checkpointPath, modelLabels));
+			}
+			featureIndexer = model.featureIndexer;
+			classifier = (OnlineLinearClassifier) model.classifier;
+			System.out.println(String.format("resumed from %s after %d threads, %d features, in %d ms", checkpointPath, classifier.getNumSteps(), featureIndexer.size(), (System.nanoTime() - start) / 1000000));
+		} else {
+			MainLibLinear.german = german;
+			labelIndexer = new HashMapIndexer<String>();
+			for (String label : labels) {
+				labelIndexer.getIndex(label);
+			}
+			labelIndexer.lock();
+			featureExtractors = new ArrayList<FeatureExtractor>();
+			featureExtractors.add(new SimpleFeatureExtractor());
+			featureIndexer = newFeatureIndexer();
+			classifier = new OnlineLinearClassifier(labels.length, onlineLearningRate, onlineL2, onlineEpochs);
+			System.out.println("starting a new online model in "+checkpointPath);
+		}
+
+		SparseDataset data = readData(labelsPath, threadsPath, featureExtractors, featureIndexer, labelIndexer).getFirst();
+		PREDICT_STAGE.begin();
+		int[] predictions = classifier.predictBatch(data, numPredictionThreads);
+		PREDICT_STAGE.end(predictions.length);
+		int correct = 0;
+		for (int i=0; i<data.size(); ++i) {
+			if (predictions[i] == data.getLabel(i)) correct++;
+		}
+		System.out.println(String.format("%d new threads, %d features", data.size(), featureIndexer.size()));
+		System.out.printf("acc before update: %.4f\n", data.size() == 0 ? 0.0 : correct / (double) data.size());
+
+		long updateStart = System.nanoTime();
+		TRAIN_STAGE.begin();
+		classifier.partialFit(data);
+		TRAIN_STAGE.end(data.size());
+		System.out.println(String.format("updated in %d ms", (System.nanoTime() - updateStart) / 1000000));
+		new PostTypeModel(modelSettings(featureExtractors), labelIndexer, featureIndexer, classifier).save(checkpoint);
+		System.out.println(String.format("saved model to %s, %d threads learned from in all", checkpointPath, classifier.getNumSteps()));
+	}
+
 	public static void main(String[] args) throws UnsupportedEncodingException {
+		PipelineMetrics.enabled = metricsPath != null;
+		if (args.length >= 3 && args[0].equals("classify")) {
+			PrintStream out = System.out;
+			if (args.length >= 4) {
+				try {
+					out = new PrintStream(args[3], "UTF-8");
+				} catch (FileNotFoundException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			classify(args[1], args[2], out);
+			if (out != System.out) out.close();
+			reportMetrics(System.err);
+			return;
+		}
+		if (args.length >= 6 && args[0].equals("sweep")) {
+			sweep(args[1], args[2], args[3].split(":"), args[4], Integer.parseInt(args[5]), args.length >= 7 ? args[6] : DEFAULT_SWEEP_SOLVERS, args.length >= 8 ? args[7] : DEFAULT_SWEEP_CS);
+			reportMetrics(System.out);
+			return;
+		}
+		if (args.length >= 6 && args[0].equals("online")) {
+			online(args[1], args[2], args[3], args[4].split(":"), args[5]);
+			reportMetrics(System.out);
+			return;
+		}
 		if (args.length < 6) {
 			System.out.println("Arguments are: <boolean train/test same/difff> <threadsPath> <labelsPath> <testFraction> <labelType1>:<labelType2>:... <germanBool> [Optional <trainSize>]");
+			System.out.println("or: classify <modelPath> <threadsPath> [Optional <outputPath>]");
+			System.out.println("or: sweep <threadsPath> <labelsPath> <labelType1>:<labelType2>:... <germanBool> <numFolds> [Optional <solver1>:<solver2>:...] [Optional <C1>:<C2>:...]");
+			System.out.println("or: online <checkpointPath> <threadsPath> <labelsPath> <labelType1>:<labelType2>:... <germanBool>");
 			return;
 		}
 		
-		List<Pair<CounterInterface<Integer>,Integer>> trainData = null;
-		List<Pair<CounterInterface<Integer>,Integer>> testData = null;
+		SparseDataset trainData = null;
+		SparseDataset testData = null;
 		String[] labels = null;
 		Indexer<String> labelIndexer = null;
 		List<String> testThreads = null;
 		List<String> trainThreads = null;
-		Indexer<String> featureIndexer = new HashMapIndexer<String>();
+		Indexer<FeatureKey> featureIndexer = null;
+		List<FeatureExtractor> featureExtractors = null;
 		
 		
 		// TRAIN AND TEST ON SAME DATASET
@@ -853,20 +1692,21 @@ public class MainLibLinear {
 		labelIndexer.lock();
 		
 		// feature extractors
-		List<FeatureExtractor> featureExtractors = new ArrayList<FeatureExtractor>();
+		featureExtractors = new ArrayList<FeatureExtractor>();
 		featureExtractors.add(new SimpleFeatureExtractor());
 		//featureExtractors.add(new BOWFeatureExtractor());
 	
 		// data
-        Pair<List<Pair<CounterInterface<Integer>,Integer>>, ArrayList<String>> all = readData(labelsPath, threadsPath, featureExtractors, featureIndexer, labelIndexer);
-        List<Pair<CounterInterface<Integer>,Integer>> allData = all.getFirst();
-        ArrayList<String> allThreads = all.getSecond();
+        FeatureCache all = readDataCached(new String[] {labelsPath}, new String[] {threadsPath}, featureExtractors, labelIndexer);
+        featureIndexer = all.featureIndexer;
+        SparseDataset allData = all.datasets.get(0);
+        List<String> allThreads = all.threadIds.get(0);
         int testSize = (int) (testFraction * allData.size());
         trainSize = Math.min(trainSize, allData.size() - testSize);
         System.out.println("train size: "+trainSize);
         System.out.println("test size: "+testSize);
-        trainData = allData.subList(0, trainSize);
-        testData = allData.subList((allData.size() - testSize), allData.size());
+        trainData = allData.subset(0, trainSize);
+        testData = allData.subset((allData.size() - testSize), allData.size());
         featureIndexer.lock();
         trainThreads = allThreads.subList(0, trainSize);
         testThreads = allThreads.subList((allThreads.size() - testSize), allThreads.size());
@@ -889,23 +1729,22 @@ public class MainLibLinear {
 		labelIndexer.lock();
 		
 		//// feature extractors
-		List<FeatureExtractor> featureExtractors = new ArrayList<FeatureExtractor>();
+		featureExtractors = new ArrayList<FeatureExtractor>();
 		featureExtractors.add(new SimpleFeatureExtractor());
 		//featureExtractors.add(new BagOfCharsFeatureExtractor());
 		
 		//// data
-		featureIndexer = new HashMapIndexer<String>();
         System.out.println("reading data ...");
-        Pair<List<Pair<CounterInterface<Integer>,Integer>>, ArrayList<String>> trainTemp = readData(labelsPathTrain, threadsPathTrain, featureExtractors, featureIndexer, labelIndexer);
-		trainData = trainTemp.getFirst();
+        FeatureCache trainTest = readDataCached(new String[] {labelsPathTrain, labelsPathTest}, new String[] {threadsPathTrain, threadsPathTest}, featureExtractors, labelIndexer);
+        featureIndexer = trainTest.featureIndexer;
+		trainData = trainTest.datasets.get(0);
 		//trainData = filterData(trainData, 0.10);
         
-        Pair<List<Pair<CounterInterface<Integer>,Integer>>, ArrayList<String>> testTemp = readData(labelsPathTest, threadsPathTest, featureExtractors, featureIndexer, labelIndexer);
-		testData = testTemp.getFirst();
+		testData = trainTest.datasets.get(1);
 		//testData = filterData(testData, 0.10);
 		System.out.println("data read");
 		featureIndexer.lock();
-        testThreads = testTemp.getSecond();
+        testThreads = trainTest.threadIds.get(1);
         
 		System.out.println("train size: "+trainData.size());
         System.out.println("test size: "+testData.size());
@@ -914,8 +1753,8 @@ public class MainLibLinear {
         
 		// print label counts
 		Counter<Integer> trainLabelCounts = new Counter<Integer>();
-		for (Pair<CounterInterface<Integer>,Integer> datum : trainData) {
-			trainLabelCounts.incrementCount(datum.getSecond(), 1.0);
+		for (int i=0; i<trainData.size(); ++i) {
+			trainLabelCounts.incrementCount(trainData.getLabel(i), 1.0);
 		}
 		System.out.println();
 		System.out.println("train label counts:");
@@ -924,8 +1763,8 @@ public class MainLibLinear {
 		}
 		
 		Counter<Integer> testLabelCounts = new Counter<Integer>();
-		for (Pair<CounterInterface<Integer>,Integer> datum : testData) {
-			testLabelCounts.incrementCount(datum.getSecond(), 1.0);
+		for (int i=0; i<testData.size(); ++i) {
+			testLabelCounts.incrementCount(testData.getLabel(i), 1.0);
 		}
 		System.out.println();
 		System.out.println("test label counts:");
@@ -935,23 +1774,27 @@ public class MainLibLinear {
 		System.out.println();
 
 		// classifier
-		double C = 0.0002;
-		double eps = 1e-7;
-		//SolverType solverType = SolverType.MCSVM_CS;
-        SolverType solverType = SolverType.L2R_L2LOSS_SVC;
 		Classifier classifier = new LibLinearWrapper(solverType, C, eps);
 		
 		System.out.println("training classifier:");
+		TRAIN_STAGE.begin();
 		classifier.train(trainData);
+		TRAIN_STAGE.end(trainData.size());
+		if (modelPath != null) {
+			new PostTypeModel(modelSettings(featureExtractors), labelIndexer, featureIndexer, classifier).save(new File(modelPath));
+			System.out.println("saved model to "+modelPath);
+		}
 		
 		// classifier output on train
 		{
 			double correct = 0.0;
 			double total = 0.0;
-			for (Pair<CounterInterface<Integer>,Integer> datum : trainData) {
-				int goldLabel = datum.getSecond();
-				CounterInterface<Integer> features = datum.getFirst();
-				int predictedLabel = classifier.predict(features);
+			PREDICT_STAGE.begin();
+			int[] predictions = classifier.predictBatch(trainData, numPredictionThreads);
+			PREDICT_STAGE.end(predictions.length);
+			for (int i=0; i<trainData.size(); ++i) {
+				int goldLabel = trainData.getLabel(i);
+				int predictedLabel = predictions[i];
 				if (predictedLabel == goldLabel) {
 					correct++;
 				}
@@ -968,10 +1811,12 @@ public class MainLibLinear {
 			double total = 0.0;
 			Counter<Integer> labelCorrect = new Counter<Integer>();
 			Counter<Integer> labelTotal = new Counter<Integer>();
-			for (Pair<CounterInterface<Integer>,Integer> datum : testData) {
-				int goldLabel = datum.getSecond();
-				CounterInterface<Integer> features = datum.getFirst();
-				int predictedLabel = classifier.predict(features);
+			PREDICT_STAGE.begin();
+			int[] predictions = classifier.predictBatch(testData, numPredictionThreads);
+			PREDICT_STAGE.end(predictions.length);
+			for (int i=0; i<testData.size(); ++i) {
+				int goldLabel = testData.getLabel(i);
+				int predictedLabel = predictions[i];
 				if (predictedLabel == goldLabel) {
 					labelCorrect.incrementCount(goldLabel, 1.0);
 					correct++;
@@ -999,36 +1844,95 @@ public class MainLibLinear {
 		}
 		
 		//print biggest feature weights
+		WEIGHTS_STAGE.begin();
 		int numFeaturesToPrint = 100;
-		Map<Integer,CounterInterface<Integer>> weights = classifier.getWeights();
-		for (Integer label : weights.keySet()) {
-			CounterInterface<Integer> labelWeights = weights.get(label);
-			Counter<Integer> sorter = new Counter<Integer>(); 
-			sorter.incrementAll(labelWeights);
-			PriorityQueue<Integer> maxQueue = sorter.asPriorityQueue();
-			PriorityQueue<Integer> minQueue = sorter.asMinPriorityQueue();
-			
-			System.out.println("\n\nlabel: "+labelIndexer.getObject(label));
-			System.out.println("\nmax feat weights:");
-			for (int i=0; i<numFeaturesToPrint; ++i) {
-                if (maxQueue.isEmpty()) break;
-				int feat = maxQueue.next();
-                 PrintStream out = new PrintStream(System.out, true, "UTF-8");
-                out.print(featureIndexer.getObject(feat));
-                System.out.println(" : "+labelWeights.getCount(feat));
-				//System.out.println(featureIndexer.getObject(feat)+" : "+labelWeights.getCount(feat));
+		int numLabelsPrinted = printTopWeights(classifier, labelIndexer, featureIndexer, numFeaturesToPrint, System.out);
+		WEIGHTS_STAGE.end(numLabelsPrinted);
+		reportMetrics(System.out);
+	}
+
+	/**
+	 * Prints the k largest and k smallest nonzero weights of each label, by
+	 * label id, through one buffered UTF-8 stream. Hashed weights are shown
+	 * with the sign of the recorded feature name undone. A LibLinearWrapper
+	 * is read one weight row at a time without building counters; returns
+	 * the number of labels printed.
+	 */
+	public static int printTopWeights(Classifier classifier, Indexer<String> labelIndexer, Indexer<FeatureKey> featureIndexer, int k, PrintStream stdout) {
+		int[] labels;
+		int numFeatures;
+		Map<Integer,CounterInterface<Integer>> weights = null;
+		if (classifier instanceof LibLinearWrapper) {
+			labels = ((LibLinearWrapper) classifier).getModelLabels();
+			numFeatures = ((LibLinearWrapper) classifier).getNumWeightFeatures();
+		} else {
+			weights = classifier.getWeights();
+			labels = new int[weights.size()];
+			int n = 0;
+			for (int label : weights.keySet()) labels[n++] = label;
+			numFeatures = featureIndexer.size();
+		}
+		Arrays.sort(labels);
+		HashingIndexer hasher = (featureIndexer instanceof HashingIndexer) ? (HashingIndexer) featureIndexer : null;
+		double[] row = new double[numFeatures];
+		PrintStream out;
+		try {
+			out = new PrintStream(new BufferedOutputStream(stdout, 1 << 16), false, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		for (int label : labels) {
+			if (weights == null) {
+				((LibLinearWrapper) classifier).getWeightRow(label, row);
+			} else {
+				Arrays.fill(row, 0.0);
+				CounterInterface<Integer> labelWeights = weights.get(label);
+				if (labelWeights instanceof IntCounter) {
+					for (IntCounter.Cursor cursor = ((IntCounter) labelWeights).cursor(); cursor.next(); ) {
+						if (cursor.key() < numFeatures) row[cursor.key()] = cursor.value();
+					}
+				} else {
+					for (Map.Entry<Integer, Double> entry : labelWeights.entries()) {
+						if (entry.getKey() < numFeatures) row[entry.getKey()] = entry.getValue();
+					}
+				}
+			}
+			if (hasher != null) {
+				// report weights for the recorded feature names, undoing their hash signs
+				for (int feat=0; feat<numFeatures; ++feat) {
+					if (row[feat] != 0.0) row[feat] *= hasher.getNameSign(feat);
+				}
 			}
-			System.out.println("\nmin feat weights:");
-			for (int i=0; i<numFeaturesToPrint; ++i) {
-				if (minQueue.isEmpty()) break;
-				int feat = minQueue.next();
-                PrintStream out = new PrintStream(System.out, true, "UTF-8");
-                out.print(featureIndexer.getObject(feat));
-                System.out.println(" : "+labelWeights.getCount(feat));
-				//System.out.println(featureIndexer.getObject(feat)+" : "+labelWeights.getCount(feat));
+			out.println("\n\nlabel: "+labelIndexer.getObject(label));
+			out.println("\nmax feat weights:");
+			for (int feat : TopK.largest(row, numFeatures, k)) {
+				out.println((hasher == null ? featureIndexer.getObject(feat).toString() : hasher.getName(feat))+" : "+row[feat]);
+			}
+			out.println("\nmin feat weights:");
+			for (int feat : TopK.smallest(row, numFeatures, k)) {
+				out.println((hasher == null ? featureIndexer.getObject(feat).toString() : hasher.getName(feat))+" : "+row[feat]);
 			}
 		}
-		
+		out.flush();
+		return labels.length;
+	}
+
+	/**
+	 * Prints the stage timings and writes them to metricsPath, if set.
+	 */
+	public static void reportMetrics(PrintStream out) {
+		if (metricsPath == null) return;
+		out.println();
+		PipelineMetrics.printSummary(out);
+		PipelineMetrics.writeJson(new File(metricsPath));
+		out.println("wrote metrics to "+metricsPath);
+	}
+	
+	public static Indexer<FeatureKey> newFeatureIndexer() {
+		if (featureHashBits > 0) {
+			return new HashingIndexer(featureHashBits, signedFeatureHashing, keepHashedFeatureNames);
+		}
+		return new FeatureKeyIndexer();
 	}
 	
 	public static List<Pair<CounterInterface<Integer>,Integer>> filterData(List<Pair<CounterInterface<Integer>,Integer>> trainData, double frac) {
@@ -1051,4 +1955,30 @@ public class MainLibLinear {
 		return result;
 	}
 	
+	/**
+	 * Same subsampling as above, returned as a view of trainData: only the
+	 * kept row numbers are copied.
+	 */
+	public static SparseDataset filterData(SparseDataset trainData, double frac) {
+		System.out.println("trainData size before filterData : " + trainData.size());
+		Counter<Integer> labelCounts = new Counter<Integer>();
+		for (int i=0; i<trainData.size(); ++i) {
+			labelCounts.incrementCount(trainData.getLabel(i), 1.0);
+		}
+		int maxLabel = labelCounts.argMax();
+		System.out.println("maxLabel : " + maxLabel);
+		Random rand = new Random(0);
+		int[] kept = new int[trainData.size()];
+		int numKept = 0;
+		for (int i=0; i<trainData.size(); ++i) {
+			int label = trainData.getLabel(i);
+			if (label != maxLabel || rand.nextDouble() < frac) {
+				kept[numKept++] = i;
+			}
+		}
+		SparseDataset result = trainData.subset(Arrays.copyOf(kept, numKept));
+		System.out.println("trainData size after filterData : " + result.size());
+		return result;
+	}
+	
 }
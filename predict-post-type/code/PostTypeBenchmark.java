@@ -0,0 +1,424 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import de.bwaldvogel.liblinear.Linear;
+
+import main.MainLibLinear.InputDatum;
+import main.MainLibLinear.SimpleFeatureExtractor;
+import util.Benchmark;
+import util.CompactCounter;
+import util.CompactCounterMap;
+import util.Counter;
+import util.CounterMap;
+import util.CounterInterface;
+import util.FeatureKey;
+import util.FeatureSink;
+import util.HashMapIndexer;
+import util.HashingIndexer;
+import util.Indexer;
+import util.IntCounter;
+import util.LibLinearWrapper;
+import util.NaiveBayesClassifier;
+import util.Pair;
+import util.SparseDataset;
+
+/**
+ * Benchmarks of the featurization and classification hot paths, run with
+ * util.Benchmark: cleanLine, word and char n-gram extraction, indexing,
+ * Counter, CompactCounter, IntCounter, CounterMap, CompactCounterMap,
+ * LibLinearWrapper and NaiveBayesClassifier. Text and String counter
+ * benchmarks use the initiator text of the threads in threadsPath (e.g. the
+ * sample data); indexer, IntCounter, counter map and classifier benchmarks
+ * use synthetic data with a fixed seed. Prints ops/s and allocation per operation; an op is one line,
+ * one thread, one lookup, one training or one prediction, as the name says.
+ *
+ * Arguments: <threadsPath> [-warmup <seconds>] [-time <seconds>] [-iterations <n>] [-filter <substring>]
+ */
+public class PostTypeBenchmark {
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Arguments are: <threadsPath> [-warmup <seconds>] [-time <seconds>] [-iterations <n>] [-filter <substring>]");
+			return;
+		}
+		double warmupSeconds = 2.0;
+		double iterationSeconds = 1.0;
+		int iterations = 5;
+		String filter = "";
+		for (int i=1; i+1<args.length; i+=2) {
+			if (args[i].equals("-warmup")) warmupSeconds = Double.parseDouble(args[i+1]);
+			else if (args[i].equals("-time")) iterationSeconds = Double.parseDouble(args[i+1]);
+			else if (args[i].equals("-iterations")) iterations = Integer.parseInt(args[i+1]);
+			else if (args[i].equals("-filter")) filter = args[i+1];
+			else throw new RuntimeException(String.format("Unknown argument: %s", args[i]));
+		}
+		MainLibLinear.german = "false";
+		Linear.disableDebugOutput();
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		addTextBenchmarks(benchmarks, args[0]);
+		addIndexerBenchmarks(benchmarks);
+		addIntCounterBenchmarks(benchmarks);
+		addCounterMapBenchmarks(benchmarks);
+		addClassifierBenchmarks(benchmarks);
+
+		Benchmark.printHeader(System.out);
+		for (Benchmark benchmark : benchmarks) {
+			if (!benchmark.name.contains(filter)) continue;
+			System.out.println(Benchmark.measure(benchmark, warmupSeconds, iterationSeconds, iterations));
+		}
+	}
+
+	private static void addTextBenchmarks(List<Benchmark> benchmarks, String threadsPath) {
+		final List<InputDatum> threads = new ArrayList<InputDatum>();
+		final List<String> rawLines = new ArrayList<String>();
+		// cleaned lines of each thread, as the n-gram extractors get them
+		final List<List<String>> cleanedThreads = new ArrayList<List<String>>();
+		for (String threadId : MainLibLinear.listThreadIds(threadsPath)) {
+			InputDatum thread = new InputDatum(threadsPath, threadId, null);
+			threads.add(thread);
+			List<String> cleaned = new ArrayList<String>();
+			for (String line : thread.initiatorText) {
+				if (line.trim().equals("")) continue;
+				rawLines.add(line);
+				cleaned.add(SimpleFeatureExtractor.cleanLine(line, false));
+			}
+			cleanedThreads.add(cleaned);
+		}
+		if (threads.isEmpty()) {
+			throw new RuntimeException(String.format("No threads in %s", threadsPath));
+		}
+		final FeatureSink sink = new FeatureSink();
+		final HashingIndexer hasher = new HashingIndexer(20, true, false);
+		final SimpleFeatureExtractor extractor = new SimpleFeatureExtractor();
+
+		benchmarks.add(new Benchmark("cleanLine per line") {
+			int next = 0;
+			public long run() {
+				if (next == rawLines.size()) next = 0;
+				return SimpleFeatureExtractor.cleanLine(rawLines.get(next++), false).length();
+			}
+		});
+		benchmarks.add(new Benchmark("word n-grams per thread") {
+			int next = 0;
+			public long run() {
+				if (next == cleanedThreads.size()) next = 0;
+				sink.clear();
+				for (String line : cleanedThreads.get(next++)) {
+					SimpleFeatureExtractor.addWordNGramFeatures(sink, null, "INIT", line, false);
+					SimpleFeatureExtractor.addWordNGramFeatures(sink, null, "", line, false);
+				}
+				return sink.size();
+			}
+		});
+		benchmarks.add(new Benchmark("char n-grams per thread") {
+			int next = 0;
+			public long run() {
+				if (next == cleanedThreads.size()) next = 0;
+				sink.clear();
+				for (String line : cleanedThreads.get(next++)) {
+					SimpleFeatureExtractor.addCharNGramFeatures(sink, null, "INIT", line, false);
+					SimpleFeatureExtractor.addCharNGramFeatures(sink, null, "", line, false);
+				}
+				return sink.size();
+			}
+		});
+		benchmarks.add(new Benchmark("hashed char n-grams per thread") {
+			int next = 0;
+			public long run() {
+				if (next == cleanedThreads.size()) next = 0;
+				sink.clear();
+				for (String line : cleanedThreads.get(next++)) {
+					SimpleFeatureExtractor.addCharNGramFeatures(sink, hasher, "INIT", line, false);
+					SimpleFeatureExtractor.addCharNGramFeatures(sink, hasher, "", line, false);
+				}
+				return sink.size();
+			}
+		});
+		// feature names of each thread, as extractFeatures(thread, label) counts them
+		final List<String[]> featureNames = new ArrayList<String[]>();
+		for (InputDatum thread : threads) {
+			sink.clear();
+			extractor.extractFeatures(thread, -1, null, sink);
+			String[] names = new String[sink.size()];
+			for (int i=0; i<names.length; ++i) {
+				names[i] = FeatureKey.name(sink.getKey(i));
+			}
+			featureNames.add(names);
+		}
+		benchmarks.add(new Benchmark("Counter<String> fill per thread") {
+			int next = 0;
+			public long run() {
+				if (next == featureNames.size()) next = 0;
+				Counter<String> counter = new Counter<String>();
+				for (String name : featureNames.get(next++)) {
+					counter.incrementCount(name, 1.0);
+				}
+				return counter.size();
+			}
+		});
+		benchmarks.add(new Benchmark("CompactCounter<String> fill per thread") {
+			int next = 0;
+			public long run() {
+				if (next == featureNames.size()) next = 0;
+				CompactCounter<String> counter = new CompactCounter<String>();
+				for (String name : featureNames.get(next++)) {
+					counter.incrementCount(name, 1.0);
+				}
+				return counter.size();
+			}
+		});
+		benchmarks.add(new Benchmark("extractFeatures per thread") {
+			int next = 0;
+			public long run() {
+				if (next == threads.size()) next = 0;
+				sink.clear();
+				extractor.extractFeatures(threads.get(next++), -1, null, sink);
+				return sink.size();
+			}
+		});
+	}
+
+	private static void addIndexerBenchmarks(List<Benchmark> benchmarks) {
+		final int numFeatures = 200000;
+		final String[] features = new String[numFeatures];
+		for (int i=0; i<numFeatures; ++i) {
+			features[i] = "INIT_CHARNGRAM_N5_"+Integer.toString(i * 31 + 7, 36);
+		}
+		final Indexer<String> indexer = new HashMapIndexer<String>();
+		indexer.index(features);
+		indexer.lock();
+		// skewed towards a small set of frequent features, as in IndexerBenchmark
+		final int[] lookups = new int[1 << 20];
+		Random rand = new Random(0);
+		for (int i=0; i<lookups.length; ++i) {
+			lookups[i] = rand.nextInt(8) == 0 ? rand.nextInt(numFeatures) : rand.nextInt(numFeatures / 64);
+		}
+		benchmarks.add(new Benchmark("HashMapIndexer.getIndex per lookup") {
+			int next = 0;
+			public long run() {
+				next = (next + 1) & (lookups.length - 1);
+				return indexer.getIndex(features[lookups[next]]);
+			}
+		});
+	}
+
+	private static void addIntCounterBenchmarks(List<Benchmark> benchmarks) {
+		final int[] keys = new int[1 << 20];
+		Random rand = new Random(0);
+		for (int i=0; i<keys.length; ++i) {
+			keys[i] = rand.nextInt(4096);
+		}
+		final IntCounter incremented = new IntCounter();
+		benchmarks.add(new Benchmark("IntCounter.incrementCount per call") {
+			int next = 0;
+			public long run() {
+				next = (next + 1) & (keys.length - 1);
+				incremented.incrementCount(keys[next], 1.0);
+				return next;
+			}
+		});
+		final IntCounter iterated = new IntCounter();
+		for (int i=0; i<1000; ++i) {
+			iterated.incrementCount(keys[i], 1.0);
+		}
+		final int iteratedSize = iterated.size();
+		benchmarks.add(new Benchmark("IntCounter.entries per "+iteratedSize+" entries") {
+			public long run() {
+				double sum = 0.0;
+				for (Map.Entry<Integer, Double> entry : iterated.entries()) {
+					sum += entry.getKey() * entry.getValue();
+				}
+				return (long) sum;
+			}
+		});
+		benchmarks.add(new Benchmark("IntCounter.cursor per "+iteratedSize+" entries") {
+			public long run() {
+				double sum = 0.0;
+				for (IntCounter.Cursor cursor = iterated.cursor(); cursor.next(); ) {
+					sum += cursor.key() * cursor.value();
+				}
+				return (long) sum;
+			}
+		});
+		final double[] weights = new double[1 << 18];
+		for (int i=0; i<weights.length; ++i) {
+			weights[i] = rand.nextGaussian();
+		}
+		benchmarks.add(new Benchmark("IntCounter.dotProduct(double[]) per "+iteratedSize+" entries") {
+			public long run() {
+				return (long) iterated.dotProduct(weights);
+			}
+		});
+		final IntCounter sorted = iterated.copy();
+		sorted.toSorted();
+		benchmarks.add(new Benchmark("IntCounter.dotProduct(double[]) sorted per "+iteratedSize+" entries") {
+			public long run() {
+				return (long) sorted.dotProduct(weights);
+			}
+		});
+
+		// documents as a dictionary indexer numbers them: a run of new,
+		// consecutive ids, and ids seen before, skewed towards low ones
+		final int documentSize = 400;
+		final int[][] documents = new int[256][documentSize];
+		int nextNewId = 0;
+		for (int[] document : documents) {
+			for (int n=0; n<documentSize; ++n) {
+				double u = rand.nextDouble();
+				document[n] = n < documentSize / 4 ? nextNewId++ : (int) (u * u * nextNewId);
+			}
+		}
+		final IntCounter reused = new IntCounter();
+		benchmarks.add(new Benchmark("IntCounter fill and clear per "+documentSize+"-feature document") {
+			int next = 0;
+			public long run() {
+				next = (next + 1) & (documents.length - 1);
+				reused.clear();
+				for (int id : documents[next]) {
+					reused.incrementCount(id, 1.0);
+				}
+				return reused.size();
+			}
+		});
+		final IntCounter dense = new IntCounter();
+		for (int id=0; id<nextNewId; ++id) {
+			dense.setCount(id, 1.0);
+		}
+		final int denseSize = nextNewId;
+		benchmarks.add(new Benchmark("IntCounter.getCount per lookup, "+denseSize+" dense ids") {
+			int next = 0;
+			public long run() {
+				next = (next + 1) & (keys.length - 1);
+				// ids up to about twice denseSize, so about half of the lookups miss
+				return (long) dense.getCount(keys[next] * (2 * denseSize / 4096) + (next & 1));
+			}
+		});
+	}
+
+	private static void addCounterMapBenchmarks(List<Benchmark> benchmarks) {
+		// (word, context) pairs over a skewed vocabulary, so most pairs recur
+		final int numWords = 50000;
+		final String[] words = new String[numWords];
+		for (int i=0; i<numWords; ++i) {
+			words[i] = "w" + Integer.toString(i * 31 + 7, 36);
+		}
+		final int[] pairs = new int[2 << 20];
+		Random rand = new Random(0);
+		for (int i=0; i<pairs.length; ++i) {
+			double u = rand.nextDouble();
+			pairs[i] = (int) (u * u * numWords);
+		}
+		final CounterMap<String,String> counterMap = new CounterMap<String,String>();
+		benchmarks.add(new Benchmark("CounterMap.incrementCount per call") {
+			int next = 0;
+			public long run() {
+				next = (next + 2) & (pairs.length - 1);
+				counterMap.incrementCount(words[pairs[next]], words[pairs[next + 1]], 1.0);
+				return next;
+			}
+		});
+		final CompactCounterMap<String,String> compactCounterMap = new CompactCounterMap<String,String>();
+		benchmarks.add(new Benchmark("CompactCounterMap.incrementCount per call") {
+			int next = 0;
+			public long run() {
+				next = (next + 2) & (pairs.length - 1);
+				compactCounterMap.incrementCount(words[pairs[next]], words[pairs[next + 1]], 1.0);
+				return next;
+			}
+		});
+	}
+
+	private static void addClassifierBenchmarks(List<Benchmark> benchmarks) {
+		final SparseDataset data = syntheticData(2000, 20000, 40, 4, new Random(0));
+		benchmarks.add(new Benchmark("LibLinearWrapper.train per "+data.size()+" rows") {
+			public long run() {
+				LibLinearWrapper classifier = new LibLinearWrapper(MainLibLinear.solverType, MainLibLinear.C, MainLibLinear.eps);
+				classifier.train(data);
+				return classifier.predict(data, 0);
+			}
+		});
+		// as train(List) gets them from callers that still build counters
+		final List<Pair<CounterInterface<Integer>,Integer>> pairs = data.toPairs();
+		benchmarks.add(new Benchmark("LibLinearWrapper.train from counters per "+data.size()+" rows") {
+			public long run() {
+				LibLinearWrapper classifier = new LibLinearWrapper(MainLibLinear.solverType, MainLibLinear.C, MainLibLinear.eps);
+				classifier.train(pairs);
+				return classifier.predict(data, 0);
+			}
+		});
+		final LibLinearWrapper trained = new LibLinearWrapper(MainLibLinear.solverType, MainLibLinear.C, MainLibLinear.eps);
+		trained.train(data);
+		benchmarks.add(new Benchmark("LibLinearWrapper.predict per row") {
+			int next = 0;
+			public long run() {
+				if (next == data.size()) next = 0;
+				return trained.predict(data, next++);
+			}
+		});
+		benchmarks.add(new Benchmark("NaiveBayesClassifier.train per "+data.size()+" rows") {
+			public long run() {
+				NaiveBayesClassifier classifier = new NaiveBayesClassifier(1.0);
+				classifier.train(data);
+				return classifier.predict(data, 0);
+			}
+		});
+		final NaiveBayesClassifier naiveBayes = new NaiveBayesClassifier(1.0);
+		naiveBayes.train(data);
+		benchmarks.add(new Benchmark("NaiveBayesClassifier.predict per row") {
+			int next = 0;
+			public long run() {
+				if (next == data.size()) next = 0;
+				return naiveBayes.predict(data, next++);
+			}
+		});
+	}
+
+	/**
+	 * Rows of nonZeros distinct features, frequent ids more likely, labelled
+	 * by the best of numLabels random linear models so there is something to
+	 * learn.
+	 */
+	static SparseDataset syntheticData(int numRows, int numFeatures, int nonZeros, int numLabels, Random rand) {
+		double[][] weights = new double[numLabels][numFeatures];
+		for (double[] labelWeights : weights) {
+			for (int j=0; j<numFeatures; ++j) {
+				labelWeights[j] = rand.nextGaussian();
+			}
+		}
+		SparseDataset.Builder data = new SparseDataset.Builder(numRows * nonZeros);
+		boolean[] used = new boolean[numFeatures];
+		int[] row = new int[nonZeros];
+		for (int i=0; i<numRows; ++i) {
+			double[] scores = new double[numLabels];
+			for (int n=0; n<nonZeros; ++n) {
+				int feature;
+				do {
+					// squaring skews towards low ids
+					double u = rand.nextDouble();
+					feature = (int) (u * u * numFeatures);
+				} while (used[feature]);
+				used[feature] = true;
+				row[n] = feature;
+				data.add(feature, 1.0);
+				for (int l=0; l<numLabels; ++l) {
+					scores[l] += weights[l][feature];
+				}
+			}
+			for (int feature : row) {
+				used[feature] = false;
+			}
+			int label = 0;
+			for (int l=1; l<numLabels; ++l) {
+				if (scores[l] > scores[label]) label = l;
+			}
+			data.endRow(label);
+		}
+		return data.build();
+	}
+
+}
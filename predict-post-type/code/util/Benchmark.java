@@ -0,0 +1,121 @@
+package util;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * A small single-threaded benchmark harness, for suites run from a main
+ * method (see main.PostTypeBenchmark). An operation is timed in batches
+ * sized to take about a millisecond: first warm-up iterations, so the JIT
+ * has compiled it, then measured iterations of a fixed duration each.
+ * Reports operations per second (mean and standard deviation over the
+ * iterations) and, where the JVM can count allocated bytes per thread,
+ * bytes allocated per operation and the allocation rate, like JMH's
+ * "-prof gc" does.
+ */
+public abstract class Benchmark {
+
+	// results are summed here so the JIT cannot drop the operations
+	private static volatile long sink;
+
+	public final String name;
+
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * One operation. Its result should depend on the work done.
+	 */
+	public abstract long run();
+
+	public static class Result {
+		public final String name;
+		public final double opsPerSecond;
+		public final double opsPerSecondStdev;
+		// -1 if the JVM does not count allocations
+		public final double bytesPerOp;
+
+		public Result(String name, double opsPerSecond, double opsPerSecondStdev, double bytesPerOp) {
+			this.name = name;
+			this.opsPerSecond = opsPerSecond;
+			this.opsPerSecondStdev = opsPerSecondStdev;
+			this.bytesPerOp = bytesPerOp;
+		}
+
+		public double getAllocationMBPerSecond() {
+			return bytesPerOp < 0 ? -1.0 : bytesPerOp * opsPerSecond / (1 << 20);
+		}
+
+		public String toString() {
+			return String.format("%-40s %14.1f %10.1f %12.1f %10.1f", name, opsPerSecond, opsPerSecondStdev, bytesPerOp, getAllocationMBPerSecond());
+		}
+	}
+
+	public static void printHeader(PrintStream out) {
+		out.println(String.format("%-40s %14s %10s %12s %10s", "benchmark", "ops/s", "+-", "B/op", "MB/s"));
+	}
+
+	public static Result measure(Benchmark benchmark, double warmupSeconds, double iterationSeconds, int iterations) {
+		int batch = calibrate(benchmark);
+		runFor(benchmark, batch, (long) (warmupSeconds * 1e9));
+		double[] rates = new double[iterations];
+		long totalOps = 0L;
+		long allocatedBefore = allocatedBytes();
+		for (int i=0; i<iterations; ++i) {
+			long start = System.nanoTime();
+			long ops = runFor(benchmark, batch, (long) (iterationSeconds * 1e9));
+			rates[i] = ops / ((System.nanoTime() - start) / 1e9);
+			totalOps += ops;
+		}
+		long allocatedAfter = allocatedBytes();
+		double mean = 0.0;
+		for (double rate : rates) mean += rate;
+		mean /= iterations;
+		double variance = 0.0;
+		for (double rate : rates) variance += (rate - mean) * (rate - mean);
+		double stdev = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0.0;
+		double bytesPerOp = allocatedBefore < 0 ? -1.0 : (allocatedAfter - allocatedBefore) / (double) totalOps;
+		return new Result(benchmark.name, mean, stdev, bytesPerOp);
+	}
+
+	/**
+	 * Runs whole batches until at least nanos have passed; returns the
+	 * number of operations run.
+	 */
+	private static long runFor(Benchmark benchmark, int batch, long nanos) {
+		long ops = 0L;
+		long result = 0L;
+		long start = System.nanoTime();
+		do {
+			for (int i=0; i<batch; ++i) {
+				result += benchmark.run();
+			}
+			ops += batch;
+		} while (System.nanoTime() - start < nanos);
+		sink += result;
+		return ops;
+	}
+
+	// operations per batch, so a batch takes about a millisecond
+	private static int calibrate(Benchmark benchmark) {
+		int batch = 1;
+		while (batch < (1 << 24)) {
+			long start = System.nanoTime();
+			runFor(benchmark, batch, 0L);
+			if (System.nanoTime() - start >= 1000000L) break;
+			batch *= 2;
+		}
+		return batch;
+	}
+
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1L;
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		if (!allocations.isThreadAllocatedMemorySupported() || !allocations.isThreadAllocatedMemoryEnabled()) return -1L;
+		return allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+}
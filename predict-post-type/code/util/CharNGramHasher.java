@@ -0,0 +1,53 @@
+package util;
+
+/**
+ * Hashes every character n-gram of a char[] range with a polynomial rolling
+ * hash (arithmetic mod 2^64), one sliding window per n, so no substring or
+ * feature name is ever built. Each (seed, n, n-gram) triple gets its own
+ * well-mixed 64-bit hash, ready for HashingIndexer.getIndex(long).
+ */
+public final class CharNGramHasher {
+
+	public static interface NGramVisitor {
+		/**
+		 * Called once per n-gram, i.e. chars[start..start+n).
+		 */
+		public void visit(int n, int start, long hash);
+	}
+
+	private static final long BASE = 0x9e3779b97f4a7c15L;
+
+	private CharNGramHasher() {
+	}
+
+	/**
+	 * Visits all n-grams of chars[from..to) for minN <= n <= maxN, including
+	 * the ones that end at the last char.
+	 */
+	public static void hashNGrams(char[] chars, int from, int to, int minN, int maxN, long seed, NGramVisitor visitor) {
+		for (int n=minN; n<=maxN; ++n) {
+			if (to - from < n) break;
+			long nSeed = HashingIndexer.mix(seed + n * 0x632be59bd9b4e019L);
+			long pow = 1L;
+			for (int k=1; k<n; ++k) pow *= BASE;
+			long h = 0L;
+			for (int k=0; k<n; ++k) h = h * BASE + chars[from + k];
+			visitor.visit(n, from, HashingIndexer.mix(h ^ nSeed));
+			for (int start=from+1; start+n<=to; ++start) {
+				h = (h - chars[start - 1] * pow) * BASE + chars[start + n - 1];
+				visitor.visit(n, start, HashingIndexer.mix(h ^ nSeed));
+			}
+		}
+	}
+
+	/**
+	 * Hash of a single n-gram, equal to what hashNGrams passes to the visitor.
+	 */
+	public static long hashNGram(char[] chars, int start, int n, long seed) {
+		long nSeed = HashingIndexer.mix(seed + n * 0x632be59bd9b4e019L);
+		long h = 0L;
+		for (int k=0; k<n; ++k) h = h * BASE + chars[start + k];
+		return HashingIndexer.mix(h ^ nSeed);
+	}
+
+}
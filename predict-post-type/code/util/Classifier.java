@@ -7,8 +7,33 @@ public interface Classifier {
 	
 	public void train(List<Pair<CounterInterface<Integer>,Integer>> trainSet);
 	
+	public void train(SparseDataset trainSet);
+	
 	public Map<Integer,CounterInterface<Integer>> getWeights();
 	
 	public Integer predict(CounterInterface<Integer> testInstance);
+	
+	public int predict(SparseDataset data, int row);
+	
+	/**
+	 * One more than the largest label id the classifier can predict.
+	 */
+	public int getNumLabels();
+	
+	/**
+	 * Writes the score of each label id for a row into scores[0..getNumLabels()).
+	 * Higher is better, and predict() returns the best label.
+	 */
+	public void scores(SparseDataset data, int row, double[] scores);
+	
+	/**
+	 * predict() for every row, on numThreads threads.
+	 */
+	public int[] predictBatch(SparseDataset data, int numThreads);
+	
+	/**
+	 * scores() for every row, on numThreads threads: [row][label].
+	 */
+	public double[][] scoreBatch(SparseDataset data, int numThreads);
 
 }
@@ -0,0 +1,89 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Batch scoring shared by the Classifier implementations. Rows are split
+ * into contiguous chunks scored on a fixed pool; each row's result only
+ * depends on that row, so the output is the same for any number of threads.
+ */
+public class Classifiers {
+
+	// chunks per thread, so one slow chunk does not hold up the rest
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	static interface RowTask {
+		public void run(int from, int to);
+	}
+
+	public static int[] predictBatch(final Classifier classifier, final SparseDataset data, int numThreads) {
+		final int[] result = new int[data.size()];
+		forEachChunk(data.size(), numThreads, new RowTask() {
+			public void run(int from, int to) {
+				for (int i=from; i<to; ++i) {
+					result[i] = classifier.predict(data, i);
+				}
+			}
+		});
+		return result;
+	}
+
+	public static double[][] scoreBatch(final Classifier classifier, final SparseDataset data, int numThreads) {
+		final double[][] result = new double[data.size()][];
+		final int numLabels = classifier.getNumLabels();
+		forEachChunk(data.size(), numThreads, new RowTask() {
+			public void run(int from, int to) {
+				for (int i=from; i<to; ++i) {
+					result[i] = new double[numLabels];
+					classifier.scores(data, i, result[i]);
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Runs task over rows [0, size) in contiguous chunks on numThreads threads.
+	 */
+	static void forEachChunk(int size, int numThreads, final RowTask task) {
+		if (numThreads <= 1 || size < 2) {
+			task.run(0, size);
+			return;
+		}
+		int numChunks = Math.min(size, numThreads * CHUNKS_PER_THREAD);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(numThreads, numChunks));
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>(numChunks);
+			for (int c=0; c<numChunks; ++c) {
+				final int from = (int) ((long) size * c / numChunks);
+				final int to = (int) ((long) size * (c + 1) / numChunks);
+				futures.add(pool.submit(new Callable<Void>() {
+					public Void call() {
+						task.run(from, to);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,417 @@
+package util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A map from objects to doubles with the same behaviour as Counter, stored
+ * in two parallel arrays, keys and values, with open addressing and linear
+ * probing. There is no entry node and no boxed Double per key, so a key
+ * costs its two array slots (12 bytes with compressed references, at most
+ * 4/3 of that at the maximum load) instead of a HashMap node, a Double and
+ * a table slot (about 56 bytes). Slots are found by Fibonacci hashing of
+ * hashCode(), as in IntCounter. Null keys are not allowed. Iteration order
+ * is table order, so like Counter's it is unspecified.
+ *
+ * entries() still creates one Map.Entry per entry for CounterInterface
+ * callers; cursor() walks the entries without allocating.
+ */
+public class CompactCounter<E> implements CounterInterface<E>, Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	// 2^32 / golden ratio, odd
+	private static final int FIBONACCI_MULTIPLIER = 0x9e3779b9;
+
+	private static final double MAX_LOAD_FACTOR = 0.75;
+
+	// null marks a free slot
+	private Object[] keys;
+
+	private double[] values;
+
+	// hashCode() of each key, compared before calling equals
+	private int[] hashes;
+
+	private int size = 0;
+
+	// 32 - log2(keys.length)
+	private int shift;
+
+	public CompactCounter() {
+		this(8);
+	}
+
+	/**
+	 * Room for expectedSize keys before growing.
+	 */
+	public CompactCounter(int expectedSize) {
+		allocate(tableSize(expectedSize));
+	}
+
+	public CompactCounter(CounterInterface<? extends E> counter) {
+		this(counter.size());
+		incrementAll(counter);
+	}
+
+	private static int tableSize(int expectedSize) {
+		int minSize = Math.max(8, (int) (expectedSize / MAX_LOAD_FACTOR) + 1);
+		return Integer.highestOneBit(minSize - 1) << 1;
+	}
+
+	private void allocate(int length) {
+		keys = new Object[length];
+		values = new double[length];
+		hashes = new int[length];
+		shift = 32 - Integer.numberOfTrailingZeros(length);
+	}
+
+	private int slot(int hash) {
+		return (hash * FIBONACCI_MULTIPLIER) >>> shift;
+	}
+
+	/**
+	 * The slot holding key, whose hashCode() is hash, or the free slot where
+	 * it would go.
+	 */
+	private int find(Object key, int hash) {
+		final Object[] localKeys = keys;
+		final int[] localHashes = hashes;
+		final int mask = localKeys.length - 1;
+		int pos = slot(hash);
+		Object curr = localKeys[pos];
+		while (curr != null && (localHashes[pos] != hash || !curr.equals(key))) {
+			pos = (pos + 1) & mask;
+			curr = localKeys[pos];
+		}
+		return pos;
+	}
+
+	private void grow() {
+		Object[] oldKeys = keys;
+		double[] oldValues = values;
+		int[] oldHashes = hashes;
+		allocate(oldKeys.length * 2);
+		final int mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldKeys[i] == null) continue;
+			int pos = slot(oldHashes[i]);
+			while (keys[pos] != null) {
+				pos = (pos + 1) & mask;
+			}
+			keys[pos] = oldKeys[i];
+			values[pos] = oldValues[i];
+			hashes[pos] = oldHashes[i];
+		}
+	}
+
+	/**
+	 * The slot of key, inserting it with count 0 if it is missing.
+	 */
+	private int ensureKey(E key) {
+		if (key == null) throw new NullPointerException("CompactCounter does not allow null keys");
+		int hash = key.hashCode();
+		int pos = find(key, hash);
+		if (keys[pos] != null) return pos;
+		if (size + 1 > keys.length * MAX_LOAD_FACTOR) {
+			grow();
+			pos = find(key, hash);
+		}
+		keys[pos] = key;
+		values[pos] = 0.0;
+		hashes[pos] = hash;
+		size++;
+		return pos;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(E key) {
+		return key != null && keys[find(key, key.hashCode())] != null;
+	}
+
+	public double getCount(E key) {
+		if (key == null) return 0.0;
+		int pos = find(key, key.hashCode());
+		return keys[pos] == null ? 0.0 : values[pos];
+	}
+
+	public void setCount(E key, double count) {
+		// ensureKey may grow the table, so values must be read after it
+		int pos = ensureKey(key);
+		values[pos] = count;
+	}
+
+	public double incrementCount(E key, double increment) {
+		if (increment == 0.0) return getCount(key);
+		int pos = ensureKey(key);
+		values[pos] += increment;
+		return values[pos];
+	}
+
+	public <T extends E> void incrementAll(CounterInterface<T> counter, double scale) {
+		if (counter instanceof CompactCounter) {
+			CompactCounter<?> other = (CompactCounter<?>) counter;
+			for (int i = 0; i < other.keys.length; ++i) {
+				if (other.keys[i] == null) continue;
+				@SuppressWarnings("unchecked")
+				T key = (T) other.keys[i];
+				incrementCount(key, scale * other.values[i]);
+			}
+			return;
+		}
+		for (Map.Entry<T, Double> entry : counter.entries()) {
+			incrementCount(entry.getKey(), scale * entry.getValue());
+		}
+	}
+
+	public <T extends E> void incrementAll(CounterInterface<T> counter) {
+		incrementAll(counter, 1.0);
+	}
+
+	/**
+	 * Removes key, shifting back the entries probed past its slot so that no
+	 * tombstone is needed.
+	 */
+	public void removeKey(E key) {
+		if (key == null) return;
+		int pos = find(key, key.hashCode());
+		if (keys[pos] == null) return;
+		final int mask = keys.length - 1;
+		int free = pos;
+		int next = (free + 1) & mask;
+		while (keys[next] != null) {
+			int home = slot(hashes[next]);
+			// move next into the free slot unless its home lies in (free, next]
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				keys[free] = keys[next];
+				values[free] = values[next];
+				hashes[free] = hashes[next];
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[free] = null;
+		values[free] = 0.0;
+		size--;
+	}
+
+	/**
+	 * Empties the counter but keeps its table.
+	 */
+	public void clear() {
+		if (size == 0) return;
+		Arrays.fill(keys, null);
+		Arrays.fill(values, 0.0);
+		size = 0;
+	}
+
+	public void scale(double d) {
+		for (int i = 0; i < values.length; ++i) {
+			values[i] *= d;
+		}
+	}
+
+	public double totalCount() {
+		double total = 0.0;
+		for (int i = 0; i < values.length; ++i) {
+			total += values[i];
+		}
+		return total;
+	}
+
+	/**
+	 * Destructively normalize this counter in place.
+	 */
+	public void normalize() {
+		scale(1.0 / totalCount());
+	}
+
+	/**
+	 * A key with maximum count, or null if empty. Ties are broken
+	 * arbitrarily.
+	 */
+	@SuppressWarnings("unchecked")
+	public E argMax() {
+		double maxCount = Double.NEGATIVE_INFINITY;
+		E maxKey = null;
+		for (int i = 0; i < keys.length; ++i) {
+			if (keys[i] == null) continue;
+			if (values[i] > maxCount || maxKey == null) {
+				maxKey = (E) keys[i];
+				maxCount = values[i];
+			}
+		}
+		return maxKey;
+	}
+
+	public double dotProduct(CounterInterface<E> other) {
+		// walk the smaller table when both are compact
+		CompactCounter<?> walked = this;
+		CounterInterface<E> looked = other;
+		if (other instanceof CompactCounter && other.size() < size) {
+			walked = (CompactCounter<?>) other;
+			looked = this;
+		}
+		double sum = 0.0;
+		for (int i = 0; i < walked.keys.length; ++i) {
+			if (walked.keys[i] == null || walked.values[i] == 0.0) continue;
+			@SuppressWarnings("unchecked")
+			E key = (E) walked.keys[i];
+			sum += walked.values[i] * looked.getCount(key);
+		}
+		return sum;
+	}
+
+	/**
+	 * Builds a priority queue whose elements are the counter's elements, and
+	 * whose priorities are those elements' counts in the counter.
+	 */
+	@SuppressWarnings("unchecked")
+	public PriorityQueue<E> asPriorityQueue() {
+		PriorityQueue<E> pq = new PriorityQueue<E>(size);
+		for (int i = 0; i < keys.length; ++i) {
+			if (keys[i] != null) pq.add((E) keys[i], values[i]);
+		}
+		return pq;
+	}
+
+	/**
+	 * The keys ordered by decreasing counts, as Counter.toString.
+	 */
+	@Override
+	public String toString() {
+		return asPriorityQueue().toString(size, false);
+	}
+
+	public Counter<E> toCounter() {
+		Counter<E> counter = new Counter<E>();
+		for (Cursor cursor = cursor(); cursor.next(); ) {
+			counter.setCount(cursor.key(), cursor.value());
+		}
+		return counter;
+	}
+
+	/**
+	 * Walks the entries without allocating per entry, as IntCounter.cursor().
+	 * The counter must not be changed during the walk, other than through
+	 * setValue.
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	public final class Cursor
+	{
+		private int index = -1;
+
+		public boolean next() {
+			do {
+				index++;
+			} while (index < keys.length && keys[index] == null);
+			return index < keys.length;
+		}
+
+		@SuppressWarnings("unchecked")
+		public E key() {
+			return (E) keys[index];
+		}
+
+		public double value() {
+			return values[index];
+		}
+
+		public void setValue(double value) {
+			values[index] = value;
+		}
+	}
+
+	private abstract class SlotIterator<T> implements Iterator<T>
+	{
+		private int next = advance(-1);
+
+		private int advance(int from) {
+			int i = from + 1;
+			while (i < keys.length && keys[i] == null) i++;
+			return i;
+		}
+
+		public boolean hasNext() {
+			return next < keys.length;
+		}
+
+		int nextSlot() {
+			if (next >= keys.length) throw new NoSuchElementException();
+			int curr = next;
+			next = advance(next);
+			return curr;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private class Entry implements Map.Entry<E, Double>
+	{
+		private final int slot;
+
+		private Entry(int slot) {
+			this.slot = slot;
+		}
+
+		@SuppressWarnings("unchecked")
+		public E getKey() {
+			return (E) keys[slot];
+		}
+
+		public Double getValue() {
+			return values[slot];
+		}
+
+		public Double setValue(Double value) {
+			double old = values[slot];
+			values[slot] = value;
+			return old;
+		}
+	}
+
+	public Iterable<Map.Entry<E, Double>> entries() {
+		return new Iterable<Map.Entry<E, Double>>()
+		{
+			public Iterator<Map.Entry<E, Double>> iterator() {
+				return new SlotIterator<Map.Entry<E, Double>>()
+				{
+					public Map.Entry<E, Double> next() {
+						return new Entry(nextSlot());
+					}
+				};
+			}
+		};
+	}
+
+	public Iterable<E> keySet() {
+		return new Iterable<E>()
+		{
+			public Iterator<E> iterator() {
+				return new SlotIterator<E>()
+				{
+					@SuppressWarnings("unchecked")
+					public E next() {
+						return (E) keys[nextSlot()];
+					}
+				};
+			}
+		};
+	}
+
+}
@@ -0,0 +1,486 @@
+package util;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts of (key, value) pairs with the CounterMap API, for tables too large
+ * to hold as one HashMap of Counters per key. Keys and values are interned
+ * to dense int ids, and each pair is one entry of flat arrays: its ids packed
+ * into a long, its count, and the next entry with the same key. An
+ * open-addressing table of entry numbers, Fibonacci hashed as in IntCounter,
+ * finds a pair's entry. An entry costs 20 bytes plus 5 to 11 bytes of table,
+ * so 100M pairs with presized arrays fit in about 2.5GB, against hundreds of
+ * bytes per pair for CounterMap.
+ *
+ * Keys, and the values of each key, iterate in insertion order, and argMax
+ * ties go to the earliest entry. Pairs cannot be removed. Null keys and
+ * values are not allowed.
+ */
+public class CompactCounterMap<K, V> implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	// 2^64 / golden ratio, odd
+	private static final long FIBONACCI_MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+	// 2^32 / golden ratio, odd
+	private static final int INT_FIBONACCI_MULTIPLIER = 0x9e3779b9;
+
+	private static final double MAX_LOAD_FACTOR = 0.75;
+
+	private final Interner<K> keys;
+	private final Interner<V> values;
+
+	// per entry: key id << 32 | value id, count, and the key's next entry or -1
+	private long[] entryIds;
+	private double[] entryCounts;
+	private int[] nextOfKey;
+	private int numEntries = 0;
+
+	// per key id: its first and last entries
+	private int[] firstOfKey;
+	private int[] lastOfKey;
+
+	// entry numbers by hash of entryIds, -1 marks a free slot
+	private int[] slots;
+	// 64 - log2(slots.length)
+	private int shift;
+
+	public CompactCounterMap() {
+		this(16);
+	}
+
+	/**
+	 * Room for expectedEntries pairs before growing.
+	 */
+	public CompactCounterMap(int expectedEntries) {
+		this(new Interner<K>(), new Interner<V>(), expectedEntries);
+	}
+
+	private CompactCounterMap(Interner<K> keys, Interner<V> values, int expectedEntries) {
+		this.keys = keys;
+		this.values = values;
+		int capacity = Math.max(16, expectedEntries);
+		entryIds = new long[capacity];
+		entryCounts = new double[capacity];
+		nextOfKey = new int[capacity];
+		firstOfKey = new int[Math.max(16, keys.size())];
+		lastOfKey = new int[firstOfKey.length];
+		Arrays.fill(firstOfKey, -1);
+		allocateSlots(tableSize(capacity));
+	}
+
+	private static int tableSize(int expectedEntries) {
+		long minSize = Math.max(16, (long) (expectedEntries / MAX_LOAD_FACTOR) + 1);
+		if (minSize > 1 << 30) {
+			throw new RuntimeException(String.format("Too many entries for CompactCounterMap: %d", expectedEntries));
+		}
+		return Integer.highestOneBit((int) minSize - 1) << 1;
+	}
+
+	private void allocateSlots(int length) {
+		slots = new int[length];
+		Arrays.fill(slots, -1);
+		shift = 64 - Integer.numberOfTrailingZeros(length);
+	}
+
+	private static long pack(int keyId, int valueId) {
+		return ((long) keyId << 32) | (valueId & 0xffffffffL);
+	}
+
+	private int slot(long ids) {
+		return (int) ((ids * FIBONACCI_MULTIPLIER) >>> shift);
+	}
+
+	/**
+	 * The slot holding the entry for ids, or the free slot where it would go.
+	 */
+	private int find(long ids) {
+		final int[] localSlots = slots;
+		final long[] localIds = entryIds;
+		final int mask = localSlots.length - 1;
+		int pos = slot(ids);
+		int entry = localSlots[pos];
+		while (entry >= 0 && localIds[entry] != ids) {
+			pos = (pos + 1) & mask;
+			entry = localSlots[pos];
+		}
+		return pos;
+	}
+
+	// the entry of (key, value), or -1
+	private int entry(K key, V value) {
+		int keyId = keys.id(key);
+		if (keyId < 0) return -1;
+		int valueId = values.id(value);
+		if (valueId < 0) return -1;
+		return slots[find(pack(keyId, valueId))];
+	}
+
+	/**
+	 * The entry of (key, value), added with count 0 if it is missing.
+	 */
+	private int ensureEntry(K key, V value) {
+		if (key == null || value == null) throw new NullPointerException("CompactCounterMap does not allow null keys or values");
+		int keyId = keys.intern(key);
+		int valueId = values.intern(value);
+		return ensureEntry(keyId, valueId);
+	}
+
+	private int ensureEntry(int keyId, int valueId) {
+		long ids = pack(keyId, valueId);
+		int pos = find(ids);
+		if (slots[pos] >= 0) return slots[pos];
+		if (numEntries + 1 > slots.length * MAX_LOAD_FACTOR) {
+			growSlots();
+			pos = find(ids);
+		}
+		if (numEntries == entryIds.length) {
+			int capacity = (int) Math.min(Integer.MAX_VALUE - 8, (long) entryIds.length + (entryIds.length >> 1));
+			entryIds = Arrays.copyOf(entryIds, capacity);
+			entryCounts = Arrays.copyOf(entryCounts, capacity);
+			nextOfKey = Arrays.copyOf(nextOfKey, capacity);
+		}
+		if (keyId >= firstOfKey.length) {
+			int length = Math.max(keyId + 1, firstOfKey.length * 2);
+			int oldLength = firstOfKey.length;
+			firstOfKey = Arrays.copyOf(firstOfKey, length);
+			lastOfKey = Arrays.copyOf(lastOfKey, length);
+			Arrays.fill(firstOfKey, oldLength, length, -1);
+		}
+		int entry = numEntries++;
+		entryIds[entry] = ids;
+		entryCounts[entry] = 0.0;
+		nextOfKey[entry] = -1;
+		if (firstOfKey[keyId] < 0) firstOfKey[keyId] = entry;
+		else nextOfKey[lastOfKey[keyId]] = entry;
+		lastOfKey[keyId] = entry;
+		slots[pos] = entry;
+		return entry;
+	}
+
+	private void growSlots() {
+		allocateSlots(tableSize(slots.length));
+		final int mask = slots.length - 1;
+		for (int entry=0; entry<numEntries; ++entry) {
+			int pos = slot(entryIds[entry]);
+			while (slots[pos] >= 0) {
+				pos = (pos + 1) & mask;
+			}
+			slots[pos] = entry;
+		}
+	}
+
+	private static int keyId(long ids) {
+		return (int) (ids >>> 32);
+	}
+
+	private static int valueId(long ids) {
+		return (int) ids;
+	}
+
+	/**
+	 * Sets the count for a particular (key, value) pair.
+	 */
+	public void setCount(K key, V value, double count) {
+		int entry = ensureEntry(key, value);
+		entryCounts[entry] = count;
+	}
+
+	/**
+	 * Increments the count for a particular (key, value) pair.
+	 */
+	public void incrementCount(K key, V value, double count) {
+		int entry = ensureEntry(key, value);
+		entryCounts[entry] += count;
+	}
+
+	/**
+	 * Gets the count of the given (key, value) entry, or zero if that entry is
+	 * not present. Does not create any objects.
+	 */
+	public double getCount(K key, V value) {
+		int entry = entry(key, value);
+		return entry < 0 ? 0.0 : entryCounts[entry];
+	}
+
+	/**
+	 * Gets the total count of the given key, or zero if that key is not
+	 * present.
+	 */
+	public double getCount(K key) {
+		int keyId = keys.id(key);
+		if (keyId < 0) return 0.0;
+		double total = 0.0;
+		for (int entry=firstOfKey[keyId]; entry>=0; entry=nextOfKey[entry]) {
+			total += entryCounts[entry];
+		}
+		return total;
+	}
+
+	/**
+	 * A copy of the counts of the given key's values, empty if the key is not
+	 * present. Unlike CounterMap.getCounter, changing it does not change this
+	 * map, and the key is not inserted.
+	 */
+	public CompactCounter<V> getCounter(K key) {
+		int keyId = keys.id(key);
+		if (keyId < 0) return new CompactCounter<V>();
+		int size = 0;
+		for (int entry=firstOfKey[keyId]; entry>=0; entry=nextOfKey[entry]) {
+			size++;
+		}
+		CompactCounter<V> counter = new CompactCounter<V>(size);
+		for (int entry=firstOfKey[keyId]; entry>=0; entry=nextOfKey[entry]) {
+			counter.setCount(values.get(valueId(entryIds[entry])), entryCounts[entry]);
+		}
+		return counter;
+	}
+
+	public boolean containsKey(K key) {
+		return keys.id(key) >= 0;
+	}
+
+	public boolean containsKey(K key, V value) {
+		return entry(key, value) >= 0;
+	}
+
+	/**
+	 * The keys, in the order they were first inserted.
+	 */
+	public List<K> keySet() {
+		return keys.asList();
+	}
+
+	/**
+	 * The number of keys (not of key-value entries -- use totalSize() for that).
+	 */
+	public int size() {
+		return keys.size();
+	}
+
+	/**
+	 * The number of (key, value) entries.
+	 */
+	public int totalSize() {
+		return numEntries;
+	}
+
+	public boolean isEmpty() {
+		return numEntries == 0;
+	}
+
+	/**
+	 * Returns the total of all counts.
+	 */
+	public double totalCount() {
+		double total = 0.0;
+		for (int entry=0; entry<numEntries; ++entry) {
+			total += entryCounts[entry];
+		}
+		return total;
+	}
+
+	/**
+	 * A (key, value) pair with the maximum count, or null if empty. Ties go
+	 * to the pair inserted first.
+	 */
+	public Pair<K, V> argMax() {
+		int best = -1;
+		for (int entry=0; entry<numEntries; ++entry) {
+			if (best < 0 || entryCounts[entry] > entryCounts[best]) best = entry;
+		}
+		if (best < 0) return null;
+		return new Pair<K, V>(keys.get(keyId(entryIds[best])), values.get(valueId(entryIds[best])));
+	}
+
+	/**
+	 * The key's value with the maximum count, or null if the key is not
+	 * present. Ties go to the value inserted first. Same as
+	 * getCounter(key).argMax() apart from ties, without the copy.
+	 */
+	public V argMax(K key) {
+		int keyId = keys.id(key);
+		if (keyId < 0) return null;
+		int best = -1;
+		for (int entry=firstOfKey[keyId]; entry>=0; entry=nextOfKey[entry]) {
+			if (best < 0 || entryCounts[entry] > entryCounts[best]) best = entry;
+		}
+		return values.get(valueId(entryIds[best]));
+	}
+
+	/**
+	 * Normalizes the counts of each key to sum to 1.
+	 */
+	public void normalize() {
+		double[] totals = new double[keys.size()];
+		for (int entry=0; entry<numEntries; ++entry) {
+			totals[keyId(entryIds[entry])] += entryCounts[entry];
+		}
+		for (int entry=0; entry<numEntries; ++entry) {
+			entryCounts[entry] /= totals[keyId(entryIds[entry])];
+		}
+	}
+
+	/**
+	 * Scale all entries by scaleFactor.
+	 */
+	public void scale(double scaleFactor) {
+		for (int entry=0; entry<numEntries; ++entry) {
+			entryCounts[entry] *= scaleFactor;
+		}
+	}
+
+	/**
+	 * Constructs the reverse map, where the count of a pair (k,v) is the count
+	 * of (v,k) in this one. It starts from copies of the interned keys and
+	 * values, so ids carry over without hashing any object.
+	 */
+	public CompactCounterMap<V, K> invert() {
+		CompactCounterMap<V, K> inverted = new CompactCounterMap<V, K>(new Interner<V>(values), new Interner<K>(keys), numEntries);
+		for (int entry=0; entry<numEntries; ++entry) {
+			long ids = entryIds[entry];
+			int invertedEntry = inverted.ensureEntry(valueId(ids), keyId(ids));
+			inverted.entryCounts[invertedEntry] = entryCounts[entry];
+		}
+		return inverted;
+	}
+
+	public String toString(int maxValsPerKey) {
+		StringBuilder sb = new StringBuilder("[\n");
+		for (K key : keySet()) {
+			sb.append("  ");
+			sb.append(key);
+			sb.append(" -> ");
+			sb.append(getCounter(key).asPriorityQueue().toString(maxValsPerKey, false));
+			sb.append("\n");
+		}
+		sb.append("]");
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return toString(20);
+	}
+
+	/**
+	 * Objects numbered 0, 1, ... in the order they are first interned, found
+	 * by an open-addressing table of ids. Objects are never removed.
+	 */
+	private static final class Interner<T> implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private Object[] objects = new Object[16];
+		// hashCode() of each object, compared before calling equals
+		private int[] hashes = new int[16];
+		private int size = 0;
+		// ids by hash, -1 marks a free slot
+		private int[] slots;
+		// 32 - log2(slots.length)
+		private int shift;
+
+		Interner() {
+			allocate(32);
+		}
+
+		Interner(Interner<T> other) {
+			objects = Arrays.copyOf(other.objects, other.objects.length);
+			hashes = Arrays.copyOf(other.hashes, other.hashes.length);
+			size = other.size;
+			slots = Arrays.copyOf(other.slots, other.slots.length);
+			shift = other.shift;
+		}
+
+		private void allocate(int length) {
+			slots = new int[length];
+			Arrays.fill(slots, -1);
+			shift = 32 - Integer.numberOfTrailingZeros(length);
+		}
+
+		private int find(Object object, int hash) {
+			final int mask = slots.length - 1;
+			int pos = (hash * INT_FIBONACCI_MULTIPLIER) >>> shift;
+			int id = slots[pos];
+			while (id >= 0 && (hashes[id] != hash || !objects[id].equals(object))) {
+				pos = (pos + 1) & mask;
+				id = slots[pos];
+			}
+			return pos;
+		}
+
+		int size() {
+			return size;
+		}
+
+		@SuppressWarnings("unchecked")
+		T get(int id) {
+			return (T) objects[id];
+		}
+
+		// the id of object, or -1
+		int id(T object) {
+			if (object == null) return -1;
+			return slots[find(object, object.hashCode())];
+		}
+
+		int intern(T object) {
+			int hash = object.hashCode();
+			int pos = find(object, hash);
+			if (slots[pos] >= 0) return slots[pos];
+			if (size + 1 > slots.length * MAX_LOAD_FACTOR) {
+				allocate(slots.length * 2);
+				final int mask = slots.length - 1;
+				for (int id=0; id<size; ++id) {
+					int free = (hashes[id] * INT_FIBONACCI_MULTIPLIER) >>> shift;
+					while (slots[free] >= 0) {
+						free = (free + 1) & mask;
+					}
+					slots[free] = id;
+				}
+				pos = find(object, hash);
+			}
+			if (size == objects.length) {
+				objects = Arrays.copyOf(objects, size * 2);
+				hashes = Arrays.copyOf(hashes, size * 2);
+			}
+			objects[size] = object;
+			hashes[size] = hash;
+			slots[pos] = size;
+			return size++;
+		}
+
+		List<T> asList() {
+			return new AbstractList<T>() {
+				public T get(int index) {
+					if (index >= size) throw new IndexOutOfBoundsException(String.format("Index %d of %d", index, size));
+					return Interner.this.get(index);
+				}
+
+				public int size() {
+					return size;
+				}
+			};
+		}
+	}
+
+	public static void main(String[] args) {
+		CompactCounterMap<String, String> bigramCounterMap = new CompactCounterMap<String, String>();
+		bigramCounterMap.incrementCount("people", "run", 1);
+		bigramCounterMap.incrementCount("cats", "growl", 2);
+		bigramCounterMap.incrementCount("cats", "scamper", 3);
+		System.out.println(bigramCounterMap);
+		System.out.println("Entries for cats: " + bigramCounterMap.getCounter("cats"));
+		System.out.println("Entries for dogs: " + bigramCounterMap.getCounter("dogs"));
+		System.out.println("Count of cats scamper: " + bigramCounterMap.getCount("cats", "scamper"));
+		System.out.println("Count of snakes slither: " + bigramCounterMap.getCount("snakes", "slither"));
+		System.out.println("Total size: " + bigramCounterMap.totalSize());
+		System.out.println("Total count: " + bigramCounterMap.totalCount());
+		System.out.println("Inverted: " + bigramCounterMap.invert());
+		bigramCounterMap.normalize();
+		System.out.println("Normalized: " + bigramCounterMap);
+	}
+
+}
@@ -0,0 +1,140 @@
+package util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Indexer that can be shared between threads. Lookups of known objects go
+ * straight to a ConcurrentHashMap and never block; new ids are handed out
+ * inside computeIfAbsent, so only threads racing on the same hash bin wait on
+ * each other and ids stay dense. Once locked, getIndex is a plain map read.
+ *
+ * Ids are assigned in first-come order, so with several writers the id of a
+ * given object depends on scheduling.
+ */
+public class ConcurrentHashMapIndexer<A> implements Indexer<A> {
+
+	private static final int CHUNK_BITS = 14;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private volatile boolean locked;
+	private volatile Object[][] objectByIndex;
+	private final AtomicInteger nextIndex;
+	// bumped after every store, so that getObject can wait for one
+	private final AtomicInteger numStored;
+	private ConcurrentHashMap<A,Integer> indexByObject;
+	private final Function<A,Integer> newIndex = new Function<A,Integer>() {
+		public Integer apply(A newObject) {
+			int index = nextIndex.getAndIncrement();
+			store(index, newObject);
+			return index;
+		}
+	};
+
+	public ConcurrentHashMapIndexer() {
+		this(16);
+	}
+
+	public ConcurrentHashMapIndexer(int initCapacity) {
+		locked = false;
+		objectByIndex = new Object[1][];
+		objectByIndex[0] = new Object[CHUNK_SIZE];
+		nextIndex = new AtomicInteger(0);
+		numStored = new AtomicInteger(0);
+		indexByObject = new ConcurrentHashMap<A,Integer>(initCapacity);
+	}
+
+	public void lock() {
+		this.locked = true;
+	}
+
+	public boolean locked() {
+		return locked;
+	}
+
+	public int size() {
+		return nextIndex.get();
+	}
+
+	public boolean contains(A object) {
+		return indexByObject.containsKey(object);
+	}
+
+	/**
+	 * The id of object, or -1 if it has none. Never adds it, locked or not.
+	 */
+	public int indexOf(A object) {
+		Integer index = indexByObject.get(object);
+		return index == null ? -1 : index;
+	}
+
+	public int getIndex(A object) {
+		Integer index = indexByObject.get(object);
+		if (index != null) return index;
+		if (locked) {
+			throw new RuntimeException(String.format("Indexer locked, and object not in indexer: %s", object.toString()));
+		}
+		return indexByObject.computeIfAbsent(object, newIndex);
+	}
+
+	/**
+	 * An id is handed out just before its object is stored (see newIndex), so
+	 * for an id another thread has just been given, e.g. one below size(),
+	 * this waits until the object is there.
+	 */
+	@SuppressWarnings("unchecked")
+	public A getObject(int index) {
+		if (index < 0 || index >= nextIndex.get()) {
+			throw new RuntimeException(String.format("Index not in indexer: %d", index));
+		}
+		while (true) {
+			// reading numStored makes the stores before it visible
+			numStored.get();
+			Object[][] chunks = objectByIndex;
+			if ((index >>> CHUNK_BITS) < chunks.length) {
+				Object object = chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+				if (object != null) return (A) object;
+			}
+			Thread.yield();
+		}
+	}
+
+	public void index(A[] vect) {
+		for (A x : vect) {
+			getIndex(x);
+		}
+	}
+
+	/**
+	 * Called before the new id is published through the map, so any thread
+	 * that has seen the id also sees the object.
+	 */
+	private void store(int index, A object) {
+		int chunk = index >>> CHUNK_BITS;
+		Object[][] chunks = objectByIndex;
+		if (chunk >= chunks.length) {
+			chunks = grow(chunk);
+		}
+		chunks[chunk][index & CHUNK_MASK] = object;
+		numStored.incrementAndGet();
+	}
+
+	private synchronized Object[][] grow(int chunk) {
+		Object[][] chunks = objectByIndex;
+		if (chunk < chunks.length) return chunks;
+		Object[][] newChunks = new Object[Math.max(chunk + 1, chunks.length * 2)][];
+		System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+		for (int c = chunks.length; c < newChunks.length; ++c) {
+			newChunks[c] = new Object[CHUNK_SIZE];
+		}
+		objectByIndex = newChunks;
+		return newChunks;
+	}
+
+	public void forgetIndexLookup() {
+		this.indexByObject = null;
+	}
+
+}
@@ -0,0 +1,70 @@
+package util;
+
+/**
+ * Approximate counts of long keys (e.g. packed FeatureKeys) in fixed memory:
+ * depth rows of 2^bits counters, each key adding to one counter per row and
+ * its estimate being the smallest of them. Estimates never undercount; they
+ * overcount only where keys collide in every row. Adds use conservative
+ * update (only the counters at the current minimum grow), which keeps the
+ * overcount of rare keys small. Not thread safe.
+ */
+public class CountMinSketch {
+
+	private final int depth;
+	private final int mask;
+	private final int[][] counts;
+
+	public CountMinSketch(int bits, int depth) {
+		if (bits < 1 || bits > 30 || depth < 1) {
+			throw new IllegalArgumentException(String.format("Bad sketch size: 2^%d x %d", bits, depth));
+		}
+		this.depth = depth;
+		this.mask = (1 << bits) - 1;
+		this.counts = new int[depth][1 << bits];
+	}
+
+	public void add(long key) {
+		long hash = HashingIndexer.hash(key);
+		int min = estimateHashed(hash);
+		if (min == Integer.MAX_VALUE) return;
+		for (int r=0; r<depth; ++r) {
+			int[] row = counts[r];
+			int bucket = bucket(hash, r);
+			if (row[bucket] == min) row[bucket] = min + 1;
+		}
+	}
+
+	/**
+	 * Adds each key once, e.g. the distinct features of one document for
+	 * document frequencies.
+	 */
+	public void addAll(long[] keys) {
+		for (long key : keys) {
+			add(key);
+		}
+	}
+
+	public int estimate(long key) {
+		return estimateHashed(HashingIndexer.hash(key));
+	}
+
+	private int estimateHashed(long hash) {
+		int min = Integer.MAX_VALUE;
+		for (int r=0; r<depth; ++r) {
+			min = Math.min(min, counts[r][bucket(hash, r)]);
+		}
+		return min;
+	}
+
+	// double hashing: row r probes h1 + r * h2, with h2 odd
+	private int bucket(long hash, int row) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		return (h1 + row * h2) & mask;
+	}
+
+	public long getMemoryBytes() {
+		return 4L * depth * (mask + 1);
+	}
+
+}
@@ -0,0 +1,107 @@
+package util;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import de.bwaldvogel.liblinear.Feature;
+
+/**
+ * A reusable Feature[] for handing one example at a time to LibLinear, so
+ * that predicting does not allocate a FeatureNode per feature. The array is
+ * only reallocated when an example is longer than any before it; entries
+ * past the current example are padding with an index beyond any model
+ * feature, which Linear.predict and LibLinearWrapper skip. Not thread safe.
+ */
+final class FeatureBuffer {
+
+	private static final int PADDING_INDEX = Integer.MAX_VALUE;
+
+	private static final class Node implements Feature {
+		int index = PADDING_INDEX;
+		double value = 0.0;
+
+		public int getIndex() {
+			return index;
+		}
+
+		public double getValue() {
+			return value;
+		}
+
+		public void setValue(double value) {
+			this.value = value;
+		}
+	}
+
+	private int[] indices = new int[16];
+	private double[] values = new double[16];
+	private Node[] nodes = new Node[0];
+	// nodes[0..filled) are not padding
+	private int filled = 0;
+
+	/**
+	 * Row of a dataset, which is already sorted by feature id.
+	 */
+	public Feature[] set(SparseDataset data, int row) {
+		int start = data.getRowStart(row);
+		int n = data.getRowEnd(row) - start;
+		ensureCapacity(n);
+		for (int j=0; j<n; ++j) {
+			nodes[j].index = data.getFeature(start + j)+1;
+			nodes[j].value = data.getValue(start + j);
+		}
+		pad(n);
+		return nodes;
+	}
+
+	/**
+	 * Entries of a counter. An IntCounter is copied without boxing, and
+	 * without sorting if it is in sorted mode (see IntCounter.toSorted).
+	 */
+	public Feature[] set(CounterInterface<Integer> features) {
+		ensureCapacity(features.size());
+		int n = 0;
+		boolean sorted = false;
+		if (features instanceof IntCounter) {
+			n = ((IntCounter) features).copyEntries(indices, values);
+			sorted = ((IntCounter) features).isSorted();
+		} else {
+			for (Map.Entry<Integer, Double> feat : features.entries()) {
+				indices[n] = feat.getKey();
+				values[n] = feat.getValue();
+				n++;
+			}
+		}
+		if (!sorted) SparseDataset.Builder.sort(indices, values, 0, n - 1);
+		for (int j=0; j<n; ++j) {
+			nodes[j].index = indices[j]+1;
+			nodes[j].value = values[j];
+		}
+		pad(n);
+		return nodes;
+	}
+
+	private void ensureCapacity(int n) {
+		if (n > indices.length) {
+			int capacity = Math.max(n, 2 * indices.length);
+			indices = new int[capacity];
+			values = new double[capacity];
+		}
+		if (n > nodes.length) {
+			int oldLength = nodes.length;
+			nodes = Arrays.copyOf(nodes, Math.max(n, 2 * oldLength));
+			for (int j=oldLength; j<nodes.length; ++j) {
+				nodes[j] = new Node();
+			}
+		}
+	}
+
+	private void pad(int n) {
+		for (int j=n; j<filled; ++j) {
+			nodes[j].index = PADDING_INDEX;
+			nodes[j].value = 0.0;
+		}
+		filled = n;
+	}
+
+}
@@ -0,0 +1,188 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Featurized data saved to one binary file, so that a rerun over the same
+ * inputs can skip reading and featurizing the corpus. The file holds the
+ * datasets with their thread ids, the feature indexer, and the FeatureKey
+ * prefix and token dictionaries that feature names are rendered from:
+ *
+ *   magic, version, cache key
+ *   prefixes, tokens                       count, then length + UTF-8 bytes each
+ *   indexer                                type byte, then its own write()
+ *   datasets                               count, then per dataset its
+ *                                          SparseDataset.write() and thread ids
+ *
+ * All numbers are big endian, and arrays are stored flat so that load()
+ * memory-maps the file and bulk-copies them out. Callers choose the cache
+ * key, e.g. a hash of the input files and the extractor settings; load()
+ * only checks that the file was written for the same key.
+ */
+public class FeatureCache {
+
+	private static final int MAGIC = 0x46434831;
+	private static final int VERSION = 1;
+	private static final byte FEATURE_KEY_INDEXER = 0;
+	// hashed feature keys rather than feature names; no longer readable
+	private static final byte KEY_HASHING_INDEXER = 1;
+	private static final byte HASHING_INDEXER = 2;
+
+	public final Indexer<FeatureKey> featureIndexer;
+	public final List<SparseDataset> datasets;
+	public final List<List<String>> threadIds;
+
+	public FeatureCache(Indexer<FeatureKey> featureIndexer, List<SparseDataset> datasets, List<List<String>> threadIds) {
+		this.featureIndexer = featureIndexer;
+		this.datasets = datasets;
+		this.threadIds = threadIds;
+	}
+
+	/**
+	 * Writes to a temporary file first and renames it, so a crashed run never
+	 * leaves a truncated cache behind.
+	 */
+	public void save(File file, long key) {
+		File tmp = new File(file.getPath()+".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(key);
+				writeStrings(out, FeatureKey.prefixes);
+				writeStrings(out, FeatureKey.tokens);
+				writeIndexer(out, featureIndexer);
+				out.writeInt(datasets.size());
+				for (int d=0; d<datasets.size(); ++d) {
+					datasets.get(d).write(out);
+					out.writeInt(threadIds.get(d).size());
+					for (String threadId : threadIds.get(d)) {
+						writeString(out, threadId);
+					}
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw new RuntimeException(e);
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new RuntimeException(String.format("Could not move feature cache to %s", file.getPath()));
+		}
+	}
+
+	/**
+	 * Returns null if the file does not exist or was written with another key
+	 * or format version. Restores the FeatureKey dictionaries, so it must run
+	 * before anything else adds prefixes or tokens.
+	 */
+	public static FeatureCache load(File file, long key) {
+		if (!file.isFile()) return null;
+		ByteBuffer in = map(file);
+		if (in.remaining() < 16 || in.getInt() != MAGIC || in.getInt() != VERSION || in.getLong() != key) {
+			return null;
+		}
+		readStrings(in, FeatureKey.prefixes);
+		readStrings(in, FeatureKey.tokens);
+		Indexer<FeatureKey> featureIndexer = readIndexer(in);
+		int numDatasets = in.getInt();
+		List<SparseDataset> datasets = new ArrayList<SparseDataset>(numDatasets);
+		List<List<String>> threadIds = new ArrayList<List<String>>(numDatasets);
+		for (int d=0; d<numDatasets; ++d) {
+			datasets.add(SparseDataset.read(in));
+			int numIds = in.getInt();
+			List<String> ids = new ArrayList<String>(numIds);
+			for (int i=0; i<numIds; ++i) {
+				ids.add(readString(in));
+			}
+			threadIds.add(ids);
+		}
+		return new FeatureCache(featureIndexer, datasets, threadIds);
+	}
+
+	static ByteBuffer map(File file) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static void writeIndexer(DataOutputStream out, Indexer<FeatureKey> featureIndexer) throws IOException {
+		if (featureIndexer instanceof FeatureKeyIndexer) {
+			out.writeByte(FEATURE_KEY_INDEXER);
+			((FeatureKeyIndexer) featureIndexer).write(out);
+		} else if (featureIndexer instanceof HashingIndexer) {
+			out.writeByte(HASHING_INDEXER);
+			((HashingIndexer) featureIndexer).write(out);
+		} else {
+			throw new RuntimeException(String.format("Cannot write feature indexer: %s", featureIndexer.getClass().getName()));
+		}
+	}
+
+	static Indexer<FeatureKey> readIndexer(ByteBuffer in) {
+		byte indexerType = in.get();
+		if (indexerType == FEATURE_KEY_INDEXER) {
+			return FeatureKeyIndexer.read(in);
+		} else if (indexerType == HASHING_INDEXER) {
+			return HashingIndexer.read(in);
+		} else if (indexerType == KEY_HASHING_INDEXER) {
+			throw new RuntimeException("Features were hashed by an older version, which gave different ids; featurize and train again");
+		}
+		throw new RuntimeException(String.format("Unknown feature indexer type: %d", indexerType));
+	}
+
+	static void writeStrings(DataOutputStream out, Indexer<String> indexer) throws IOException {
+		int size = indexer.size();
+		out.writeInt(size);
+		for (int i=0; i<size; ++i) {
+			writeString(out, indexer.getObject(i));
+		}
+	}
+
+	/**
+	 * Adds the strings to the indexer under the ids they were written with.
+	 * Strings the indexer already has must match.
+	 */
+	static void readStrings(ByteBuffer in, Indexer<String> indexer) {
+		int size = in.getInt();
+		for (int i=0; i<size; ++i) {
+			String s = readString(in);
+			if (i < indexer.size() ? !indexer.getObject(i).equals(s) : indexer.getIndex(s) != i) {
+				throw new RuntimeException(String.format("Feature cache does not match the strings already indexed, at %d: %s", i, s));
+			}
+		}
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
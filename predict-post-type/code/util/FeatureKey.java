@@ -0,0 +1,418 @@
+package util;
+
+/**
+ * A feature identified by a template and a small payload instead of by its
+ * name, all packed into one long:
+ *
+ *   bits 58-63  template (ordinal + 1, so no key is 0)
+ *   bits 52-57  prefix id, e.g. "INIT" or "", from the prefixes indexer
+ *   bits 48-51  n, the number of words or chars
+ *   bits  0-47  data: token ids from the tokens indexer, or packed chars
+ *
+ * Building a key costs a couple of dictionary lookups for the words involved
+ * and no string concatenation; the name is only rendered (toString) when a
+ * weight is reported. Features that do not fit a template are kept whole as
+ * NAMED keys, and HASHED keys carry an id that a HashingIndexer already
+ * assigned.
+ *
+ * Dictionary ids depend on the order threads are featurized in, so in
+ * hashing mode features are hashed from their characters instead (see hash):
+ * a hashed feature has the same id in every run, and needs no dictionary.
+ */
+public final class FeatureKey {
+
+	public static enum Template {
+		NAMED,
+		BIAS,
+		WORD_NGRAM,
+		WORD_NGRAM_STEM,
+		CHAR_NGRAM,
+		CHAR_NGRAM_TOKEN,
+		RANK,
+		TOTAL_POSTS,
+		REPUTATION,
+		HASHED
+	}
+
+	private static final Template[] TEMPLATES = Template.values();
+
+	private static final int TEMPLATE_SHIFT = 58;
+	private static final int PREFIX_SHIFT = 52;
+	private static final int N_SHIFT = 48;
+	private static final int MAX_PREFIXES = 1 << 6;
+	private static final int MAX_N = (1 << 4) - 1;
+	private static final long DATA_MASK = (1L << N_SHIFT) - 1;
+	// two word ids in the data bits
+	private static final int WORD_BITS = 24;
+	private static final long WORD_MASK = (1L << WORD_BITS) - 1;
+	// up to six Latin-1 chars in the data bits
+	public static final int MAX_PACKED_CHARS = 6;
+
+	// shared by all extraction threads
+	public static final ConcurrentHashMapIndexer<String> prefixes = new ConcurrentHashMapIndexer<String>();
+	public static final ConcurrentHashMapIndexer<String> tokens = new ConcurrentHashMapIndexer<String>();
+
+	/**
+	 * What the builders return for a feature whose token or prefix is not in
+	 * the locked dictionaries, i.e. that no loaded model can know. Never a
+	 * valid key, since every template has a nonzero tag.
+	 */
+	public static final long NONE = 0L;
+
+	private final long key;
+
+	public FeatureKey(long key) {
+		this.key = key;
+	}
+
+	public long getKey() {
+		return key;
+	}
+
+	public static long pack(Template template, int prefix, int n, long data) {
+		return ((long) (template.ordinal() + 1) << TEMPLATE_SHIFT) | ((long) prefix << PREFIX_SHIFT) | ((long) n << N_SHIFT) | data;
+	}
+
+	public static Template getTemplate(long key) {
+		return TEMPLATES[(int) (key >>> TEMPLATE_SHIFT) - 1];
+	}
+
+	public static int getPrefix(long key) {
+		return (int) (key >>> PREFIX_SHIFT) & (MAX_PREFIXES - 1);
+	}
+
+	public static int getN(long key) {
+		return (int) (key >>> N_SHIFT) & MAX_N;
+	}
+
+	public static long getData(long key) {
+		return key & DATA_MASK;
+	}
+
+	/**
+	 * Locks the prefix and token dictionaries, e.g. once a model is loaded,
+	 * so that extraction only looks them up: features with unknown tokens
+	 * become NONE instead of growing the dictionaries.
+	 */
+	public static void lockDictionaries() {
+		prefixes.lock();
+		tokens.lock();
+	}
+
+	/**
+	 * The id of prefix, or -1 if the dictionaries are locked and do not
+	 * have it.
+	 */
+	public static int prefixId(String prefix) {
+		if (prefixes.locked()) return prefixes.indexOf(prefix);
+		int id = prefixes.getIndex(prefix);
+		if (id >= MAX_PREFIXES) {
+			throw new RuntimeException(String.format("Too many feature prefixes (%d), cannot add: %s", MAX_PREFIXES, prefix));
+		}
+		return id;
+	}
+
+	public static long named(String name) {
+		int id = tokenId(name);
+		if (id < 0) return NONE;
+		return pack(Template.NAMED, 0, 0, id);
+	}
+
+	public static long bias() {
+		return pack(Template.BIAS, 0, 0, 0L);
+	}
+
+	/**
+	 * An id from HashingIndexer.getIndex(long), used as is.
+	 */
+	public static long hashed(int index) {
+		return pack(Template.HASHED, 0, 0, index);
+	}
+
+	/**
+	 * prefix+"_WORDNGRAM_N1_"+word, or prefix+"_WORDNGRAM_N1_STEM_"+word.
+	 */
+	public static long wordUnigram(int prefix, String word, boolean stem) {
+		int id = tokenId(word);
+		if (prefix < 0 || id < 0) return NONE;
+		return pack(stem ? Template.WORD_NGRAM_STEM : Template.WORD_NGRAM, prefix, 1, id);
+	}
+
+	/**
+	 * prefix+"_WORDNGRAM_N2_"+word+"_"+nextWord, or the same with "_STEM".
+	 */
+	public static long wordBigram(int prefix, String word, String nextWord, boolean stem) {
+		long first = tokenId(word);
+		long second = tokenId(nextWord);
+		if (prefix < 0 || first < 0 || second < 0) return NONE;
+		Template template = stem ? Template.WORD_NGRAM_STEM : Template.WORD_NGRAM;
+		if (first > WORD_MASK || second > WORD_MASK) {
+			// out of room for two ids: keep the name instead
+			return named(render(template, prefixes.getObject(prefix), 2, word+"_"+nextWord));
+		}
+		return pack(template, prefix, 2, (first << WORD_BITS) | second);
+	}
+
+	/**
+	 * prefix+"_CHARNGRAM_N"+n+"_"+chars[start..start+n). Short Latin-1
+	 * n-grams are packed into the key itself, longer ones go through the
+	 * tokens indexer.
+	 */
+	public static long charNGram(int prefix, char[] chars, int start, int n) {
+		if (prefix < 0) return NONE;
+		if (n <= MAX_PACKED_CHARS) {
+			long data = 0L;
+			int i = start;
+			for (; i<start+n; ++i) {
+				if (chars[i] > 0xff) break;
+				data = (data << 8) | chars[i];
+			}
+			if (i == start + n) {
+				return pack(Template.CHAR_NGRAM, prefix, n, data);
+			}
+		}
+		if (n > MAX_N) {
+			throw new RuntimeException(String.format("Char n-gram too long for a feature key: %d", n));
+		}
+		int id = tokenId(new String(chars, start, n));
+		if (id < 0) return NONE;
+		return pack(Template.CHAR_NGRAM_TOKEN, prefix, n, id);
+	}
+
+	/**
+	 * prefix+"_RANK"+user, prefix+"_TOTALPOSTS"+user or prefix+"_REPUTATION"+user.
+	 */
+	public static long user(Template template, int prefix, String user) {
+		int id = tokenId(user);
+		if (prefix < 0 || id < 0) return NONE;
+		return pack(template, prefix, 0, id);
+	}
+
+	// the id of token, or -1 if the dictionaries are locked and do not have it
+	private static int tokenId(String token) {
+		if (tokens.locked()) return tokens.indexOf(token);
+		return tokens.getIndex(token);
+	}
+
+	/**
+	 * New ids for the tokens that the keys use, numbered in the order of their
+	 * current ids, and -1 for the tokens that no key uses. Extraction interns
+	 * the tokens of every feature it sees, also of features that are pruned or
+	 * never indexed, so this lets a model keep only the tokens it needs.
+	 */
+	public static int[] compactTokenIds(long[] keys) {
+		int[] newIds = new int[tokens.size()];
+		for (long key : keys) {
+			switch (getTemplate(key)) {
+			case NAMED:
+			case CHAR_NGRAM_TOKEN:
+			case RANK:
+			case TOTAL_POSTS:
+			case REPUTATION:
+				newIds[(int) getData(key)] = 1;
+				break;
+			case WORD_NGRAM:
+			case WORD_NGRAM_STEM:
+				if (getN(key) == 1) {
+					newIds[(int) getData(key)] = 1;
+				} else {
+					newIds[(int) (getData(key) >>> WORD_BITS)] = 1;
+					newIds[(int) (getData(key) & WORD_MASK)] = 1;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		int next = 0;
+		for (int id=0; id<newIds.length; ++id) {
+			newIds[id] = newIds[id] == 0 ? -1 : next++;
+		}
+		return newIds;
+	}
+
+	/**
+	 * The key with its token ids replaced by newIds from compactTokenIds. New
+	 * ids are never larger than old ones, so they still fit.
+	 */
+	public static long remapTokens(long key, int[] newIds) {
+		long data = getData(key);
+		switch (getTemplate(key)) {
+		case NAMED:
+		case CHAR_NGRAM_TOKEN:
+		case RANK:
+		case TOTAL_POSTS:
+		case REPUTATION:
+			data = newIds[(int) data];
+			break;
+		case WORD_NGRAM:
+		case WORD_NGRAM_STEM:
+			if (getN(key) == 1) {
+				data = newIds[(int) data];
+			} else {
+				data = ((long) newIds[(int) (data >>> WORD_BITS)] << WORD_BITS) | newIds[(int) (data & WORD_MASK)];
+			}
+			break;
+		default:
+			return key;
+		}
+		return (key & ~DATA_MASK) | data;
+	}
+
+	/**
+	 * The feature name the key stands for, in the same format as the
+	 * concatenated names it replaces.
+	 */
+	public static String name(long key) {
+		Template template = getTemplate(key);
+		int n = getN(key);
+		long data = getData(key);
+		switch (template) {
+		case NAMED:
+			return tokens.getObject((int) data);
+		case BIAS:
+			return "BIAS";
+		case HASHED:
+			return "HASH_"+data;
+		default:
+			break;
+		}
+		// in hashing mode nothing is interned, so only look the prefix up here
+		String prefix = prefixes.getObject(getPrefix(key));
+		switch (template) {
+		case WORD_NGRAM:
+		case WORD_NGRAM_STEM:
+			if (n == 1) return render(template, prefix, n, tokens.getObject((int) data));
+			return render(template, prefix, n, tokens.getObject((int) (data >>> WORD_BITS))+"_"+tokens.getObject((int) (data & WORD_MASK)));
+		case CHAR_NGRAM:
+		case CHAR_NGRAM_TOKEN:
+			return render(template, prefix, n, charNGram(key));
+		default:
+			return render(template, prefix, n, tokens.getObject((int) data));
+		}
+	}
+
+	// the n-gram of a CHAR_NGRAM or CHAR_NGRAM_TOKEN key
+	private static String charNGram(long key) {
+		int n = getN(key);
+		long data = getData(key);
+		if (getTemplate(key) == Template.CHAR_NGRAM_TOKEN) {
+			return tokens.getObject((int) data);
+		}
+		char[] chars = new char[n];
+		for (int i=n-1; i>=0; --i) {
+			chars[i] = (char) (data & 0xff);
+			data >>>= 8;
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * The name of a feature of the template, e.g. "INIT_WORDNGRAM_N2_big_deal"
+	 * for WORD_NGRAM, prefix "INIT", n 2 and payload "big_deal". The payload
+	 * of a NAMED feature is its whole name.
+	 */
+	public static String name(Template template, String prefix, int n, String payload) {
+		return render(template, prefix, n, payload);
+	}
+
+	/**
+	 * The hash that a HashingIndexer gives the name(template, prefix, n,
+	 * payload) feature, or with payload2 not null its payload+"_"+payload2
+	 * bigram, computed from the characters without building the name or
+	 * looking up any dictionary. Char n-grams are hashed as by hashCharNGram,
+	 * everything else as HashingIndexer.hash of the name.
+	 */
+	public static long hash(Template template, String prefix, int n, String payload, String payload2) {
+		if (template == Template.CHAR_NGRAM || template == Template.CHAR_NGRAM_TOKEN) {
+			return hashCharNGram(prefix, payload.toCharArray(), 0, n);
+		}
+		long h = HashingIndexer.fnv(namePrefixHash(template, prefix, n), payload);
+		if (payload2 != null) {
+			h = HashingIndexer.fnv(h, '_');
+			h = HashingIndexer.fnv(h, payload2);
+		}
+		return HashingIndexer.mix(h);
+	}
+
+	/**
+	 * The same as hash for the feature the key stands for.
+	 */
+	public static long hash(long key) {
+		Template template = getTemplate(key);
+		if (template == Template.CHAR_NGRAM || template == Template.CHAR_NGRAM_TOKEN) {
+			return hashCharNGram(prefixes.getObject(getPrefix(key)), charNGram(key).toCharArray(), 0, getN(key));
+		}
+		return HashingIndexer.hash(name(key));
+	}
+
+	/**
+	 * Hash of the char n-gram chars[start..start+n) under the prefix: the
+	 * CharNGramHasher hash seeded with charNGramSeed(prefix), so the same as
+	 * CharNGramHasher.hashNGrams gives it when it hashes a whole line.
+	 */
+	public static long hashCharNGram(String prefix, char[] chars, int start, int n) {
+		return CharNGramHasher.hashNGram(chars, start, n, charNGramSeed(prefix));
+	}
+
+	public static long charNGramSeed(String prefix) {
+		return HashingIndexer.hash(prefix);
+	}
+
+	// unmixed hash of the part of the name that render puts before the payload
+	private static long namePrefixHash(Template template, String prefix, int n) {
+		long h = HashingIndexer.FNV_OFFSET;
+		switch (template) {
+		case WORD_NGRAM:
+		case WORD_NGRAM_STEM:
+		case CHAR_NGRAM:
+		case CHAR_NGRAM_TOKEN:
+			h = HashingIndexer.fnv(h, prefix);
+			h = HashingIndexer.fnv(h, template == Template.CHAR_NGRAM || template == Template.CHAR_NGRAM_TOKEN ? "_CHARNGRAM_N" : "_WORDNGRAM_N");
+			if (n >= 10) h = HashingIndexer.fnv(h, (char) ('0' + n / 10));
+			h = HashingIndexer.fnv(h, (char) ('0' + n % 10));
+			return HashingIndexer.fnv(h, template == Template.WORD_NGRAM_STEM ? "_STEM_" : "_");
+		case RANK:
+			return HashingIndexer.fnv(HashingIndexer.fnv(h, prefix), "_RANK");
+		case TOTAL_POSTS:
+			return HashingIndexer.fnv(HashingIndexer.fnv(h, prefix), "_TOTALPOSTS");
+		case REPUTATION:
+			return HashingIndexer.fnv(HashingIndexer.fnv(h, prefix), "_REPUTATION");
+		default:
+			return h;
+		}
+	}
+
+	private static String render(Template template, String prefix, int n, String payload) {
+		switch (template) {
+		case WORD_NGRAM:
+			return prefix+"_WORDNGRAM_N"+n+"_"+payload;
+		case WORD_NGRAM_STEM:
+			return prefix+"_WORDNGRAM_N"+n+"_STEM_"+payload;
+		case CHAR_NGRAM:
+		case CHAR_NGRAM_TOKEN:
+			return prefix+"_CHARNGRAM_N"+n+"_"+payload;
+		case RANK:
+			return prefix+"_RANK"+payload;
+		case TOTAL_POSTS:
+			return prefix+"_TOTALPOSTS"+payload;
+		case REPUTATION:
+			return prefix+"_REPUTATION"+payload;
+		default:
+			return payload;
+		}
+	}
+
+	public boolean equals(Object o) {
+		return o instanceof FeatureKey && ((FeatureKey) o).key == key;
+	}
+
+	public int hashCode() {
+		return (int) (key ^ (key >>> 32));
+	}
+
+	public String toString() {
+		return name(key);
+	}
+
+}
@@ -0,0 +1,160 @@
+package util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Indexer for FeatureKeys that keys on the packed long itself: an open
+ * address table with linear probing (long keys, int ids) plus an id -> key
+ * array. No key objects or boxed ids are stored. Not thread safe.
+ */
+public class FeatureKeyIndexer implements Indexer<FeatureKey> {
+
+	// FeatureKey never packs to 0
+	private static final long EMPTY_KEY = 0L;
+	private static final double MAX_LOAD_FACTOR = 0.5;
+
+	private boolean locked;
+	private long[] keys;
+	private int[] indices;
+	private long[] keyByIndex;
+	private int size;
+
+	public FeatureKeyIndexer() {
+		this(1 << 9);
+	}
+
+	/**
+	 * Sized so that expectedSize keys fit without a rehash.
+	 */
+	public FeatureKeyIndexer(int expectedSize) {
+		int capacity = 1 << 10;
+		while (capacity * MAX_LOAD_FACTOR < expectedSize + 1) capacity <<= 1;
+		locked = false;
+		keys = new long[capacity];
+		indices = new int[capacity];
+		keyByIndex = new long[Math.max(1, expectedSize)];
+		size = 0;
+	}
+
+	public void lock() {
+		this.locked = true;
+	}
+
+	public boolean locked() {
+		return locked;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean contains(FeatureKey object) {
+		return contains(object.getKey());
+	}
+
+	public boolean contains(long key) {
+		return keys != null && keys[find(keys, key)] == key;
+	}
+
+	public int getIndex(FeatureKey object) {
+		return getIndex(object.getKey());
+	}
+
+	public int getIndex(long key) {
+		if (keys == null) {
+			throw new RuntimeException("Index lookup was forgotten");
+		}
+		int pos = find(keys, key);
+		if (keys[pos] == key) {
+			return indices[pos];
+		}
+		if (locked) {
+			throw new RuntimeException(String.format("Indexer locked, and object not in indexer: %s", FeatureKey.name(key)));
+		}
+		int index = size++;
+		if (index == keyByIndex.length) {
+			keyByIndex = Arrays.copyOf(keyByIndex, 2 * keyByIndex.length);
+		}
+		keyByIndex[index] = key;
+		keys[pos] = key;
+		indices[pos] = index;
+		if (size > MAX_LOAD_FACTOR * keys.length) {
+			rehash();
+		}
+		return index;
+	}
+
+	public long getKey(int index) {
+		if (index < 0 || index >= size) {
+			throw new RuntimeException(String.format("Index not in indexer: %d", index));
+		}
+		return keyByIndex[index];
+	}
+
+	public FeatureKey getObject(int index) {
+		return new FeatureKey(getKey(index));
+	}
+
+	public void index(FeatureKey[] vect) {
+		for (FeatureKey x : vect) {
+			getIndex(x);
+		}
+	}
+
+	public void forgetIndexLookup() {
+		this.keys = null;
+		this.indices = null;
+	}
+
+	/**
+	 * Writes the keys in id order, as read back by read(ByteBuffer).
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(size);
+		for (int i=0; i<size; ++i) {
+			out.writeLong(keyByIndex[i]);
+		}
+	}
+
+	/**
+	 * Reads an indexer written by write(), advancing the buffer past it. The
+	 * keys get the same ids as when they were written.
+	 */
+	public static FeatureKeyIndexer read(ByteBuffer in) {
+		int size = in.getInt();
+		long[] keys = new long[size];
+		in.asLongBuffer().get(keys);
+		in.position(in.position() + 8 * size);
+		FeatureKeyIndexer result = new FeatureKeyIndexer(size);
+		for (long key : keys) {
+			result.getIndex(key);
+		}
+		return result;
+	}
+
+	private static int find(long[] keys, long key) {
+		int mask = keys.length - 1;
+		int pos = (int) HashingIndexer.mix(key) & mask;
+		while (keys[pos] != EMPTY_KEY && keys[pos] != key) {
+			pos = (pos + 1) & mask;
+		}
+		return pos;
+	}
+
+	private void rehash() {
+		long[] newKeys = new long[2 * keys.length];
+		int[] newIndices = new int[newKeys.length];
+		for (int i=0; i<keys.length; ++i) {
+			if (keys[i] == EMPTY_KEY) continue;
+			int pos = find(newKeys, keys[i]);
+			newKeys[pos] = keys[i];
+			newIndices[pos] = indices[i];
+		}
+		keys = newKeys;
+		indices = newIndices;
+	}
+
+}
@@ -0,0 +1,123 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Reusable buffer of (feature key, value) pairs for one datum, kept in the
+ * order the keys were first written. Keys are packed longs (see FeatureKey)
+ * and are never 0. A small open address table finds repeated keys, so
+ * setCount and incrementCount behave like on a Counter. clear() only
+ * touches the slots that were used, so one sink can be refilled for every
+ * datum without allocating. Not thread safe.
+ */
+public final class FeatureSink {
+
+	private static final long EMPTY_KEY = 0L;
+
+	private long[] keys = new long[256];
+	private double[] values = new double[256];
+	// table slot of each key, so that clear() can free it directly
+	private int[] slots = new int[256];
+	private int size = 0;
+	// open address table of positions in keys, EMPTY_KEY marks a free slot
+	private long[] tableKeys = new long[512];
+	private int[] tablePositions = new int[512];
+
+	public int size() {
+		return size;
+	}
+
+	public long getKey(int i) {
+		return keys[i];
+	}
+
+	public double getValue(int i) {
+		return values[i];
+	}
+
+	public void setCount(long key, double value) {
+		int pos = position(key);
+		values[pos] = value;
+	}
+
+	public void incrementCount(long key, double value) {
+		int pos = position(key);
+		values[pos] += value;
+	}
+
+	/**
+	 * Adds every pair of other, with incrementCount.
+	 */
+	public void incrementAll(FeatureSink other) {
+		for (int i=0; i<other.size; ++i) {
+			incrementCount(other.keys[i], other.values[i]);
+		}
+	}
+
+	public void clear() {
+		for (int i=0; i<size; ++i) {
+			tableKeys[slots[i]] = EMPTY_KEY;
+		}
+		size = 0;
+	}
+
+	/**
+	 * The keys, in first-written order, in an array of their own.
+	 */
+	public long[] copyKeys() {
+		return Arrays.copyOf(keys, size);
+	}
+
+	public double[] copyValues() {
+		return Arrays.copyOf(values, size);
+	}
+
+	/**
+	 * Position of key in keys and values, appended with value 0.0 if new.
+	 */
+	private int position(long key) {
+		if (key == EMPTY_KEY) {
+			throw new IllegalArgumentException("Feature key 0 is reserved");
+		}
+		int slot = find(tableKeys, key);
+		if (tableKeys[slot] == key) {
+			return tablePositions[slot];
+		}
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, 2 * size);
+			values = Arrays.copyOf(values, 2 * size);
+			slots = Arrays.copyOf(slots, 2 * size);
+		}
+		int pos = size++;
+		keys[pos] = key;
+		values[pos] = 0.0;
+		slots[pos] = slot;
+		tableKeys[slot] = key;
+		tablePositions[slot] = pos;
+		if (2 * size > tableKeys.length) {
+			rehash();
+		}
+		return pos;
+	}
+
+	private static int find(long[] table, long key) {
+		int mask = table.length - 1;
+		int slot = (int) HashingIndexer.mix(key) & mask;
+		while (table[slot] != EMPTY_KEY && table[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash() {
+		tableKeys = new long[2 * tableKeys.length];
+		tablePositions = new int[tableKeys.length];
+		for (int i=0; i<size; ++i) {
+			int slot = find(tableKeys, keys[i]);
+			tableKeys[slot] = keys[i];
+			tablePositions[slot] = i;
+			slots[i] = slot;
+		}
+	}
+
+}
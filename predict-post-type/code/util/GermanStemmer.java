@@ -39,10 +39,12 @@ public class GermanStemmer
     /**
      * Stemms the given term to an unique discriminator.
      *
+     * Synchronized because the buffer and substCount are shared.
+     *
      * @param term  The term that should be stemmed.
      * @return      Discriminator for term
      */
-    public static String stem( String term )
+    public static synchronized String stem( String term )
     {
       // Use lowercase for medium stemming.
       term = term.toLowerCase();
@@ -0,0 +1,255 @@
+package util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Feature hashing ("hashing trick") behind the Indexer interface. Every feature
+ * key maps straight to one of 2^bits ids, so there is no dictionary to grow and
+ * nothing to lock. Colliding features share an id; with signed hashing each
+ * feature also gets a pseudo-random sign (see getSign) so that collisions
+ * cancel out in expectation instead of piling up.
+ *
+ * A feature is hashed from its content, not from its dictionary key (see
+ * FeatureKey.hash), so its id does not depend on the order threads are
+ * featurized in, and extraction need not intern anything. Char n-grams are
+ * hashed with CharNGramHasher, which hashes all n-grams of a line in one
+ * pass; every other feature is hashed from its name, with hash(String).
+ *
+ * Optionally keeps one feature name for each id, so that weight reports stay
+ * readable: of the features that hash to the id, the one with the smallest
+ * hash, so the name does not depend on the order threads are featurized in.
+ * The table holds at most one name per id, so it is bounded by the id space
+ * rather than by the number of distinct features.
+ */
+public class HashingIndexer implements Indexer<FeatureKey> {
+
+	static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final int bits;
+	private final int mask;
+	private final boolean signed;
+	// recorded name of each id, or null, and the hash it came from
+	private String[] names;
+	private long[] nameHashes;
+	private boolean locked;
+
+	public HashingIndexer(int bits, boolean signed, boolean keepNames) {
+		if (bits < 1 || bits > 31) {
+			throw new IllegalArgumentException(String.format("Number of hash bits must be in [1, 31]: %d", bits));
+		}
+		this.bits = bits;
+		this.mask = (1 << bits) - 1;
+		this.signed = signed;
+		this.names = keepNames ? new String[1 << bits] : null;
+		this.nameHashes = keepNames ? new long[1 << bits] : null;
+		if (keepNames) Arrays.fill(nameHashes, Long.MAX_VALUE);
+		this.locked = false;
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+	public boolean isSigned() {
+		return signed;
+	}
+
+	public void lock() {
+		this.locked = true;
+	}
+
+	public boolean locked() {
+		return locked;
+	}
+
+	/**
+	 * Size of the id space, not the number of features seen.
+	 */
+	public int size() {
+		return mask + 1;
+	}
+
+	public boolean contains(FeatureKey object) {
+		return true;
+	}
+
+	/**
+	 * The id of the key's feature, hashed as by FeatureKey.hash.
+	 */
+	public int getIndex(FeatureKey object) {
+		long hash = hash(object);
+		int index = getIndex(hash);
+		if (wantsName(index, hash)) setName(index, hash, object.toString());
+		return index;
+	}
+
+	public int getIndex(long hash) {
+		return (int) hash & mask;
+	}
+
+	/**
+	 * +1 or -1, taken from the top bit of the hash, which does not overlap
+	 * with the id bits. Always +1 unless signed hashing is on.
+	 */
+	public double getSign(long hash) {
+		if (!signed) return 1.0;
+		return hash < 0 ? -1.0 : 1.0;
+	}
+
+	public double getSign(FeatureKey object) {
+		return getSign(hash(object));
+	}
+
+	/**
+	 * True if names are kept, the indexer is not locked yet, and a feature
+	 * with this hash would replace the id's name, so callers only build the
+	 * name when it will be stored.
+	 * Unsynchronized, but recorded hashes only decrease, so a stale read can
+	 * only say true too often, which setName checks again.
+	 */
+	public boolean wantsName(int index, long hash) {
+		return names != null && !locked && (names[index] == null || hash < nameHashes[index]);
+	}
+
+	/**
+	 * Records the feature name, and the hash it came from, for the id if it
+	 * has no name yet or the recorded one has a larger hash. Extraction
+	 * threads may call this at once.
+	 */
+	public synchronized void setName(int index, long hash, String name) {
+		if (wantsName(index, hash)) {
+			nameHashes[index] = hash;
+			names[index] = name;
+		}
+	}
+
+	/**
+	 * Name recorded for the id if names are kept (of the features that hashed
+	 * there, the one with the smallest hash), otherwise a placeholder.
+	 */
+	public String getName(int index) {
+		if (index < 0 || index > mask) {
+			throw new RuntimeException(String.format("Index not in indexer: %d", index));
+		}
+		if (names != null && names[index] != null) {
+			return names[index];
+		}
+		return "HASH_"+index;
+	}
+
+	/**
+	 * Sign of the feature recorded for the id, so that weights can be reported
+	 * for that feature rather than for the id.
+	 */
+	public double getNameSign(int index) {
+		return (names != null && names[index] != null) ? getSign(nameHashes[index]) : 1.0;
+	}
+
+	/**
+	 * A NAMED key for getName(index). That interns the name in the FeatureKey
+	 * dictionary, so reports should use getName.
+	 */
+	public FeatureKey getObject(int index) {
+		return new FeatureKey(FeatureKey.named(getName(index)));
+	}
+
+	public void index(FeatureKey[] vect) {
+		for (FeatureKey x : vect) {
+			getIndex(x);
+		}
+	}
+
+	public void forgetIndexLookup() {
+	}
+
+	/**
+	 * FeatureKey.hash of the key's feature, whatever the dictionary ids in
+	 * the key.
+	 */
+	public static long hash(FeatureKey object) {
+		return FeatureKey.hash(object.getKey());
+	}
+
+	public static long hash(long key) {
+		return mix(key);
+	}
+
+	/**
+	 * Writes the settings and the recorded names with their hashes, as read
+	 * back by read(ByteBuffer).
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(bits);
+		out.writeBoolean(signed);
+		out.writeBoolean(names != null);
+		if (names == null) return;
+		int numNames = 0;
+		for (int i=0; i<names.length; ++i) {
+			if (names[i] != null) numNames++;
+		}
+		out.writeInt(numNames);
+		for (int i=0; i<names.length; ++i) {
+			if (names[i] == null) continue;
+			out.writeInt(i);
+			out.writeLong(nameHashes[i]);
+			FeatureCache.writeString(out, names[i]);
+		}
+	}
+
+	/**
+	 * Reads an indexer written by write(), advancing the buffer past it.
+	 */
+	public static HashingIndexer read(ByteBuffer in) {
+		int bits = in.getInt();
+		boolean signed = in.get() != 0;
+		boolean keepNames = in.get() != 0;
+		HashingIndexer result = new HashingIndexer(bits, signed, keepNames);
+		if (!keepNames) return result;
+		int numNames = in.getInt();
+		for (int n=0; n<numNames; ++n) {
+			int index = in.getInt();
+			result.nameHashes[index] = in.getLong();
+			result.names[index] = FeatureCache.readString(in);
+		}
+		return result;
+	}
+
+	/**
+	 * 64-bit FNV-1a over the chars, finished with the murmur3 mixer so that
+	 * both the low (id) and high (sign) bits are well spread.
+	 */
+	public static long hash(String object) {
+		return mix(fnv(FNV_OFFSET, object));
+	}
+
+	/**
+	 * Continues the FNV-1a of hash(String) over the chars of s, so a name can
+	 * be hashed piece by piece: mix(fnv(fnv(FNV_OFFSET, a), b)) == hash(a+b).
+	 */
+	public static long fnv(long h, String s) {
+		for (int i=0; i<s.length(); ++i) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	public static long fnv(long h, char c) {
+		h ^= c;
+		return h * FNV_PRIME;
+	}
+
+	public static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
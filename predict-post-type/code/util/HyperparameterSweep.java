@@ -0,0 +1,194 @@
+package util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.bwaldvogel.liblinear.Linear;
+import de.bwaldvogel.liblinear.Problem;
+import de.bwaldvogel.liblinear.SolverType;
+
+/**
+ * k-fold cross-validation of a grid of (solver, C) on data featurized once.
+ * Every (cell, fold) training is a job on a fixed pool. The LibLinear problem
+ * of each fold is built once and shared by all cells, since LibLinear only
+ * reads it. Folds are contiguous blocks of rows and counts are merged in
+ * grid order, so the table is the same for any number of threads.
+ *
+ * Only the primal solvers' cells train in parallel: the other solvers draw
+ * from LibLinear's one static Random, so LibLinearWrapper.train runs them
+ * one at a time to keep their results reproducible.
+ */
+public class HyperparameterSweep {
+
+	public static class Cell {
+		public final SolverType solverType;
+		public final double C;
+		public final int[] correctByLabel;
+		public final int[] totalByLabel;
+		// summed over folds
+		public long trainNanos;
+
+		public Cell(SolverType solverType, double C, int numLabels) {
+			this.solverType = solverType;
+			this.C = C;
+			this.correctByLabel = new int[numLabels];
+			this.totalByLabel = new int[numLabels];
+		}
+
+		public double accuracy() {
+			int correct = 0;
+			int total = 0;
+			for (int label=0; label<totalByLabel.length; ++label) {
+				correct += correctByLabel[label];
+				total += totalByLabel[label];
+			}
+			return total == 0 ? 0.0 : correct / (double) total;
+		}
+
+		public double accuracy(int label) {
+			return totalByLabel[label] == 0 ? 0.0 : correctByLabel[label] / (double) totalByLabel[label];
+		}
+	}
+
+	// what one (cell, fold) job hands back
+	private static class FoldResult {
+		final int[] correctByLabel;
+		final int[] totalByLabel;
+		final long trainNanos;
+
+		FoldResult(int numLabels, long trainNanos) {
+			this.correctByLabel = new int[numLabels];
+			this.totalByLabel = new int[numLabels];
+			this.trainNanos = trainNanos;
+		}
+	}
+
+	/**
+	 * One cell per (solver, C), solvers outermost. Labels are assumed to be
+	 * ids below numLabels.
+	 */
+	public static List<Cell> run(SparseDataset data, final int numLabels, int numFolds, List<SolverType> solverTypes, double[] Cs, final double eps, int numThreads) {
+		if (numFolds < 2 || numFolds > data.size()) {
+			throw new RuntimeException(String.format("Cannot split %d rows into %d folds", data.size(), numFolds));
+		}
+		final List<Cell> cells = new ArrayList<Cell>();
+		for (SolverType solverType : solverTypes) {
+			for (double C : Cs) {
+				cells.add(new Cell(solverType, C, numLabels));
+			}
+		}
+
+		final Problem[] problems = new Problem[numFolds];
+		final SparseDataset[] testFolds = new SparseDataset[numFolds];
+		for (int fold=0; fold<numFolds; ++fold) {
+			int from = (int) ((long) data.size() * fold / numFolds);
+			int to = (int) ((long) data.size() * (fold + 1) / numFolds);
+			int[] trainRows = new int[data.size() - (to - from)];
+			int n = 0;
+			for (int i=0; i<data.size(); ++i) {
+				if (i < from || i >= to) trainRows[n++] = i;
+			}
+			problems[fold] = LibLinearWrapper.toProblem(data.subset(trainRows));
+			testFolds[fold] = data.subset(from, to);
+		}
+
+		// largest C first: those take longest to converge, so they should not
+		// be the stragglers at the end
+		Integer[] order = new Integer[cells.size()];
+		for (int c=0; c<order.length; ++c) order[c] = c;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(cells.get(b).C, cells.get(a).C);
+			}
+		});
+
+		Linear.disableDebugOutput();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		try {
+			List<List<Future<FoldResult>>> futures = new ArrayList<List<Future<FoldResult>>>(cells.size());
+			for (int c=0; c<cells.size(); ++c) {
+				futures.add(new ArrayList<Future<FoldResult>>(numFolds));
+			}
+			for (int c : order) {
+				final Cell cell = cells.get(c);
+				for (int fold=0; fold<numFolds; ++fold) {
+					final Problem problem = problems[fold];
+					final SparseDataset testFold = testFolds[fold];
+					futures.get(c).add(pool.submit(new Callable<FoldResult>() {
+						public FoldResult call() {
+							LibLinearWrapper classifier = new LibLinearWrapper(cell.solverType, cell.C, eps);
+							long start = System.nanoTime();
+							classifier.train(problem);
+							FoldResult result = new FoldResult(numLabels, System.nanoTime() - start);
+							for (int i=0; i<testFold.size(); ++i) {
+								int goldLabel = testFold.getLabel(i);
+								if (classifier.predict(testFold, i) == goldLabel) {
+									result.correctByLabel[goldLabel]++;
+								}
+								result.totalByLabel[goldLabel]++;
+							}
+							return result;
+						}
+					}));
+				}
+			}
+			for (int c=0; c<cells.size(); ++c) {
+				Cell cell = cells.get(c);
+				for (int fold=0; fold<numFolds; ++fold) {
+					FoldResult result;
+					try {
+						result = futures.get(c).get(fold).get();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RuntimeException(e);
+					} catch (ExecutionException e) {
+						if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+						throw new RuntimeException(e.getCause());
+					}
+					for (int label=0; label<numLabels; ++label) {
+						cell.correctByLabel[label] += result.correctByLabel[label];
+						cell.totalByLabel[label] += result.totalByLabel[label];
+					}
+					cell.trainNanos += result.trainNanos;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			Linear.enableDebugOutput();
+		}
+		return cells;
+	}
+
+	/**
+	 * One row per cell: accuracy, accuracy of each label and total training
+	 * time over the folds, then the most accurate cell.
+	 */
+	public static void printTable(List<Cell> cells, Indexer<String> labelIndexer, PrintStream out) {
+		out.printf("%-20s %10s %8s", "solver", "C", "acc");
+		for (int label=0; label<labelIndexer.size(); ++label) {
+			out.printf(" %8s", labelIndexer.getObject(label));
+		}
+		out.printf(" %10s\n", "train_ms");
+		Cell best = null;
+		for (Cell cell : cells) {
+			out.printf("%-20s %10s %8.4f", cell.solverType, String.valueOf(cell.C), cell.accuracy());
+			for (int label=0; label<labelIndexer.size(); ++label) {
+				out.printf(" %8.4f", cell.accuracy(label));
+			}
+			out.printf(" %10d\n", cell.trainNanos / 1000000);
+			if (best == null || cell.accuracy() > best.accuracy()) best = cell;
+		}
+		if (best != null) {
+			out.printf("best: %s C=%s acc %.4f\n", best.solverType, String.valueOf(best.C), best.accuracy());
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares HashMapIndexer (behind a lock, since it is not thread safe) with
+ * ConcurrentHashMapIndexer when several threads index the same feature
+ * stream. Two phases are timed: building the index, where roughly one lookup
+ * in eight is a new feature, and lookups after lock().
+ *
+ * Arguments: [numFeatures] [lookupsPerThread]
+ */
+public class IndexerBenchmark {
+
+	private static final int[] THREAD_COUNTS = new int[] {1, 4, 16};
+
+	private static interface IndexerFactory {
+		public Indexer<String> build();
+		public String name();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int numFeatures = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+		int lookupsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+
+		String[] features = new String[numFeatures];
+		for (int i=0; i<numFeatures; ++i) {
+			features[i] = "INIT_CHARNGRAM_N5_"+Integer.toString(i * 31 + 7, 36);
+		}
+
+		IndexerFactory[] factories = new IndexerFactory[] {
+			new IndexerFactory() {
+				public Indexer<String> build() { return new HashMapIndexer<String>(); }
+				public String name() { return "HashMapIndexer (synchronized)"; }
+			},
+			new IndexerFactory() {
+				public Indexer<String> build() { return new ConcurrentHashMapIndexer<String>(); }
+				public String name() { return "ConcurrentHashMapIndexer"; }
+			},
+		};
+
+		System.out.printf("%d features, %d lookups per thread\n", numFeatures, lookupsPerThread);
+		System.out.printf("%-32s %8s %16s %16s\n", "indexer", "threads", "build Mops/s", "locked Mops/s");
+		for (IndexerFactory factory : factories) {
+			for (int numThreads : THREAD_COUNTS) {
+				// warm up
+				run(factory.build(), features, numThreads, lookupsPerThread / 4);
+
+				Indexer<String> indexer = factory.build();
+				double buildRate = run(indexer, features, numThreads, lookupsPerThread);
+				// untimed: make sure every feature is indexed before locking
+				indexer.index(features);
+				if (indexer.size() != numFeatures) {
+					throw new RuntimeException(String.format("%s indexed %d of %d features", factory.name(), indexer.size(), numFeatures));
+				}
+				indexer.lock();
+				double lockedRate = run(indexer, features, numThreads, lookupsPerThread);
+				System.out.printf("%-32s %8d %16.2f %16.2f\n", factory.name(), numThreads, buildRate, lockedRate);
+			}
+		}
+	}
+
+	/**
+	 * Returns total lookups per microsecond across all threads.
+	 */
+	private static double run(final Indexer<String> indexer, final String[] features, int numThreads, final int lookupsPerThread) throws Exception {
+		final boolean synchronize = !(indexer instanceof ConcurrentHashMapIndexer);
+		// draw the lookup sequences up front so the timed loop is just getIndex
+		final int[][] lookups = new int[numThreads][lookupsPerThread];
+		for (int t=0; t<numThreads; ++t) {
+			Random rand = new Random(t);
+			for (int i=0; i<lookupsPerThread; ++i) {
+				// skew towards a small set of frequent features
+				lookups[t][i] = rand.nextInt(8) == 0 ? rand.nextInt(features.length) : rand.nextInt(Math.max(1, features.length / 64));
+			}
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		long start = System.nanoTime();
+		for (int t=0; t<numThreads; ++t) {
+			final int[] threadLookups = lookups[t];
+			results.add(pool.submit(new Callable<Long>() {
+				public Long call() {
+					long checksum = 0;
+					for (int f : threadLookups) {
+						if (synchronize) {
+							synchronized (indexer) {
+								checksum += indexer.getIndex(features[f]);
+							}
+						} else {
+							checksum += indexer.getIndex(features[f]);
+						}
+					}
+					return checksum;
+				}
+			}));
+		}
+		for (Future<Long> result : results) {
+			result.get();
+		}
+		long elapsed = System.nanoTime() - start;
+		pool.shutdown();
+		return (double) numThreads * lookupsPerThread / (elapsed / 1000.0);
+	}
+
+}
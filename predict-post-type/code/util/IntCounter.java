@@ -1,17 +1,16 @@
 package util;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 
 /**
  * Open address hash map with linear probing. Assumes keys are non-negative
  * (uses -1 internally for empty key). Returns 0.0 for keys not in the map.
+ * The table size is a power of two and keys are placed by Fibonacci hashing
+ * (the top bits of key * 2^32/phi), so dense or strided feature ids spread
+ * over the table and a probe costs a multiply and a shift, not a division.
  * 
  * @author adampauls
  * 
@@ -28,6 +27,10 @@ public final class IntCounter implements CounterInterface<Integer>, Serializable
 
 	private double[] values;
 
+	// slot of each entry, in insertion order, so that clear() only touches
+	// the slots in use
+	private int[] usedSlots;
+
 	private int size = 0;
 
 	private static final int EMPTY_KEY = -1;
@@ -66,37 +69,58 @@ public final class IntCounter implements CounterInterface<Integer>, Serializable
 
 	public String toString() {
 		String s = "[";
-		for (Entry entry : primitiveEntries()) {
+		for (Cursor cursor = cursor(); cursor.next(); ) {
 			s += s.length() == 1 ? "" : " ";
-			s += "(" + entry.key + "," + entry.value + ")";
+			s += "(" + cursor.key() + "," + cursor.value() + ")";
 		}
 		s += "]";
 		return s;
 	}
 
+	/**
+	 * Packs the entries, sorted by key, at the front of arrays whose length
+	 * is still a power of two, so that after clear() they are a valid hash
+	 * table again. The rest is empty. The length is at least 4: getInitialPos
+	 * cannot shift by 32, and put() only grows a table that is over half
+	 * full, so a 2-slot table could fill up and probes would never end.
+	 */
 	public void toSorted() {
+		int length = size <= 4 ? 4 : Integer.highestOneBit(size - 1) << 1;
+		int[] newKeys = new int[length];
+		double[] newValues = new double[length];
+		copyEntries(newKeys, newValues);
+		Arrays.fill(newKeys, size, length, EMPTY_KEY);
+		SparseDataset.Builder.sort(newKeys, newValues, 0, size - 1);
 		sorted = true;
-		int[] newKeys = new int[size];
-		double[] newValues = new double[size];
-		List<Entry> sortedEntries = new ArrayList<Entry>(size);
-		for (java.util.Map.Entry<Integer, Double> e : entries()) {
-			sortedEntries.add((Entry) e);
-		}
-		Collections.sort(sortedEntries, new Comparator<Entry>()
-		{
+		keys = newKeys;
+		values = newValues;
+	}
+
+	public boolean isSorted() {
+		return sorted;
+	}
 
-			public int compare(Entry o1, Entry o2) {
-				return Double.compare(o1.key, o2.key);
+	/**
+	 * Copies the entries into keysOut and valuesOut, which must hold at least
+	 * size() entries, and returns how many were copied. Entries come out in
+	 * key order if the counter is sorted (see toSorted) or wraps an array.
+	 */
+	public int copyEntries(int[] keysOut, double[] valuesOut) {
+		if (keys == null) {
+			System.arraycopy(values, 0, valuesOut, 0, size);
+			for (int i = 0; i < size; ++i) {
+				keysOut[i] = i;
 			}
-		});
-		int k = 0;
-		for (Entry e : sortedEntries) {
-			newKeys[k] = e.getKey();
-			newValues[k] = e.getValue();
-			k++;
+			return size;
 		}
-		keys = newKeys;
-		values = newValues;
+		int n = 0;
+		for (int i = 0; i < keys.length; ++i) {
+			if (keys[i] == EMPTY_KEY) continue;
+			keysOut[n] = keys[i];
+			valuesOut[n] = values[i];
+			n++;
+		}
+		return n;
 	}
 
 	/**
@@ -104,17 +128,22 @@ public final class IntCounter implements CounterInterface<Integer>, Serializable
 	 * @return
 	 */
 	private int toSize(int initCapacity_) {
-		return Math.max(5, (int) (initCapacity_ / maxLoadFactor) + 1);
+		int minSize = Math.max(8, (int) (initCapacity_ / maxLoadFactor) + 1);
+		return Integer.highestOneBit(minSize - 1) << 1;
 	}
 
 	public IntCounter(CounterInterface<Integer> c) {
-		final double d = c.size() / maxLoadFactor;
-		final int initSize = Math.max(5, (int) d + 1);
-		keys = new int[initSize];
+		keys = new int[toSize(c.size())];
 		values = new double[keys.length];
 		Arrays.fill(keys, EMPTY_KEY);
-		for (Map.Entry<Integer, Double> entry : c.entries()) {
-			put(entry.getKey(), entry.getValue());
+		if (c instanceof IntCounter) {
+			for (Cursor cursor = ((IntCounter) c).cursor(); cursor.next(); ) {
+				put(cursor.key(), cursor.value());
+			}
+		} else {
+			for (Map.Entry<Integer, Double> entry : c.entries()) {
+				put(entry.getKey(), entry.getValue());
+			}
 		}
 	}
 
@@ -150,8 +179,7 @@ public final class IntCounter implements CounterInterface<Integer>, Serializable
 	 * 
 	 */
 	private void rehash() {
-		final int length = keys.length * 2 + 1;
-		rehash(length);
+		rehash(keys.length * 2);
 	}
 
 	/**
@@ -163,6 +191,7 @@ public final class IntCounter implements CounterInterface<Integer>, Serializable
 		double[] newValues = new double[length];
 		Arrays.fill(newKeys, EMPTY_KEY);
 		size = 0;
+		// putHelp records the new slots
 		for (int i = 0; i < keys.length; ++i) {
 			int curr = keys[i];
 			if (curr != EMPTY_KEY) {
@@ -192,24 +221,28 @@ public final class IntCounter implements CounterInterface<Integer>, Serializable
 		//
 		valueArray[pos] = v;
 		if (currKey == EMPTY_KEY) {
-			size++;
+			if (usedSlots == null) {
+				usedSlots = new int[8];
+			} else if (size == usedSlots.length) {
+				usedSlots = Arrays.copyOf(usedSlots, 2 * size);
+			}
+			usedSlots[size++] = pos;
 			keyArray[pos] = k;
 			return true;
 		}
 		return false;
 	}
 
+	// 2^32 / golden ratio, odd
+	private static final int FIBONACCI_MULTIPLIER = 0x9e3779b9;
+
 	/**
-	 * @param k
-	 * @param keyArray
-	 * @return
+	 * The top log2(length) bits of k * FIBONACCI_MULTIPLIER, for a key array
+	 * whose length is a power of two.
 	 */
 	private static int getInitialPos(final int k, final int[] keyArray) {
 		if (keyArray == null) return k;
-		int hash = k;
-		if (hash < 0) hash = -hash;
-		int pos = hash % keyArray.length;
-		return pos;
+		return (k * FIBONACCI_MULTIPLIER) >>> (32 - Integer.numberOfTrailingZeros(keyArray.length));
 	}
 
 	public double get(int k) {
@@ -231,17 +264,16 @@ public final class IntCounter implements CounterInterface<Integer>, Serializable
 		if (keyArray == null) {
 			return (k < valueArray.length ? k : EMPTY_KEY);
 		} else if (sorted) {
-			final int pos = Arrays.binarySearch(keyArray, k);
+			final int pos = Arrays.binarySearch(keyArray, 0, size, k);
 			return pos < 0 ? EMPTY_KEY : pos;
 
 		} else {
 			final int[] localKeys = keyArray;
-			final int length = localKeys.length;
+			final int mask = localKeys.length - 1;
 			int pos = getInitialPos(k, localKeys);
-			long curr = localKeys[pos];
+			int curr = localKeys[pos];
 			while (curr != EMPTY_KEY && curr != k) {
-				pos++;
-				if (pos == length) pos = 0;
+				pos = (pos + 1) & mask;
 				curr = localKeys[pos];
 			}
 			return returnLastEmpty ? pos : (curr == EMPTY_KEY ? EMPTY_KEY : pos);
@@ -330,12 +362,34 @@ public final class IntCounter implements CounterInterface<Integer>, Serializable
 		return size == 0;
 	}
 
+	/**
+	 * Sum of value * weights[key], keys beyond weights counting 0. A wrapped
+	 * array or a sorted counter (see toSorted) has no empty slots, so its
+	 * loop is a plain dense or gathered dot product without per-entry
+	 * branches; a hash table has to skip its empty slots.
+	 */
 	public double dotProduct(double[] weights) {
 		final int[] localKeys = keys;
 		final double[] localValues = values;
 		double sum = 0.0;
+		if (localKeys == null) {
+			final int n = Math.min(localValues.length, weights.length);
+			for (int i = 0; i < n; ++i) {
+				sum += localValues[i] * weights[i];
+			}
+			return sum;
+		}
+		if (sorted) {
+			// keys ascend, so the ones in range come first
+			int n = size;
+			while (n > 0 && localKeys[n - 1] >= weights.length) n--;
+			for (int i = 0; i < n; ++i) {
+				sum += localValues[i] * weights[localKeys[i]];
+			}
+			return sum;
+		}
 		for (int i = 0; i < localValues.length; ++i) {
-			int key = localKeys == null ? i : localKeys[i];
+			int key = localKeys[i];
 			if (key == EMPTY_KEY) continue;
 			double val = localValues[i];
 			if (val == 0.0) continue;
@@ -427,10 +481,56 @@ public final class IntCounter implements CounterInterface<Integer>, Serializable
 		private int next, end;
 	}
 
+	/**
+	 * Allocates a boxed entry per entry; see cursor() for a loop that does not.
+	 */
 	public Iterable<Map.Entry<Integer, Double>> entries() {
 		return Iterators.able(new EntryIterator());
 	}
 
+	/**
+	 * Walks the entries without allocating per entry:
+	 *
+	 *   for (IntCounter.Cursor cursor = counter.cursor(); cursor.next(); ) {
+	 *     ... cursor.key() ... cursor.value() ...
+	 *   }
+	 *
+	 * Entries come in the same order as entries(). The counter must not be
+	 * changed during the walk, other than through setValue.
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	public final class Cursor
+	{
+		private final int end = keys == null ? size : values.length;
+
+		private int index = -1;
+
+		/**
+		 * Moves to the next entry, returning false when there is none.
+		 */
+		public boolean next() {
+			do {
+				index++;
+			} while (index < end && keys != null && keys[index] == EMPTY_KEY);
+			return index < end;
+		}
+
+		public int key() {
+			return keys == null ? index : keys[index];
+		}
+
+		public double value() {
+			return values[index];
+		}
+
+		public void setValue(double value) {
+			values[index] = value;
+		}
+	}
+
 	public double incrementCount(Integer k, double d) {
 		checkNotImmutable();
 		if (d == 0.0) return getCount(k);
@@ -458,6 +558,10 @@ public final class IntCounter implements CounterInterface<Integer>, Serializable
 	public <T extends Integer> void incrementAll(CounterInterface<T> c, double d) {
 		checkNotImmutable();
 		assert !Double.isNaN(d);
+		if (c instanceof IntCounter) {
+			incrementAll((IntCounter) c, d);
+			return;
+		}
 		for (Map.Entry<T, Double> entry : c.entries()) {
 			final double d2 = d * entry.getValue();
 			if (d2 == 0.0) continue;
@@ -497,8 +601,8 @@ public final class IntCounter implements CounterInterface<Integer>, Serializable
 
 	public Counter<Integer> toCounter() {
 		Counter<Integer> c = new Counter<Integer>();
-		for (Map.Entry<Integer, Double> entry : entries()) {
-			c.setCount(entry.getKey(), entry.getValue());
+		for (Cursor cursor = cursor(); cursor.next(); ) {
+			c.setCount(cursor.key(), cursor.value());
 		}
 		return c;
 	}
@@ -531,8 +635,8 @@ public final class IntCounter implements CounterInterface<Integer>, Serializable
 
 	public double totalCount() {
 		double totalCount = 0.0;
-		for (Map.Entry<Integer, Double> entry : entries()) {
-			totalCount += entry.getValue();
+		for (Cursor cursor = cursor(); cursor.next(); ) {
+			totalCount += cursor.value();
 		}
 		return totalCount;
 	}
@@ -570,11 +674,26 @@ public final class IntCounter implements CounterInterface<Integer>, Serializable
 		return Iterators.able(new KeyIterator());
 	}
 
+	/**
+	 * Empties the counter but keeps its table, so one counter can be refilled
+	 * per document without allocating. Only the slots in use are reset, so
+	 * the cost is in the number of entries, not the capacity. A sorted
+	 * counter (see toSorted) can be filled again after a clear.
+	 */
 	public void clear() {
-		Arrays.fill(keys, EMPTY_KEY);
-		Arrays.fill(values, 0.0);
+		if (keys == null) throw new RuntimeException("Cannot change wrapped IntCounter");
+		if (sorted) {
+			// the entries are packed at the front
+			Arrays.fill(keys, 0, size, EMPTY_KEY);
+			Arrays.fill(values, 0, size, 0.0);
+			sorted = false;
+		} else {
+			for (int i = 0; i < size; ++i) {
+				keys[usedSlots[i]] = EMPTY_KEY;
+				values[usedSlots[i]] = 0.0;
+			}
+		}
 		size = 0;
-
 	}
 
 	public IntCounter copy() {
@@ -582,9 +701,38 @@ public final class IntCounter implements CounterInterface<Integer>, Serializable
 		ret.deflt = deflt;
 		ret.keys = Arrays.copyOf(keys, keys.length);
 		ret.values = Arrays.copyOf(values, values.length);
+		ret.usedSlots = usedSlots == null ? null : Arrays.copyOf(usedSlots, usedSlots.length);
 		ret.size = size;
 		ret.sorted = sorted;
 		ret.maxLoadFactor = maxLoadFactor;
 		return ret;
 	}
+
+	/**
+	 * Checks that sorted counters of a few sizes can be cleared and filled
+	 * again. Throws on the first mismatch.
+	 */
+	public static void main(String[] args) {
+		for (int n = 0; n <= 9; ++n) {
+			IntCounter counter = new IntCounter();
+			for (int k = 0; k < n; ++k) {
+				counter.setCount(7 * k + 1, k + 1.0);
+			}
+			counter.toSorted();
+			for (int k = 0; k < n; ++k) {
+				if (counter.getCount(7 * k + 1) != k + 1.0) throw new RuntimeException(String.format("Sorted counter of %d lost key %d", n, 7 * k + 1));
+			}
+			counter.clear();
+			if (counter.size() != 0 || counter.getCount(1) != 0.0) throw new RuntimeException(String.format("Cleared counter of %d is not empty", n));
+			counter.setCount(12345, 2.0);
+			for (int k = 0; k < n; ++k) {
+				counter.incrementCount(7 * k + 1, 1.0);
+			}
+			if (counter.size() != n + 1 || counter.getCount(12345) != 2.0) throw new RuntimeException(String.format("Refilled counter of %d has %d entries", n, counter.size()));
+			for (int k = 0; k < n; ++k) {
+				if (counter.getCount(7 * k + 1) != 1.0) throw new RuntimeException(String.format("Refilled counter of %d lost key %d", n, 7 * k + 1));
+			}
+		}
+		System.out.println("sorted counters clear and refill");
+	}
 }
@@ -0,0 +1,89 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies in nanoseconds, recorded from any number of threads without
+ * locking, for percentiles without keeping every sample. Buckets are
+ * log-linear: values below 2^SUB_BITS get a bucket each, and every higher
+ * power of two is split into 2^SUB_BITS equal buckets, so a percentile is
+ * reported to within about 3% of the true value.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+			max = maxNanos.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public double getMeanNanos() {
+		long n = count.get();
+		return n == 0 ? 0.0 : totalNanos.get() / (double) n;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * The latency that percentile percent of the samples do not exceed, e.g.
+	 * getPercentileNanos(99.0). Recording while this runs may skew it slightly.
+	 */
+	public long getPercentileNanos(double percentile) {
+		long n = count.get();
+		if (n == 0) return 0L;
+		long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0L;
+		for (int b=0; b<counts.length(); ++b) {
+			seen += counts.get(b);
+			if (seen >= rank) {
+				return Math.min(lowerBound(b) + (width(b) - 1) / 2, getMaxNanos());
+			}
+		}
+		return getMaxNanos();
+	}
+
+	/**
+	 * Count, mean, p50, p99, p99.9 and max, in microseconds.
+	 */
+	public String summary() {
+		return String.format("n=%d mean_us=%.1f p50_us=%.1f p99_us=%.1f p999_us=%.1f max_us=%.1f", getCount(), getMeanNanos() / 1e3,
+			getPercentileNanos(50.0) / 1e3, getPercentileNanos(99.0) / 1e3, getPercentileNanos(99.9) / 1e3, getMaxNanos() / 1e3);
+	}
+
+	private static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS) return (int) nanos;
+		int shift = (63 - Long.numberOfLeadingZeros(nanos)) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (nanos >>> shift) - SUB_BUCKETS;
+	}
+
+	private static long lowerBound(int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+	}
+
+	private static long width(int bucket) {
+		return bucket < SUB_BUCKETS ? 1L : 1L << (bucket / SUB_BUCKETS - 1);
+	}
+
+}
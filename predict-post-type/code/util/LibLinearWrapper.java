@@ -1,8 +1,10 @@
 package util;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -20,7 +22,12 @@ public class LibLinearWrapper implements Classifier {
 	SolverType solverType;
 	double C;
 	double eps;
-	Model model;
+	// flat weights as Linear.predictValues reads them: w[(f-1)*nrW + i]
+	double[] w;
+	int nrW;
+	int numModelFeatures;
+	int[] modelLabels;
+	int numLabels;
 	
 	public LibLinearWrapper(SolverType solverType, double C, double eps) {
 		this.solverType = solverType;
@@ -29,39 +36,105 @@ public class LibLinearWrapper implements Classifier {
 	}
 	
 	public void train(List<Pair<CounterInterface<Integer>,Integer>> trainSet) {
+		train(SparseDataset.fromPairs(trainSet));
+	}
+	
+	public void train(SparseDataset trainSet) {
+		train(toProblem(trainSet));
+	}
+	
+	/**
+	 * Trains on a problem from toProblem(). LibLinear only reads the problem,
+	 * so one problem can be shared by several trainings, also concurrently.
+	 */
+	public void train(Problem problem) {
+		Parameter parameter = new Parameter(solverType, C, eps);
+		if (usesSharedRandom(solverType)) {
+			// these solvers shuffle with one static Random; reset it per
+			// training so results do not depend on what else is training
+			synchronized (Linear.class) {
+				Linear.resetRandom();
+				setModel(Linear.train(problem, parameter));
+			}
+		} else {
+			setModel(Linear.train(problem, parameter));
+		}
+	}
+	
+	/**
+	 * The primal (trust region Newton) solvers are deterministic; all others
+	 * draw from LibLinear's static Random.
+	 */
+	private static boolean usesSharedRandom(SolverType solverType) {
+		return solverType != SolverType.L2R_LR && solverType != SolverType.L2R_L2LOSS_SVC && solverType != SolverType.L2R_L2LOSS_SVR;
+	}
+	
+	public static Problem toProblem(SparseDataset trainSet) {
 		Problem problem = new Problem();
-		FeatureNode[][] x = new FeatureNode[trainSet.size()][];
 		double[] y = new double[trainSet.size()];
-		int maxFeature = 0;
-		for (int i=0; i<x.length; ++i) {
-			CounterInterface<Integer> features = trainSet.get(i).getFirst();
-			for (Map.Entry<Integer, Double> feat : features.entries()) {
-				maxFeature = Math.max(feat.getKey()+1, maxFeature);
-			}
-			x[i] = convertToFeatureNodes(features);
-			y[i] = trainSet.get(i).getSecond();
+		for (int i=0; i<y.length; ++i) {
+			y[i] = trainSet.getLabel(i);
 		}
 		
 		problem.l = trainSet.size();
-		problem.n = maxFeature;
-		problem.x = x;
+		problem.n = trainSet.getNumFeatures();
+		problem.x = toFeatures(trainSet);
 		problem.y = y;
 		problem.bias = 0.0;
-		
-		Parameter parameter = new Parameter(solverType, C, eps);
-		model = Linear.train(problem, parameter);
+		return problem;
+	}
+	
+	private void setModel(Model model) {
+		this.w = model.getFeatureWeights();
+		this.nrW = (model.getNrClass() == 2 && solverType != SolverType.MCSVM_CS) ? 1 : model.getNrClass();
+		this.numModelFeatures = model.getBias() >= 0 ? model.getNrFeature() + 1 : model.getNrFeature();
+		this.modelLabels = model.getLabels();
+		this.numLabels = 0;
+		for (int l : modelLabels) numLabels = Math.max(numLabels, l + 1);
+	}
+	
+	/**
+	 * Length of the rows getWeightRow() fills: one weight per feature id.
+	 */
+	public int getNumWeightFeatures() {
+		return w.length / nrW;
+	}
+	
+	/**
+	 * The labels of the trained model, which getWeights() has entries for.
+	 */
+	public int[] getModelLabels() {
+		return modelLabels.clone();
+	}
+	
+	/**
+	 * The weights getWeights() gives the label, by feature id and including
+	 * zeros, without building a counter.
+	 */
+	public void getWeightRow(int label, double[] row) {
+		int numFeatures = getNumWeightFeatures();
+		if (nrW == 1) {
+			if (label == modelLabels[0]) System.arraycopy(w, 0, row, 0, numFeatures);
+			else Arrays.fill(row, 0, numFeatures, 0.0);
+			return;
+		}
+		int i = 0;
+		while (modelLabels[i] != label) i++;
+		for (int f=0; f<numFeatures; ++f) {
+			row[f] = w[f * nrW + i];
+		}
 	}
 	
 	public Map<Integer,CounterInterface<Integer>> getWeights() {
 		Map<Integer,CounterInterface<Integer>> weights = new HashMap<Integer,CounterInterface<Integer>>();
-		int numLabels = model.getNrClass();
-		double[] flatWeights = model.getFeatureWeights();
+		int numLabels = modelLabels.length;
+		double[] flatWeights = w;
 		if (numLabels > 2 || solverType == SolverType.MCSVM_CS) {
-			for (int l : model.getLabels()) weights.put(l, new IntCounter());
+			for (int l : modelLabels) weights.put(l, new IntCounter());
 			int i=0;
 			int f=0;
 			while (i < flatWeights.length) {
-				for (int l : model.getLabels()) {
+				for (int l : modelLabels) {
 					if (flatWeights[i] != 0.0) weights.get(l).setCount(f, flatWeights[i]);
 					i++;
 				}
@@ -72,34 +145,172 @@ public class LibLinearWrapper implements Classifier {
 			for (int f=0; f<flatWeights.length; ++f) {
 				if (flatWeights[f] != 0.0) labelWeights.setCount(f, flatWeights[f]);
 			}
-			weights.put(model.getLabels()[0], labelWeights);
-			weights.put(model.getLabels()[1], new IntCounter());
+			weights.put(modelLabels[0], labelWeights);
+			weights.put(modelLabels[1], new IntCounter());
 		}
 		return weights;
 	}
 	
 	public Integer predict(CounterInterface<Integer> toPredict) {
-		return (int) Linear.predict(model, convertToFeatureNodes(toPredict));
-	}
-	
-	private FeatureNode[] convertToFeatureNodes(CounterInterface<Integer> features) {
-		FeatureNode[] x = new FeatureNode[features.size()];
-		int j=0;
-		for (Map.Entry<Integer, Double> feat : features.entries()) {
-			x[j] = new FeatureNode(feat.getKey()+1, feat.getValue());
-			j++;
-		}
-		Arrays.sort(x, new Comparator<FeatureNode>() {
-			public int compare(FeatureNode o1, FeatureNode o2) {
-				if (o1.index > o2.index) {
-					return 1;
-				} else if (o1.index < o2.index) {
-					return -1;
-				} else {
-					return 0;
-				}
+		return decide(decisionValues(predictBuffers.get().set(toPredict)));
+	}
+	
+	/**
+	 * Same decision as Linear.predict, computed straight from the CSR row
+	 * and the flat weight matrix.
+	 */
+	public int predict(SparseDataset data, int row) {
+		return decide(decisionValues(data, row));
+	}
+	
+	private int decide(double[] dec) {
+		if (modelLabels.length == 2) {
+			return dec[0] > 0 ? modelLabels[0] : modelLabels[1];
+		}
+		int best = 0;
+		for (int i=1; i<modelLabels.length; ++i) {
+			if (dec[i] > dec[best]) best = i;
+		}
+		return modelLabels[best];
+	}
+	
+	public int getNumLabels() {
+		return numLabels;
+	}
+	
+	/**
+	 * Decision values by label id. With two classes LibLinear decides on the
+	 * sign of one margin, so the first model label scores the margin and the
+	 * second its negation. Labels not seen in training score -infinity.
+	 */
+	public void scores(SparseDataset data, int row, double[] scores) {
+		double[] dec = decisionValues(data, row);
+		Arrays.fill(scores, 0, numLabels, Double.NEGATIVE_INFINITY);
+		if (modelLabels.length == 2) {
+			scores[modelLabels[0]] = dec[0];
+			scores[modelLabels[1]] = -dec[0];
+		} else {
+			for (int i=0; i<modelLabels.length; ++i) {
+				scores[modelLabels[i]] = dec[i];
+			}
+		}
+	}
+	
+	public int[] predictBatch(SparseDataset data, int numThreads) {
+		return Classifiers.predictBatch(this, data, numThreads);
+	}
+	
+	public double[][] scoreBatch(SparseDataset data, int numThreads) {
+		return Classifiers.scoreBatch(this, data, numThreads);
+	}
+	
+	/**
+	 * Decision values in model label order, summed in the same order as
+	 * Linear.predictValues. Returns a thread-local buffer.
+	 */
+	private double[] decisionValues(SparseDataset data, int row) {
+		double[] dec = clearedDecisionBuffer();
+		for (int k=data.getRowStart(row); k<data.getRowEnd(row); ++k) {
+			int idx = data.getFeature(k)+1;
+			if (idx > numModelFeatures) continue;
+			double value = data.getValue(k);
+			int offset = (idx - 1) * nrW;
+			for (int i=0; i<nrW; ++i) {
+				dec[i] += w[offset + i] * value;
+			}
+		}
+		return dec;
+	}
+	
+	private double[] decisionValues(Feature[] x) {
+		double[] dec = clearedDecisionBuffer();
+		for (Feature feat : x) {
+			int idx = feat.getIndex();
+			if (idx > numModelFeatures) continue;
+			double value = feat.getValue();
+			int offset = (idx - 1) * nrW;
+			for (int i=0; i<nrW; ++i) {
+				dec[i] += w[offset + i] * value;
+			}
+		}
+		return dec;
+	}
+	
+	private double[] clearedDecisionBuffer() {
+		double[] dec = decisionBuffers.get();
+		if (dec.length < nrW) {
+			dec = new double[nrW];
+			decisionBuffers.set(dec);
+		}
+		Arrays.fill(dec, 0, nrW, 0.0);
+		return dec;
+	}
+	
+	/**
+	 * Writes the solver settings and the trained weights, as read back by
+	 * read(ByteBuffer).
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		FeatureCache.writeString(out, solverType.name());
+		out.writeDouble(C);
+		out.writeDouble(eps);
+		out.writeInt(numModelFeatures);
+		out.writeInt(nrW);
+		out.writeInt(modelLabels.length);
+		for (int l : modelLabels) out.writeInt(l);
+		out.writeInt(w.length);
+		for (double weight : w) out.writeDouble(weight);
+	}
+	
+	/**
+	 * Reads a classifier written by write(), advancing the buffer past it. It
+	 * predicts and reports weights like the one written, but cannot be
+	 * trained further.
+	 */
+	public static LibLinearWrapper read(ByteBuffer in) {
+		SolverType solverType = SolverType.valueOf(FeatureCache.readString(in));
+		double C = in.getDouble();
+		double eps = in.getDouble();
+		LibLinearWrapper result = new LibLinearWrapper(solverType, C, eps);
+		result.numModelFeatures = in.getInt();
+		result.nrW = in.getInt();
+		result.modelLabels = new int[in.getInt()];
+		for (int i=0; i<result.modelLabels.length; ++i) {
+			result.modelLabels[i] = in.getInt();
+			result.numLabels = Math.max(result.numLabels, result.modelLabels[i] + 1);
+		}
+		result.w = new double[in.getInt()];
+		in.asDoubleBuffer().get(result.w);
+		in.position(in.position() + 8 * result.w.length);
+		return result;
+	}
+	
+	private static final ThreadLocal<double[]> decisionBuffers = new ThreadLocal<double[]>() {
+		protected double[] initialValue() {
+			return new double[0];
+		}
+	};
+	
+	private static final ThreadLocal<FeatureBuffer> predictBuffers = new ThreadLocal<FeatureBuffer>() {
+		protected FeatureBuffer initialValue() {
+			return new FeatureBuffer();
+		}
+	};
+	
+	/**
+	 * LibLinear examples for all rows, built in one pass over the CSR arrays.
+	 * Rows are already sorted by feature id, so no sort is needed here.
+	 */
+	public static Feature[][] toFeatures(SparseDataset data) {
+		Feature[][] x = new Feature[data.size()][];
+		for (int i=0; i<x.length; ++i) {
+			int start = data.getRowStart(i);
+			Feature[] row = new Feature[data.getRowEnd(i) - start];
+			for (int j=0; j<row.length; ++j) {
+				row[j] = new FeatureNode(data.getFeature(start + j)+1, data.getValue(start + j));
 			}
-		});
+			x[i] = row;
+		}
 		return x;
 	}
 	
@@ -165,6 +376,15 @@ public class LibLinearWrapper implements Classifier {
 			System.out.println("label: "+l);
 			System.out.println(weights.get(l));
 		}
+		
+		// a long example, then shorter ones that reuse its padded buffer
+		IntCounter longer = new IntCounter();
+		for (int f=5; f>=0; --f) longer.setCount(f, 0.5);
+		IntCounter sorted = new IntCounter();
+		sorted.setCount(3, 1.0);
+		sorted.setCount(1, 0.5);
+		sorted.toSorted();
+		System.out.println("predictions: "+classifier.predict(longer)+" "+classifier.predict(trainSet.get(1).getFirst())+" "+classifier.predict(sorted));
 	}
 
 }
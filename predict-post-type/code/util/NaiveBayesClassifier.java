@@ -1,86 +1,243 @@
 package util;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+/**
+ * Bernoulli naive Bayes over binary features: a feature is present in a row
+ * if its value is > 0, and each label has a smoothed probability of each
+ * feature being present. A row's score under a label is the log likelihood
+ * of all features being present or absent as they are in the row (there is
+ * no label prior). Features beyond the training vocabulary count log(0.5).
+ *
+ * Most features are absent from most rows, so the model is stored as, per
+ * label, the score of a row with every feature absent, plus the change in
+ * score when a feature is present. That change is the same for every feature
+ * a label never saw in training, so only (feature, label) pairs seen in
+ * training are stored, grouped by feature in flat arrays. Memory is then
+ * proportional to the training data rather than labels x vocabulary, and
+ * scoring a row costs O(labels + the labels seen with its features).
+ */
 public class NaiveBayesClassifier implements Classifier {
-	
-	double smoothing;
-	int maxLabel;
-	int maxFeature;
-	double[][][] logProbs;
-	
+
+	private static final double LOG_HALF = Math.log(0.5);
+
+	private final double smoothing;
+	private final int numThreads;
+	private int numLabels;
+	private int numFeatures;
+	// log likelihood of a row with every feature absent
+	private double[] baseScores;
+	// score change for a present feature the label never saw in training
+	private double[] unseenDeltas;
+	// the labels seen with feature f are entryLabels[featureStart[f]..featureStart[f+1]),
+	// and entryDeltas their score change when f is present, minus unseenDeltas[label]
+	private int[] featureStart;
+	private int[] entryLabels;
+	private double[] entryDeltas;
+
 	public NaiveBayesClassifier(double smoothing) {
+		this(smoothing, 1);
+	}
+
+	/**
+	 * Counts features on numThreads threads when training.
+	 */
+	public NaiveBayesClassifier(double smoothing, int numThreads) {
 		this.smoothing = smoothing;
+		this.numThreads = numThreads;
 	}
 
 	public void train(List<Pair<CounterInterface<Integer>, Integer>> trainSet) {
-		this.maxLabel = -1;
-		this.maxFeature = -1;
-		for (Pair<CounterInterface<Integer>, Integer> datum : trainSet) {
-			int label = datum.getSecond();
-			maxLabel = Math.max(label, maxLabel);
-			for (Entry<Integer,Double> entry : datum.getFirst().entries()) {
-				int feature = entry.getKey();
-				maxFeature = Math.max(feature, maxFeature);
-			}
+		train(SparseDataset.fromPairs(trainSet));
+	}
+
+	/**
+	 * Each present (feature, label) pair of the data is packed into a long
+	 * key, feature major, and the keys are sorted, so equal keys form runs
+	 * whose lengths are the counts, already grouped by feature. Packing and
+	 * sorting run on numThreads threads.
+	 */
+	public void train(final SparseDataset trainSet) {
+		numLabels = 0;
+		numFeatures = trainSet.getNumFeatures();
+		for (int i=0; i<trainSet.size(); ++i) {
+			numLabels = Math.max(trainSet.getLabel(i) + 1, numLabels);
 		}
-		
-		this.logProbs = new double[maxLabel+1][maxFeature+1][2];
-		
-		for (Pair<CounterInterface<Integer>, Integer> datum : trainSet) {
-			int label = datum.getSecond();
-			for (int f=0; f<=maxFeature; ++f) logProbs[label][f][0] += 1.0;
-			for (Entry<Integer,Double> entry : datum.getFirst().entries()) {
-				int f = entry.getKey();
-				if (entry.getValue() > 0) {
-					logProbs[label][f][0] -= 1.0;
-					logProbs[label][f][1] += 1.0;
+		final int[] labelCounts = new int[numLabels];
+		// where each row's keys go
+		final int[] keyStart = new int[trainSet.size() + 1];
+		for (int i=0; i<trainSet.size(); ++i) {
+			labelCounts[trainSet.getLabel(i)]++;
+			keyStart[i + 1] = keyStart[i] + trainSet.getRowEnd(i) - trainSet.getRowStart(i);
+		}
+		final long[] keys = new long[keyStart[trainSet.size()]];
+		final int labels = numLabels;
+		Classifiers.forEachChunk(trainSet.size(), numThreads, new Classifiers.RowTask() {
+			public void run(int from, int to) {
+				for (int i=from; i<to; ++i) {
+					int label = trainSet.getLabel(i);
+					int next = keyStart[i];
+					for (int k=trainSet.getRowStart(i); k<trainSet.getRowEnd(i); ++k) {
+						// absent entries sort after every real key and are dropped below
+						keys[next++] = trainSet.getValue(k) > 0 ? (long) trainSet.getFeature(k) * labels + label : Long.MAX_VALUE;
+					}
 				}
 			}
+		});
+		if (numThreads > 1) Arrays.parallelSort(keys);
+		else Arrays.sort(keys);
+
+		baseScores = new double[numLabels];
+		unseenDeltas = new double[numLabels];
+		for (int label=0; label<numLabels; ++label) {
+			double total = labelCounts[label] + 2 * smoothing;
+			// every feature starts out never seen, i.e. absent in all labelCounts[label] rows
+			baseScores[label] = numFeatures * Math.log((labelCounts[label] + smoothing) / total);
+			unseenDeltas[label] = Math.log(smoothing / (labelCounts[label] + smoothing));
+		}
+		featureStart = new int[numFeatures + 1];
+		int numEntries = 0;
+		for (int k=0; k<keys.length && keys[k] != Long.MAX_VALUE; ++k) {
+			if (k == 0 || keys[k] != keys[k - 1]) numEntries++;
+		}
+		entryLabels = new int[numEntries];
+		entryDeltas = new double[numEntries];
+		int entry = 0;
+		for (int k=0; k<keys.length && keys[k] != Long.MAX_VALUE; ) {
+			int run = k;
+			while (run < keys.length && keys[run] == keys[k]) run++;
+			int feature = (int) (keys[k] / numLabels);
+			int label = (int) (keys[k] % numLabels);
+			int count = run - k;
+			double total = labelCounts[label] + 2 * smoothing;
+			double logPresent = Math.log((count + smoothing) / total);
+			double logAbsent = Math.log((labelCounts[label] - count + smoothing) / total);
+			baseScores[label] += logAbsent - Math.log((labelCounts[label] + smoothing) / total);
+			entryLabels[entry] = label;
+			entryDeltas[entry] = logPresent - logAbsent - unseenDeltas[label];
+			featureStart[feature + 1] = ++entry;
+			k = run;
+		}
+		// features seen with no label end where the previous one did
+		for (int f=0; f<numFeatures; ++f) {
+			featureStart[f + 1] = Math.max(featureStart[f + 1], featureStart[f]);
 		}
-	
-		a.addi(this.logProbs, smoothing);
-		a.normalizecoli(this.logProbs);
-		a.logi(this.logProbs);
 	}
 
+	/**
+	 * Per label, the log likelihood of a feature being absent minus that of
+	 * it being present, for every feature present in some training row.
+	 */
 	public Map<Integer,CounterInterface<Integer>> getWeights() {
 		Map<Integer,CounterInterface<Integer>> weights = new HashMap<Integer,CounterInterface<Integer>>();
-		
-		for (int label=0; label<=maxLabel; ++label) {
-			CounterInterface<Integer> labelWeights = new Counter<Integer>();
-			for (int f=0; f<=maxFeature; ++f) {
-				labelWeights.setCount(f, logProbs[label][f][0] - logProbs[label][f][1]);
+		double[] deltas = new double[numLabels];
+		for (int label=0; label<numLabels; ++label) {
+			weights.put(label, new IntCounter());
+		}
+		for (int f=0; f<numFeatures; ++f) {
+			if (featureStart[f] == featureStart[f + 1]) continue;
+			System.arraycopy(unseenDeltas, 0, deltas, 0, numLabels);
+			for (int k=featureStart[f]; k<featureStart[f + 1]; ++k) {
+				deltas[entryLabels[k]] += entryDeltas[k];
+			}
+			for (int label=0; label<numLabels; ++label) {
+				weights.get(label).setCount(f, -deltas[label]);
 			}
-			weights.put(label, labelWeights);
 		}
-		
 		return weights;
 	}
 
 	public Integer predict(CounterInterface<Integer> testInstance) {
-		double bestScore = Double.NEGATIVE_INFINITY;
-		int bestLabel = -1;
-		for (int label=0; label<=maxLabel; ++label) {
-			double score = 0.0;
-			for (int f=0; f<=maxFeature; ++f) score += logProbs[label][f][0];
+		double[] scores = new double[numLabels];
+		System.arraycopy(baseScores, 0, scores, 0, numLabels);
+		int present = 0;
+		int unknown = 0;
+		if (testInstance instanceof IntCounter) {
+			for (IntCounter.Cursor cursor = ((IntCounter) testInstance).cursor(); cursor.next(); ) {
+				int f = cursor.key();
+				if (f >= numFeatures) {
+					unknown++;
+				} else if (cursor.value() > 0) {
+					present++;
+					addDeltas(f, scores);
+				}
+			}
+		} else {
 			for (Entry<Integer,Double> entry : testInstance.entries()) {
 				int f = entry.getKey();
-				if (f <= maxFeature) {
-					if (entry.getValue() > 0) {
-						score -= logProbs[label][f][0];
-						score += logProbs[label][f][1];
-					}
-				} else {
-					score += Math.log(0.5);
+				if (f >= numFeatures) {
+					unknown++;
+				} else if (entry.getValue() > 0) {
+					present++;
+					addDeltas(f, scores);
 				}
 			}
-			if (score > bestScore) {
+		}
+		addCommon(present, unknown, scores);
+		return best(scores);
+	}
+
+	public int predict(SparseDataset data, int row) {
+		double[] scores = new double[numLabels];
+		scores(data, row, scores);
+		return best(scores);
+	}
+
+	public int getNumLabels() {
+		return numLabels;
+	}
+
+	/**
+	 * Log likelihood of the row under each label.
+	 */
+	public void scores(SparseDataset data, int row, double[] scores) {
+		System.arraycopy(baseScores, 0, scores, 0, numLabels);
+		int present = 0;
+		int unknown = 0;
+		for (int k=data.getRowStart(row); k<data.getRowEnd(row); ++k) {
+			int f = data.getFeature(k);
+			if (f >= numFeatures) {
+				unknown++;
+			} else if (data.getValue(k) > 0) {
+				present++;
+				addDeltas(f, scores);
+			}
+		}
+		addCommon(present, unknown, scores);
+	}
+
+	public int[] predictBatch(SparseDataset data, int numThreads) {
+		return Classifiers.predictBatch(this, data, numThreads);
+	}
+
+	public double[][] scoreBatch(SparseDataset data, int numThreads) {
+		return Classifiers.scoreBatch(this, data, numThreads);
+	}
+
+	private void addDeltas(int f, double[] scores) {
+		for (int k=featureStart[f]; k<featureStart[f + 1]; ++k) {
+			scores[entryLabels[k]] += entryDeltas[k];
+		}
+	}
+
+	private void addCommon(int present, int unknown, double[] scores) {
+		for (int label=0; label<numLabels; ++label) {
+			scores[label] += present * unseenDeltas[label] + unknown * LOG_HALF;
+		}
+	}
+
+	// first label with the highest score
+	private int best(double[] scores) {
+		double bestScore = Double.NEGATIVE_INFINITY;
+		int bestLabel = -1;
+		for (int label=0; label<numLabels; ++label) {
+			if (scores[label] > bestScore) {
 				bestLabel = label;
-				bestScore = score;
+				bestScore = scores[label];
 			}
 		}
 		return bestLabel;
@@ -0,0 +1,120 @@
+package util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Near-duplicate detection with MinHash and locality sensitive hashing.
+ * A text is reduced to the set of its char SHINGLE_CHARS-grams and that set
+ * to a signature of bands * rows minimum hashes, so two signatures agree in
+ * each position with probability equal to the Jaccard similarity of the
+ * sets. A text whose signature is identical in some band of rows positions
+ * to an earlier text's is a candidate duplicate of the first such text, and
+ * joins its cluster if their estimated similarity reaches the threshold.
+ * Only candidate pairs are compared, so clustering n texts costs about
+ * n * bands hash lookups rather than n^2 comparisons.
+ */
+public class NearDuplicates {
+
+	public static final int SHINGLE_CHARS = 5;
+	private static final long SHINGLE_SEED = 0x2545f4914f6cdd1dL;
+
+	private final int bands;
+	private final int rows;
+	private final double threshold;
+	// one hash function per signature position
+	private final long[] seeds;
+
+	public NearDuplicates(int bands, int rows, double threshold) {
+		this.bands = bands;
+		this.rows = rows;
+		this.threshold = threshold;
+		this.seeds = new long[bands * rows];
+		for (int i=0; i<seeds.length; ++i) {
+			seeds[i] = HashingIndexer.mix(SHINGLE_SEED + (i + 1) * 0x9e3779b97f4a7c15L);
+		}
+	}
+
+	/**
+	 * MinHash signature of the text's shingles, or null for a text too short
+	 * to have any, which is then never a duplicate.
+	 */
+	public long[] signature(String text) {
+		if (text.length() < SHINGLE_CHARS) return null;
+		final long[] signature = new long[seeds.length];
+		Arrays.fill(signature, Long.MAX_VALUE);
+		CharNGramHasher.hashNGrams(text.toCharArray(), 0, text.length(), SHINGLE_CHARS, SHINGLE_CHARS, SHINGLE_SEED, new CharNGramHasher.NGramVisitor() {
+			public void visit(int n, int start, long hash) {
+				for (int i=0; i<seeds.length; ++i) {
+					long h = HashingIndexer.mix(hash ^ seeds[i]);
+					if (h < signature[i]) signature[i] = h;
+				}
+			}
+		});
+		return signature;
+	}
+
+	/**
+	 * Estimated Jaccard similarity of the shingle sets: the fraction of
+	 * positions where the signatures agree.
+	 */
+	public static double similarity(long[] a, long[] b) {
+		int same = 0;
+		for (int i=0; i<a.length; ++i) {
+			if (a[i] == b[i]) same++;
+		}
+		return same / (double) a.length;
+	}
+
+	/**
+	 * For each signature, the index of its cluster's representative: the
+	 * first signature of the cluster, so result[i] == i for representatives
+	 * and for texts without duplicates. Null signatures are left alone.
+	 */
+	public int[] cluster(List<long[]> signatures) {
+		int[] parent = new int[signatures.size()];
+		for (int i=0; i<parent.length; ++i) parent[i] = i;
+		for (int band=0; band<bands; ++band) {
+			// band hash -> first signature with it; later ones compare against it
+			Map<Long,Integer> buckets = new HashMap<Long,Integer>();
+			for (int i=0; i<signatures.size(); ++i) {
+				long[] signature = signatures.get(i);
+				if (signature == null) continue;
+				long key = band;
+				for (int r=band*rows; r<(band+1)*rows; ++r) {
+					key = HashingIndexer.mix(key ^ signature[r]);
+				}
+				Integer first = buckets.get(key);
+				if (first == null) {
+					buckets.put(key, i);
+				} else if (find(parent, first) != find(parent, i) && similarity(signatures.get(first), signature) >= threshold) {
+					union(parent, first, i);
+				}
+			}
+		}
+		int[] representative = new int[parent.length];
+		for (int i=0; i<parent.length; ++i) {
+			representative[i] = find(parent, i);
+		}
+		return representative;
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	// the smaller index becomes the root, so every root is its cluster's first member
+	private static void union(int[] parent, int a, int b) {
+		int rootA = find(parent, a);
+		int rootB = find(parent, b);
+		if (rootA < rootB) parent[rootB] = rootA;
+		else parent[rootA] = rootB;
+	}
+
+}
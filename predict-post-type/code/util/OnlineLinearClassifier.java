@@ -0,0 +1,258 @@
+package util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Multiclass linear classifier trained online, so a model can be updated
+ * with newly labelled threads (partialFit) instead of retrained on all of
+ * them. Each example takes one step on the multiclass hinge loss: if the
+ * true label does not beat the best other label by a margin of 1, the true
+ * label's weights move towards the example and the other label's away. Step
+ * sizes are per weight (AdaGrad): learningRate / sqrt(1 + sum of squared
+ * gradients so far), so frequent features settle while rare ones still
+ * learn.
+ *
+ * L2 regularization shrinks every weight by (1 - step * l2) per example.
+ * That is applied lazily, only to the features of the current example, with
+ * the shrink for the examples a feature missed applied at once. Each
+ * partialFit ends by bringing all weights up to date, so the model predicts
+ * as if every weight had been shrunk each step.
+ *
+ * Feature ids may grow between calls, as they do with an unlocked
+ * dictionary indexer; weights grow with them. The number of labels is fixed.
+ * Features beyond the model are ignored when predicting.
+ */
+public class OnlineLinearClassifier implements Classifier {
+
+	private final int numLabels;
+	private final double learningRate;
+	private final double l2;
+	// passes over the data in train(); partialFit always makes one
+	private final int numEpochs;
+	// w[f*numLabels + l], and the squared gradients summed for each
+	private double[] w = new double[0];
+	private double[] sumSquaredGradients = new double[0];
+	// step up to which each feature's weights have been regularized
+	private long[] regularizedUpTo = new long[0];
+	private int numFeatures = 0;
+	private long step = 0;
+
+	public OnlineLinearClassifier(int numLabels, double learningRate, double l2, int numEpochs) {
+		if (numLabels < 2) {
+			throw new IllegalArgumentException(String.format("Need at least 2 labels: %d", numLabels));
+		}
+		this.numLabels = numLabels;
+		this.learningRate = learningRate;
+		this.l2 = l2;
+		this.numEpochs = numEpochs;
+	}
+
+	/**
+	 * Number of examples learned from so far.
+	 */
+	public long getNumSteps() {
+		return step;
+	}
+
+	public void train(List<Pair<CounterInterface<Integer>,Integer>> trainSet) {
+		train(SparseDataset.fromPairs(trainSet));
+	}
+
+	/**
+	 * Forgets what was learned, then makes numEpochs passes over the rows in
+	 * order.
+	 */
+	public void train(SparseDataset trainSet) {
+		w = new double[0];
+		sumSquaredGradients = new double[0];
+		regularizedUpTo = new long[0];
+		numFeatures = 0;
+		step = 0;
+		for (int epoch=0; epoch<numEpochs; ++epoch) {
+			partialFit(trainSet);
+		}
+	}
+
+	public void partialFit(List<Pair<CounterInterface<Integer>,Integer>> data) {
+		partialFit(SparseDataset.fromPairs(data));
+	}
+
+	/**
+	 * One step per row, in order, then brings all weights up to date.
+	 */
+	public void partialFit(SparseDataset data) {
+		ensureFeatures(data.getNumFeatures());
+		double[] scores = new double[numLabels];
+		for (int i=0; i<data.size(); ++i) {
+			update(data, i, scores);
+		}
+		for (int f=0; f<numFeatures; ++f) {
+			regularize(f);
+		}
+	}
+
+	private void update(SparseDataset data, int row, double[] scores) {
+		int label = data.getLabel(row);
+		if (label < 0 || label >= numLabels) {
+			throw new RuntimeException(String.format("Label %d out of range for %d labels", label, numLabels));
+		}
+		step++;
+		int start = data.getRowStart(row);
+		int end = data.getRowEnd(row);
+		for (int k=start; k<end; ++k) {
+			regularize(data.getFeature(k));
+		}
+		scores(data, row, scores);
+		int rival = -1;
+		for (int l=0; l<numLabels; ++l) {
+			if (l != label && (rival < 0 || scores[l] > scores[rival])) rival = l;
+		}
+		if (scores[label] - scores[rival] >= 1.0) return;
+		for (int k=start; k<end; ++k) {
+			int base = data.getFeature(k) * numLabels;
+			double value = data.getValue(k);
+			double gradientSquared = value * value;
+			sumSquaredGradients[base + label] += gradientSquared;
+			w[base + label] += learningRate / Math.sqrt(1.0 + sumSquaredGradients[base + label]) * value;
+			sumSquaredGradients[base + rival] += gradientSquared;
+			w[base + rival] -= learningRate / Math.sqrt(1.0 + sumSquaredGradients[base + rival]) * value;
+		}
+	}
+
+	// applies the L2 shrink of the steps since the feature was last regularized
+	private void regularize(int f) {
+		long missed = step - regularizedUpTo[f];
+		if (missed == 0) return;
+		regularizedUpTo[f] = step;
+		if (l2 == 0.0) return;
+		int base = f * numLabels;
+		for (int l=0; l<numLabels; ++l) {
+			if (w[base + l] == 0.0) continue;
+			double shrink = 1.0 - learningRate / Math.sqrt(1.0 + sumSquaredGradients[base + l]) * l2;
+			w[base + l] *= shrink <= 0.0 ? 0.0 : Math.pow(shrink, missed);
+		}
+	}
+
+	private void ensureFeatures(int n) {
+		if (n <= numFeatures) return;
+		int capacity = regularizedUpTo.length;
+		if (n > capacity) {
+			capacity = Math.max(n, 2 * capacity);
+			w = Arrays.copyOf(w, capacity * numLabels);
+			sumSquaredGradients = Arrays.copyOf(sumSquaredGradients, capacity * numLabels);
+			regularizedUpTo = Arrays.copyOf(regularizedUpTo, capacity);
+		}
+		// new features have had no weight to shrink
+		Arrays.fill(regularizedUpTo, numFeatures, n, step);
+		numFeatures = n;
+	}
+
+	public Map<Integer,CounterInterface<Integer>> getWeights() {
+		Map<Integer,CounterInterface<Integer>> weights = new HashMap<Integer,CounterInterface<Integer>>();
+		for (int l=0; l<numLabels; ++l) {
+			weights.put(l, new IntCounter());
+		}
+		for (int f=0; f<numFeatures; ++f) {
+			for (int l=0; l<numLabels; ++l) {
+				if (w[f * numLabels + l] != 0.0) weights.get(l).setCount(f, w[f * numLabels + l]);
+			}
+		}
+		return weights;
+	}
+
+	public Integer predict(CounterInterface<Integer> testInstance) {
+		double[] scores = new double[numLabels];
+		if (testInstance instanceof IntCounter) {
+			for (IntCounter.Cursor cursor = ((IntCounter) testInstance).cursor(); cursor.next(); ) {
+				addScores(cursor.key(), cursor.value(), scores);
+			}
+		} else {
+			for (Map.Entry<Integer, Double> entry : testInstance.entries()) {
+				addScores(entry.getKey(), entry.getValue(), scores);
+			}
+		}
+		return best(scores);
+	}
+
+	private void addScores(int f, double value, double[] scores) {
+		if (f >= numFeatures) return;
+		for (int l=0; l<numLabels; ++l) {
+			scores[l] += w[f * numLabels + l] * value;
+		}
+	}
+
+	public int predict(SparseDataset data, int row) {
+		double[] scores = new double[numLabels];
+		scores(data, row, scores);
+		return best(scores);
+	}
+
+	// first label with the highest score
+	private int best(double[] scores) {
+		int best = 0;
+		for (int l=1; l<numLabels; ++l) {
+			if (scores[l] > scores[best]) best = l;
+		}
+		return best;
+	}
+
+	public int getNumLabels() {
+		return numLabels;
+	}
+
+	public void scores(SparseDataset data, int row, double[] scores) {
+		Arrays.fill(scores, 0, numLabels, 0.0);
+		for (int k=data.getRowStart(row); k<data.getRowEnd(row); ++k) {
+			addScores(data.getFeature(k), data.getValue(k), scores);
+		}
+	}
+
+	public int[] predictBatch(SparseDataset data, int numThreads) {
+		return Classifiers.predictBatch(this, data, numThreads);
+	}
+
+	public double[][] scoreBatch(SparseDataset data, int numThreads) {
+		return Classifiers.scoreBatch(this, data, numThreads);
+	}
+
+	/**
+	 * Writes everything needed to resume learning, not just to predict.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(numLabels);
+		out.writeDouble(learningRate);
+		out.writeDouble(l2);
+		out.writeInt(numEpochs);
+		out.writeLong(step);
+		out.writeInt(numFeatures);
+		for (int i=0; i<numFeatures * numLabels; ++i) out.writeDouble(w[i]);
+		for (int i=0; i<numFeatures * numLabels; ++i) out.writeDouble(sumSquaredGradients[i]);
+	}
+
+	/**
+	 * Reads a classifier written by write(), advancing the buffer past it.
+	 * All weights were brought up to date before it was written.
+	 */
+	public static OnlineLinearClassifier read(ByteBuffer in) {
+		int numLabels = in.getInt();
+		double learningRate = in.getDouble();
+		double l2 = in.getDouble();
+		int numEpochs = in.getInt();
+		OnlineLinearClassifier result = new OnlineLinearClassifier(numLabels, learningRate, l2, numEpochs);
+		result.step = in.getLong();
+		int numFeatures = in.getInt();
+		result.ensureFeatures(numFeatures);
+		in.asDoubleBuffer().get(result.w, 0, numFeatures * numLabels);
+		in.position(in.position() + 8 * numFeatures * numLabels);
+		in.asDoubleBuffer().get(result.sumSquaredGradients, 0, numFeatures * numLabels);
+		in.position(in.position() + 8 * numFeatures * numLabels);
+		return result;
+	}
+
+}
@@ -0,0 +1,185 @@
+package util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wall time, CPU time, allocated bytes and item counts per pipeline stage,
+ * summed over every thread that runs the stage. Recording is off unless
+ * enabled, and then costs one branch per call. When on, each begin/end pair
+ * reads the clock, the thread's CPU clock and its allocation counter, about
+ * a microsecond in all, so stages should be at least a line of text long.
+ *
+ *   PipelineMetrics.Stage stage = PipelineMetrics.stage("cleanLine");
+ *   stage.begin();
+ *   ...
+ *   stage.end(1);
+ *
+ * A stage may run on several threads at once, but not nested in itself on
+ * one thread. Wall time is summed over threads, so for a parallel stage it
+ * can exceed the elapsed time of the run. CPU time and allocation are those
+ * of the thread calling begin and end, so work it hands to a pool (e.g.
+ * predictBatch) only shows up in wall time.
+ */
+public class PipelineMetrics {
+
+	public static volatile boolean enabled = false;
+
+	private static final List<Stage> stages = new ArrayList<Stage>();
+	private static final long startNanos = System.nanoTime();
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private static final com.sun.management.ThreadMXBean allocations =
+		threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) threads : null;
+
+	public static class Stage {
+		public final String name;
+		private final LongAdder calls = new LongAdder();
+		private final LongAdder items = new LongAdder();
+		private final LongAdder wallNanos = new LongAdder();
+		private final LongAdder cpuNanos = new LongAdder();
+		private final LongAdder allocatedBytes = new LongAdder();
+		// wall, cpu and allocated at begin() on this thread
+		private final ThreadLocal<long[]> begun = new ThreadLocal<long[]>() {
+			protected long[] initialValue() {
+				return new long[3];
+			}
+		};
+
+		private Stage(String name) {
+			this.name = name;
+		}
+
+		public void begin() {
+			if (!enabled) return;
+			long[] at = begun.get();
+			at[0] = System.nanoTime();
+			at[1] = cpuNanos();
+			at[2] = allocatedBytes();
+		}
+
+		/**
+		 * Ends the stage begun on this thread, which handled numItems items.
+		 */
+		public void end(long numItems) {
+			if (!enabled) return;
+			long[] at = begun.get();
+			wallNanos.add(System.nanoTime() - at[0]);
+			cpuNanos.add(cpuNanos() - at[1]);
+			allocatedBytes.add(allocatedBytes() - at[2]);
+			items.add(numItems);
+			calls.increment();
+		}
+
+		public long getCalls() {
+			return calls.sum();
+		}
+
+		public long getItems() {
+			return items.sum();
+		}
+
+		public long getWallNanos() {
+			return wallNanos.sum();
+		}
+
+		public long getCpuNanos() {
+			return cpuNanos.sum();
+		}
+
+		public long getAllocatedBytes() {
+			return allocatedBytes.sum();
+		}
+
+		public double getItemsPerSecond() {
+			long wall = getWallNanos();
+			return wall == 0 ? 0.0 : getItems() / (wall / 1e9);
+		}
+	}
+
+	/**
+	 * The stage with this name, created on first use. Stages are reported in
+	 * the order they were created.
+	 */
+	public static synchronized Stage stage(String name) {
+		for (Stage stage : stages) {
+			if (stage.name.equals(name)) return stage;
+		}
+		Stage stage = new Stage(name);
+		stages.add(stage);
+		return stage;
+	}
+
+	private static synchronized List<Stage> getStages() {
+		return new ArrayList<Stage>(stages);
+	}
+
+	private static long cpuNanos() {
+		return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0L;
+	}
+
+	private static long allocatedBytes() {
+		return allocations == null ? 0L : allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	public static void printSummary(PrintStream out) {
+		out.println(String.format("%-16s %10s %12s %12s %12s %12s %14s", "stage", "calls", "items", "wall_ms", "cpu_ms", "alloc_MB", "items/s"));
+		for (Stage stage : getStages()) {
+			out.println(String.format("%-16s %10d %12d %12.1f %12.1f %12.1f %14.1f", stage.name, stage.getCalls(), stage.getItems(),
+				stage.getWallNanos() / 1e6, stage.getCpuNanos() / 1e6, stage.getAllocatedBytes() / (double) (1 << 20), stage.getItemsPerSecond()));
+		}
+		out.println(String.format("elapsed %.1f ms", (System.nanoTime() - startNanos) / 1e6));
+	}
+
+	/**
+	 * The stages as JSON: {"elapsed_ms": ..., "stages": [{"name": ..., ...}, ...]},
+	 * with numbers formatted the same in every locale.
+	 */
+	public static String toJson() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n  \"elapsed_ms\": ").append(String.format(Locale.ROOT, "%.3f", (System.nanoTime() - startNanos) / 1e6));
+		json.append(",\n  \"stages\": [");
+		List<Stage> current = getStages();
+		for (int s=0; s<current.size(); ++s) {
+			Stage stage = current.get(s);
+			json.append(s == 0 ? "\n" : ",\n");
+			json.append("    {\"name\": \"").append(escape(stage.name)).append('"');
+			json.append(", \"calls\": ").append(stage.getCalls());
+			json.append(", \"items\": ").append(stage.getItems());
+			json.append(", \"wall_ms\": ").append(String.format(Locale.ROOT, "%.3f", stage.getWallNanos() / 1e6));
+			json.append(", \"cpu_ms\": ").append(String.format(Locale.ROOT, "%.3f", stage.getCpuNanos() / 1e6));
+			json.append(", \"allocated_bytes\": ").append(stage.getAllocatedBytes());
+			json.append(", \"items_per_s\": ").append(String.format(Locale.ROOT, "%.3f", stage.getItemsPerSecond()));
+			json.append('}');
+		}
+		json.append("\n  ]\n}\n");
+		return json.toString();
+	}
+
+	public static void writeJson(File file) {
+		try {
+			PrintStream out = new PrintStream(file, "UTF-8");
+			try {
+				out.print(toJson());
+			} finally {
+				out.close();
+			}
+		} catch (FileNotFoundException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+}
@@ -0,0 +1,175 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A trained classifier with everything needed to featurize and label new
+ * threads without retraining, in one binary file:
+ *
+ *   magic, version
+ *   settings                               count, then key and value strings
+ *   labels                                 count, then one string per label id
+ *   prefixes, tokens                       the FeatureKey dictionaries, only
+ *                                          the tokens that indexed features use
+ *   indexer                                as in FeatureCache
+ *   classifier type                        byte: LIBLINEAR or ONLINE
+ *   classifier                             its write()
+ *
+ * Version 1 files have no classifier type byte and are always LIBLINEAR.
+ * Strings are stored as in FeatureCache. load() memory-maps the file and
+ * bulk-copies the feature keys and weights, so loading costs about one
+ * hash insert per feature and per dictionary string.
+ */
+public class PostTypeModel {
+
+	private static final int MAGIC = 0x50544d31;
+	private static final int VERSION = 2;
+	private static final byte LIBLINEAR = 0;
+	private static final byte ONLINE = 1;
+
+	// e.g. extractor and language settings the model was trained with
+	public final Map<String,String> settings;
+	public final Indexer<String> labelIndexer;
+	public final Indexer<FeatureKey> featureIndexer;
+	// a LibLinearWrapper or an OnlineLinearClassifier
+	public final Classifier classifier;
+
+	public PostTypeModel(Map<String,String> settings, Indexer<String> labelIndexer, Indexer<FeatureKey> featureIndexer, Classifier classifier) {
+		if (!(classifier instanceof LibLinearWrapper) && !(classifier instanceof OnlineLinearClassifier)) {
+			throw new IllegalArgumentException(String.format("Cannot save a %s", classifier.getClass().getName()));
+		}
+		this.settings = settings;
+		this.labelIndexer = labelIndexer;
+		this.featureIndexer = featureIndexer;
+		this.classifier = classifier;
+	}
+
+	/**
+	 * Writes to a temporary file first and renames it, as FeatureCache.save().
+	 */
+	public void save(File file) {
+		File tmp = new File(file.getPath()+".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(settings.size());
+				for (Map.Entry<String,String> setting : settings.entrySet()) {
+					FeatureCache.writeString(out, setting.getKey());
+					FeatureCache.writeString(out, setting.getValue());
+				}
+				FeatureCache.writeStrings(out, labelIndexer);
+				FeatureCache.writeStrings(out, FeatureKey.prefixes);
+				if (featureIndexer instanceof FeatureKeyIndexer) {
+					writeUsedTokens(out, (FeatureKeyIndexer) featureIndexer);
+				} else {
+					FeatureCache.writeStrings(out, FeatureKey.tokens);
+					FeatureCache.writeIndexer(out, featureIndexer);
+				}
+				if (classifier instanceof LibLinearWrapper) {
+					out.writeByte(LIBLINEAR);
+					((LibLinearWrapper) classifier).write(out);
+				} else {
+					out.writeByte(ONLINE);
+					((OnlineLinearClassifier) classifier).write(out);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw new RuntimeException(e);
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new RuntimeException(String.format("Could not move model to %s", file.getPath()));
+		}
+	}
+
+	/**
+	 * Writes only the tokens that the indexed features use, renumbered, and
+	 * the indexer with its keys remapped to match. The features keep their
+	 * ids. Nothing in memory changes.
+	 */
+	private static void writeUsedTokens(DataOutputStream out, FeatureKeyIndexer featureIndexer) throws IOException {
+		long[] keys = new long[featureIndexer.size()];
+		for (int i=0; i<keys.length; ++i) {
+			keys[i] = featureIndexer.getKey(i);
+		}
+		int[] newIds = FeatureKey.compactTokenIds(keys);
+		int numUsed = 0;
+		for (int newId : newIds) {
+			if (newId >= 0) numUsed++;
+		}
+		out.writeInt(numUsed);
+		for (int id=0; id<newIds.length; ++id) {
+			if (newIds[id] >= 0) FeatureCache.writeString(out, FeatureKey.tokens.getObject(id));
+		}
+		FeatureKeyIndexer remapped = new FeatureKeyIndexer(keys.length);
+		for (long key : keys) {
+			remapped.getIndex(FeatureKey.remapTokens(key, newIds));
+		}
+		FeatureCache.writeIndexer(out, remapped);
+	}
+
+	/**
+	 * Restores the FeatureKey dictionaries, so it must run before anything
+	 * else adds prefixes or tokens. The label and feature indexers and the
+	 * dictionaries come back locked, so featurizing new threads cannot grow
+	 * them: features with tokens the model never saw are skipped.
+	 */
+	public static PostTypeModel load(File file) {
+		return load(file, true);
+	}
+
+	/**
+	 * As load(file), but with lockFeatures false the feature indexer and the
+	 * dictionaries stay open, so an online model can learn features it has
+	 * not seen.
+	 */
+	public static PostTypeModel load(File file, boolean lockFeatures) {
+		if (!file.isFile()) {
+			throw new RuntimeException(String.format("No model file: %s", file.getPath()));
+		}
+		ByteBuffer in = FeatureCache.map(file);
+		int version = in.remaining() < 8 || in.getInt() != MAGIC ? -1 : in.getInt();
+		if (version != 1 && version != VERSION) {
+			throw new RuntimeException(String.format("Not a post type model, or written by another version: %s", file.getPath()));
+		}
+		int numSettings = in.getInt();
+		Map<String,String> settings = new LinkedHashMap<String,String>();
+		for (int i=0; i<numSettings; ++i) {
+			String key = FeatureCache.readString(in);
+			settings.put(key, FeatureCache.readString(in));
+		}
+		Indexer<String> labelIndexer = new HashMapIndexer<String>();
+		FeatureCache.readStrings(in, labelIndexer);
+		labelIndexer.lock();
+		FeatureCache.readStrings(in, FeatureKey.prefixes);
+		FeatureCache.readStrings(in, FeatureKey.tokens);
+		Indexer<FeatureKey> featureIndexer = FeatureCache.readIndexer(in);
+		if (lockFeatures) {
+			featureIndexer.lock();
+			FeatureKey.lockDictionaries();
+		}
+		byte type = version == 1 ? LIBLINEAR : in.get();
+		Classifier classifier;
+		if (type == LIBLINEAR) {
+			classifier = LibLinearWrapper.read(in);
+		} else if (type == ONLINE) {
+			classifier = OnlineLinearClassifier.read(in);
+		} else {
+			throw new RuntimeException(String.format("Unknown classifier type %d in %s", type, file.getPath()));
+		}
+		return new PostTypeModel(settings, labelIndexer, featureIndexer, classifier);
+	}
+
+}
@@ -0,0 +1,324 @@
+package util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Labelled sparse feature vectors in compressed sparse row (CSR) form: the
+ * entries of row r are featIdx/values[rowPtr[r]..rowPtr[r+1]), sorted by
+ * feature id, and labels[r] is its label. One instance stores all rows in
+ * four flat arrays instead of one counter and one Pair per datum.
+ *
+ * subset() returns a view over the same arrays, so splitting into train and
+ * test or subsampling copies at most one int per row and never copies any
+ * features. Entry positions (getRowStart .. getRowEnd) index the shared
+ * arrays directly.
+ */
+public class SparseDataset {
+
+	private final int[] rowPtr;
+	private final int[] featIdx;
+	private final double[] values;
+	private final int[] labels;
+	// view: rows[i], or rowOffset+i if rows is null
+	private final int[] rows;
+	private final int rowOffset;
+	private final int size;
+
+	private SparseDataset(int[] rowPtr, int[] featIdx, double[] values, int[] labels, int[] rows, int rowOffset, int size) {
+		this.rowPtr = rowPtr;
+		this.featIdx = featIdx;
+		this.values = values;
+		this.labels = labels;
+		this.rows = rows;
+		this.rowOffset = rowOffset;
+		this.size = size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int row(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException(String.format("Row %d of %d", i, size));
+		}
+		return rows == null ? rowOffset + i : rows[i];
+	}
+
+	public int getLabel(int i) {
+		return labels[row(i)];
+	}
+
+	public int getRowStart(int i) {
+		return rowPtr[row(i)];
+	}
+
+	public int getRowEnd(int i) {
+		return rowPtr[row(i) + 1];
+	}
+
+	public int getFeature(int entry) {
+		return featIdx[entry];
+	}
+
+	public double getValue(int entry) {
+		return values[entry];
+	}
+
+	/**
+	 * One more than the largest feature id in the rows of this view.
+	 */
+	public int getNumFeatures() {
+		int numFeatures = 0;
+		for (int i=0; i<size; ++i) {
+			int end = getRowEnd(i);
+			if (end > getRowStart(i)) numFeatures = Math.max(numFeatures, featIdx[end - 1] + 1);
+		}
+		return numFeatures;
+	}
+
+	/**
+	 * Copy of row i as a counter, for code that still takes counters.
+	 */
+	public IntCounter getRow(int i) {
+		IntCounter result = new IntCounter();
+		for (int k=getRowStart(i); k<getRowEnd(i); ++k) {
+			result.setCount(featIdx[k], values[k]);
+		}
+		return result;
+	}
+
+	/**
+	 * Rows [from, to) of this view.
+	 */
+	public SparseDataset subset(int from, int to) {
+		if (from < 0 || to > size || from > to) {
+			throw new IndexOutOfBoundsException(String.format("Rows [%d, %d) of %d", from, to, size));
+		}
+		if (rows == null) {
+			return new SparseDataset(rowPtr, featIdx, values, labels, null, rowOffset + from, to - from);
+		}
+		return new SparseDataset(rowPtr, featIdx, values, labels, Arrays.copyOfRange(rows, from, to), 0, to - from);
+	}
+
+	/**
+	 * The given rows of this view, in the given order.
+	 */
+	public SparseDataset subset(int[] selected) {
+		int[] baseRows = new int[selected.length];
+		for (int i=0; i<selected.length; ++i) {
+			baseRows[i] = row(selected[i]);
+		}
+		return new SparseDataset(rowPtr, featIdx, values, labels, baseRows, 0, baseRows.length);
+	}
+
+	public static SparseDataset fromPairs(List<Pair<CounterInterface<Integer>,Integer>> data) {
+		Builder builder = new Builder();
+		for (Pair<CounterInterface<Integer>,Integer> datum : data) {
+			builder.addRow(datum.getFirst(), datum.getSecond());
+		}
+		return builder.build();
+	}
+
+	public List<Pair<CounterInterface<Integer>,Integer>> toPairs() {
+		List<Pair<CounterInterface<Integer>,Integer>> result = new ArrayList<Pair<CounterInterface<Integer>,Integer>>(size);
+		for (int i=0; i<size; ++i) {
+			result.add(Pair.makePair((CounterInterface<Integer>) getRow(i), getLabel(i)));
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the rows of this view as a standalone dataset: numRows,
+	 * numEntries, then rowPtr, labels, featIdx and values, big endian as
+	 * read back by read(ByteBuffer).
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		int numEntries = 0;
+		for (int i=0; i<size; ++i) {
+			numEntries += getRowEnd(i) - getRowStart(i);
+		}
+		out.writeInt(size);
+		out.writeInt(numEntries);
+		int entry = 0;
+		out.writeInt(entry);
+		for (int i=0; i<size; ++i) {
+			entry += getRowEnd(i) - getRowStart(i);
+			out.writeInt(entry);
+		}
+		for (int i=0; i<size; ++i) {
+			out.writeInt(getLabel(i));
+		}
+		for (int i=0; i<size; ++i) {
+			for (int k=getRowStart(i); k<getRowEnd(i); ++k) out.writeInt(featIdx[k]);
+		}
+		for (int i=0; i<size; ++i) {
+			for (int k=getRowStart(i); k<getRowEnd(i); ++k) out.writeDouble(values[k]);
+		}
+	}
+
+	/**
+	 * Reads a dataset written by write(), advancing the buffer past it.
+	 */
+	public static SparseDataset read(ByteBuffer in) {
+		int numRows = in.getInt();
+		int numEntries = in.getInt();
+		int[] rowPtr = new int[numRows + 1];
+		int[] labels = new int[numRows];
+		int[] featIdx = new int[numEntries];
+		double[] values = new double[numEntries];
+		in.asIntBuffer().get(rowPtr);
+		in.position(in.position() + 4 * rowPtr.length);
+		in.asIntBuffer().get(labels);
+		in.position(in.position() + 4 * labels.length);
+		in.asIntBuffer().get(featIdx);
+		in.position(in.position() + 4 * featIdx.length);
+		in.asDoubleBuffer().get(values);
+		in.position(in.position() + 8 * values.length);
+		return new SparseDataset(rowPtr, featIdx, values, labels, null, 0, numRows);
+	}
+
+	/**
+	 * Builds a dataset one row at a time: add() the entries of a row in any
+	 * order, then endRow(). Entries for the same feature are summed and zero
+	 * increments are skipped, as with IntCounter.incrementCount.
+	 */
+	public static class Builder {
+
+		private int[] rowPtr = new int[1025];
+		private int[] featIdx;
+		private double[] values;
+		private int[] labels = new int[1024];
+		private int numRows = 0;
+		private int numEntries = 0;
+
+		public Builder() {
+			this(1 << 14);
+		}
+
+		/**
+		 * Room for expectedEntries entries before growing, e.g. for one row.
+		 */
+		public Builder(int expectedEntries) {
+			featIdx = new int[Math.max(1, expectedEntries)];
+			values = new double[featIdx.length];
+		}
+
+		public void add(int feature, double value) {
+			if (value == 0.0) return;
+			append(feature, value);
+		}
+
+		/**
+		 * Adds all entries of the counter as one row, explicit zeros included.
+		 */
+		public void addRow(CounterInterface<Integer> features, int label) {
+			if (features instanceof IntCounter) {
+				for (IntCounter.Cursor cursor = ((IntCounter) features).cursor(); cursor.next(); ) {
+					append(cursor.key(), cursor.value());
+				}
+			} else {
+				for (Map.Entry<Integer,Double> entry : features.entries()) {
+					append(entry.getKey(), entry.getValue());
+				}
+			}
+			endRow(label);
+		}
+
+		private void append(int feature, double value) {
+			if (feature < 0) {
+				throw new IllegalArgumentException(String.format("Negative feature id: %d", feature));
+			}
+			if (numEntries == featIdx.length) {
+				featIdx = Arrays.copyOf(featIdx, 2 * numEntries);
+				values = Arrays.copyOf(values, 2 * numEntries);
+			}
+			featIdx[numEntries] = feature;
+			values[numEntries] = value;
+			numEntries++;
+		}
+
+		public void endRow(int label) {
+			int start = rowPtr[numRows];
+			sort(featIdx, values, start, numEntries - 1);
+			// merge repeated features
+			int end = start;
+			for (int k=start; k<numEntries; ++k) {
+				if (end > start && featIdx[end - 1] == featIdx[k]) {
+					values[end - 1] += values[k];
+				} else {
+					featIdx[end] = featIdx[k];
+					values[end] = values[k];
+					end++;
+				}
+			}
+			numEntries = end;
+			if (numRows + 2 > rowPtr.length) {
+				rowPtr = Arrays.copyOf(rowPtr, 2 * rowPtr.length);
+				// one label per row, one row pointer more than rows
+				labels = Arrays.copyOf(labels, rowPtr.length - 1);
+			}
+			labels[numRows] = label;
+			numRows++;
+			rowPtr[numRows] = numEntries;
+		}
+
+		public int size() {
+			return numRows;
+		}
+
+		public SparseDataset build() {
+			return new SparseDataset(Arrays.copyOf(rowPtr, numRows + 1), Arrays.copyOf(featIdx, numEntries), Arrays.copyOf(values, numEntries), Arrays.copyOf(labels, numRows), null, 0, numRows);
+		}
+
+		/**
+		 * Quicksort of keys[lo..hi] (inclusive), moving values along.
+		 */
+		static void sort(int[] keys, double[] values, int lo, int hi) {
+			while (hi - lo > 16) {
+				int pivot = keys[(lo + hi) >>> 1];
+				int i = lo;
+				int j = hi;
+				while (i <= j) {
+					while (keys[i] < pivot) i++;
+					while (keys[j] > pivot) j--;
+					if (i <= j) {
+						swap(keys, values, i, j);
+						i++;
+						j--;
+					}
+				}
+				// recurse into the smaller half
+				if (j - lo < hi - i) {
+					sort(keys, values, lo, j);
+					lo = i;
+				} else {
+					sort(keys, values, i, hi);
+					hi = j;
+				}
+			}
+			for (int i=lo+1; i<=hi; ++i) {
+				for (int j=i; j>lo && keys[j - 1] > keys[j]; --j) {
+					swap(keys, values, j, j - 1);
+				}
+			}
+		}
+
+		private static void swap(int[] keys, double[] values, int i, int j) {
+			int key = keys[i];
+			keys[i] = keys[j];
+			keys[j] = key;
+			double value = values[i];
+			values[i] = values[j];
+			values[j] = value;
+		}
+
+	}
+
+}
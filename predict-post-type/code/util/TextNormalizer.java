@@ -0,0 +1,336 @@
+package util;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Hand-compiled version of the regex chain in
+ * MainLibLinear.SimpleFeatureExtractor.cleanLine. It gives the same output,
+ * char for char, without compiling a Pattern or building an intermediate
+ * String per rule:
+ *
+ *   lowercase, trim and drop commas        while loading the line
+ *   "[url...]" -> "URL ", "[/url...]" -> "" only if the line has a '[',
+ *                                          one sweep each because the
+ *                                          second rule sees the output of
+ *                                          the first
+ *   token with .com/.org/.net -> "URL URL_<tld>", MONEY buckets,
+ *   digits -> '#', punctuation splitting, space collapsing
+ *                                          one streaming pass
+ *
+ * Not thread safe; it reuses its buffers between calls. Use one instance per
+ * thread.
+ */
+public final class TextNormalizer {
+
+	private static final int NONE = -1;
+
+	private final boolean money;
+	private final boolean asciiLowerCaseSafe;
+
+	private char[] buffer = new char[256];
+	private char[] swap = new char[256];
+	private char[] out = new char[512];
+	private int outLength;
+	private int pendingAlnum;
+	private int pendingPunct;
+
+	public TextNormalizer(boolean money) {
+		this.money = money;
+		// String.toLowerCase() has special cases for these locales, even for ASCII
+		String language = Locale.getDefault().getLanguage();
+		this.asciiLowerCaseSafe = !(language.equals("tr") || language.equals("az") || language.equals("lt"));
+	}
+
+	public String normalize(String line) {
+		int length = load(line);
+		if (length < 0) {
+			length = loadChars(line.toLowerCase());
+		}
+		if (indexOf(buffer, length, '[') >= 0) {
+			length = replaceUrlTags(buffer, length, swap, true);
+			length = replaceUrlTags(swap, length, buffer, false);
+		}
+		outLength = 0;
+		pendingAlnum = NONE;
+		pendingPunct = NONE;
+		replaceTokens(buffer, length);
+		flushAlnum();
+		flushPunct();
+		return new String(out, 0, outLength);
+	}
+
+	/**
+	 * Lowercases, trims and drops commas, ASCII only. Returns -1 if the line
+	 * needs String.toLowerCase().
+	 */
+	private int load(String line) {
+		if (!asciiLowerCaseSafe) return -1;
+		int start = 0;
+		int end = line.length();
+		while (start < end && line.charAt(start) <= ' ') start++;
+		while (end > start && line.charAt(end - 1) <= ' ') end--;
+		ensureBuffers(end - start);
+		int length = 0;
+		for (int i=start; i<end; ++i) {
+			char c = line.charAt(i);
+			if (c >= 0x80) return -1;
+			if (c == ',') continue;
+			if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+			buffer[length++] = c;
+		}
+		return length;
+	}
+
+	private int loadChars(String lowered) {
+		int start = 0;
+		int end = lowered.length();
+		while (start < end && lowered.charAt(start) <= ' ') start++;
+		while (end > start && lowered.charAt(end - 1) <= ' ') end--;
+		ensureBuffers(end - start);
+		int length = 0;
+		for (int i=start; i<end; ++i) {
+			char c = lowered.charAt(i);
+			if (c == ',') continue;
+			buffer[length++] = c;
+		}
+		return length;
+	}
+
+	private void ensureBuffers(int length) {
+		if (buffer.length < length) {
+			buffer = new char[length];
+			swap = new char[length];
+		}
+	}
+
+	/**
+	 * With open == true, "\\[url[^\\]]*." -> "URL ", otherwise
+	 * "\\[.url[^\\]]*." -> "". Output is never longer than input.
+	 */
+	private static int replaceUrlTags(char[] in, int length, char[] result, boolean open) {
+		int resultLength = 0;
+		int i = 0;
+		while (i < length) {
+			int end = in[i] == '[' ? matchUrlTag(in, length, i, open) : NONE;
+			if (end == NONE) {
+				result[resultLength++] = in[i++];
+				continue;
+			}
+			if (open) {
+				result[resultLength++] = 'U';
+				result[resultLength++] = 'R';
+				result[resultLength++] = 'L';
+				result[resultLength++] = ' ';
+			}
+			i = end;
+		}
+		return resultLength;
+	}
+
+	/**
+	 * End (exclusive) of the tag starting at the '[' at start, or NONE.
+	 */
+	private static int matchUrlTag(char[] in, int length, int start, boolean open) {
+		int pos = start + 1;
+		if (!open) {
+			// '.' matches one code point, but not a line terminator
+			if (pos >= length || isLineTerminator(in[pos])) return NONE;
+			pos += (Character.isHighSurrogate(in[pos]) && pos + 1 < length && Character.isLowSurrogate(in[pos + 1])) ? 2 : 1;
+		}
+		if (pos + 3 > length || in[pos] != 'u' || in[pos + 1] != 'r' || in[pos + 2] != 'l') return NONE;
+		pos += 3;
+		// [^\]]* runs up to the first ']', which the final '.' then takes
+		for (int j=pos; j<length; ++j) {
+			if (in[j] == ']') return j + 1;
+		}
+		// no ']': the final '.' backs off to the last char that is not a line terminator
+		for (int j=length-1; j>=pos; --j) {
+			if (!isLineTerminator(in[j])) return j + 1;
+		}
+		return NONE;
+	}
+
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+	private static int indexOf(char[] in, int length, char c) {
+		for (int i=0; i<length; ++i) {
+			if (in[i] == c) return i;
+		}
+		return NONE;
+	}
+
+	/**
+	 * Space separated tokens: "[^ ]*[.]((com)|(org)|(net))[^ ]*" takes the
+	 * whole token and keeps the rightmost tld; otherwise the money rules apply.
+	 */
+	private void replaceTokens(char[] in, int length) {
+		int start = 0;
+		while (start <= length) {
+			int end = start;
+			while (end < length && in[end] != ' ') end++;
+			int tld = rightmostTld(in, start, end);
+			if (tld != NONE) {
+				emit("URL URL_");
+				emitDigits(in, tld, tld + 3);
+			} else if (money) {
+				replaceMoney(in, start, end);
+			} else {
+				emitDigits(in, start, end);
+			}
+			if (end < length) emitDigit(' ');
+			start = end + 1;
+		}
+	}
+
+	private static int rightmostTld(char[] in, int start, int end) {
+		for (int dot=end-4; dot>=start; --dot) {
+			if (in[dot] != '.') continue;
+			char a = in[dot + 1], b = in[dot + 2], c = in[dot + 3];
+			if ((a == 'c' && b == 'o' && c == 'm') || (a == 'o' && b == 'r' && c == 'g') || (a == 'n' && b == 'e' && c == 't')) {
+				return dot + 1;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * "([0-9]*)[$]([0-9]*)([.][0-9]*)?" -> "MONEY$1$2", then bucketed by the
+	 * number of digits kept.
+	 */
+	private void replaceMoney(char[] in, int start, int end) {
+		int i = start;
+		while (i < end) {
+			int dollar = i;
+			while (dollar < end && isDigit(in[dollar])) dollar++;
+			if (dollar == end || in[dollar] != '$') {
+				// no match can start anywhere in this run of digits
+				emitDigits(in, i, dollar == i ? i + 1 : dollar);
+				i = dollar == i ? i + 1 : dollar;
+				continue;
+			}
+			int digits = dollar - i;
+			int pos = dollar + 1;
+			while (pos < end && isDigit(in[pos])) {
+				pos++;
+				digits++;
+			}
+			if (pos < end && in[pos] == '.') {
+				pos++;
+				while (pos < end && isDigit(in[pos])) pos++;
+			}
+			if (digits >= 4) emit("MONEY_four_plus");
+			else if (digits == 3) emit("MONEY_three");
+			else if (digits == 2) emit("MONEY_two");
+			else if (digits == 1) emit("MONEY_one");
+			else emit("MONEY");
+			i = pos;
+		}
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isAlnum(int c) {
+		return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+	}
+
+	private static boolean isPunct(int c) {
+		switch (c) {
+		case '!': case '?': case ';': case ':': case '.': case '+': case '(': case ')': case '"':
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private void emit(String s) {
+		for (int i=0; i<s.length(); ++i) {
+			emitDigit(s.charAt(i));
+		}
+	}
+
+	private void emitDigits(char[] in, int start, int end) {
+		for (int i=start; i<end; ++i) {
+			emitDigit(in[i]);
+		}
+	}
+
+	/**
+	 * "[0-9]" -> "#"
+	 */
+	private void emitDigit(char c) {
+		emitAlnumPunct(isDigit(c) ? '#' : c);
+	}
+
+	/**
+	 * "([a-z0-9])([!?;:.+()\"])" -> "$1 $2 "
+	 */
+	private void emitAlnumPunct(char c) {
+		if (pendingAlnum != NONE) {
+			char alnum = (char) pendingAlnum;
+			pendingAlnum = NONE;
+			if (isPunct(c)) {
+				emitPunctAlnum(alnum);
+				emitPunctAlnum(' ');
+				emitPunctAlnum(c);
+				emitPunctAlnum(' ');
+				return;
+			}
+			emitPunctAlnum(alnum);
+		}
+		if (isAlnum(c)) pendingAlnum = c;
+		else emitPunctAlnum(c);
+	}
+
+	private void flushAlnum() {
+		if (pendingAlnum != NONE) {
+			char alnum = (char) pendingAlnum;
+			pendingAlnum = NONE;
+			emitPunctAlnum(alnum);
+		}
+	}
+
+	/**
+	 * "([!?;:.+()\"])([a-z0-9])" -> " $1 $2"
+	 */
+	private void emitPunctAlnum(char c) {
+		if (pendingPunct != NONE) {
+			char punct = (char) pendingPunct;
+			pendingPunct = NONE;
+			if (isAlnum(c)) {
+				emitCollapsed(' ');
+				emitCollapsed(punct);
+				emitCollapsed(' ');
+				emitCollapsed(c);
+				return;
+			}
+			emitCollapsed(punct);
+		}
+		if (isPunct(c)) pendingPunct = c;
+		else emitCollapsed(c);
+	}
+
+	private void flushPunct() {
+		if (pendingPunct != NONE) {
+			char punct = (char) pendingPunct;
+			pendingPunct = NONE;
+			emitCollapsed(punct);
+		}
+	}
+
+	/**
+	 * " +" -> " "
+	 */
+	private void emitCollapsed(char c) {
+		if (c == ' ' && outLength > 0 && out[outLength - 1] == ' ') return;
+		if (outLength == out.length) {
+			out = Arrays.copyOf(out, out.length * 2);
+		}
+		out[outLength++] = c;
+	}
+
+}
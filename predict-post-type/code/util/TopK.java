@@ -0,0 +1,91 @@
+package util;
+
+/**
+ * Indices of the k largest or smallest values of a double[], e.g. the
+ * strongest feature weights of one label, found with a bounded heap of k
+ * primitive entries in O(n log k) time and no boxing. Zero values are
+ * skipped, as getWeights() leaves them out, and NaN is never selected. Ties
+ * go to the lower index, so results do not depend on how the values were
+ * produced.
+ */
+public class TopK {
+
+	private TopK() {
+	}
+
+	/**
+	 * Up to k indices of nonzero values, largest value first.
+	 */
+	public static int[] largest(double[] values, int count, int k) {
+		return select(values, count, k, 1.0);
+	}
+
+	/**
+	 * Up to k indices of nonzero values, smallest value first.
+	 */
+	public static int[] smallest(double[] values, int count, int k) {
+		return select(values, count, k, -1.0);
+	}
+
+	/**
+	 * Selects the k largest of sign * values[0..count). The heap is a
+	 * min-heap in that order: its root is the worst entry kept, which a
+	 * better value replaces.
+	 */
+	private static int[] select(double[] values, int count, int k, double sign) {
+		if (k <= 0) return new int[0];
+		int[] heap = new int[k];
+		int size = 0;
+		for (int i=0; i<count; ++i) {
+			double value = values[i];
+			if (value == 0.0 || value != value) continue;
+			if (size < k) {
+				heap[size] = i;
+				siftUp(heap, size++, values, sign);
+			} else if (better(values, i, heap[0], sign)) {
+				heap[0] = i;
+				siftDown(heap, 0, size, values, sign);
+			}
+		}
+		// pop the worst entry to the back until the heap is empty
+		int[] result = new int[size];
+		for (int n=size; n>0; --n) {
+			result[n - 1] = heap[0];
+			heap[0] = heap[n - 1];
+			siftDown(heap, 0, n - 1, values, sign);
+		}
+		return result;
+	}
+
+	// whether index a ranks before index b
+	private static boolean better(double[] values, int a, int b, double sign) {
+		double va = sign * values[a];
+		double vb = sign * values[b];
+		return va > vb || (va == vb && a < b);
+	}
+
+	private static void siftUp(int[] heap, int pos, double[] values, double sign) {
+		int entry = heap[pos];
+		while (pos > 0) {
+			int parent = (pos - 1) / 2;
+			if (!better(values, heap[parent], entry, sign)) break;
+			heap[pos] = heap[parent];
+			pos = parent;
+		}
+		heap[pos] = entry;
+	}
+
+	private static void siftDown(int[] heap, int pos, int size, double[] values, double sign) {
+		int entry = heap[pos];
+		while (true) {
+			int child = 2 * pos + 1;
+			if (child >= size) break;
+			if (child + 1 < size && better(values, heap[child], heap[child + 1], sign)) child++;
+			if (!better(values, entry, heap[child], sign)) break;
+			heap[pos] = heap[child];
+			pos = child;
+		}
+		heap[pos] = entry;
+	}
+
+}
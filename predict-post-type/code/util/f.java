@@ -94,12 +94,16 @@ public class f {
 	  List<String> lines = new ArrayList<String>();
 	  try {
 	    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+	    try {
       while (in.ready()) {
         if (lines.size() >= numLines) {
           break;
         }
         lines.add(in.readLine());
       }
+	    } finally {
+	      in.close();
+	    }
 	  } catch (IOException e) {
 	    throw new RuntimeException(e);
 	  }